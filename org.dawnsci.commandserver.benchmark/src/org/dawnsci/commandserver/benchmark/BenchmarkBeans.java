@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.dawnsci.commandserver.jython.JythonBean;
+import org.dawnsci.commandserver.mx.beans.ProjectBean;
+import org.dawnsci.commandserver.mx.beans.SweepBean;
+import org.dawnsci.commandserver.processing.beans.OperationBean;
+import org.eclipse.dawnsci.analysis.api.processing.ExecutionType;
+import org.eclipse.scanning.api.event.status.Status;
+import org.eclipse.scanning.api.event.status.StatusBean;
+
+/**
+ * Creates beans filled in the way that clients fill them in,
+ * so that the benchmarks marshal realistic amounts of data.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class BenchmarkBeans {
+
+	/**
+	 * @param type one of status, project, operation or jython
+	 * @param sweeps the number of sweeps if the type is project
+	 * @return bean
+	 */
+	public static StatusBean create(String type, int sweeps) {
+		if ("status".equals(type))    return createStatusBean();
+		if ("project".equals(type))   return createProjectBean(sweeps);
+		if ("operation".equals(type)) return createOperationBean();
+		if ("jython".equals(type))    return createJythonBean();
+		throw new IllegalArgumentException("Unknown bean type "+type);
+	}
+
+	public static StatusBean createStatusBean() {
+		final StatusBean bean = new StatusBean();
+		fill(bean);
+		return bean;
+	}
+
+	public static ProjectBean createProjectBean(int sweeps) {
+
+		final ProjectBean bean = new ProjectBean();
+		fill(bean);
+		bean.setProjectName("thau1");
+		bean.setCystalName("thau");
+		bean.setWavelength(0.97625);
+		bean.setSpaceGroup("P41212");
+		bean.setUnitCell("57.8 57.8 150.2 90 90 90");
+		bean.setResolution("1.8");
+		bean.setAnomalous(true);
+		bean.setCommandLineSwitches("-atom Se");
+		for (int i = 0; i < sweeps; i++) {
+			final SweepBean sweep = new SweepBean("thau1_"+i, String.valueOf(1000000+i), 1, 3600);
+			sweep.setSessionId("cm4950-2");
+			sweep.setImageDirectory("/dls/i03/data/2014/cm4950-2/20140425/gw/thau1/");
+			sweep.setFirstImageName("thau1_"+i+"_0001.cbf");
+			sweep.setWavelength(0.97625);
+			sweep.setxBeam(212.3);
+			sweep.setyBeam(219.1);
+			bean.addSweep(sweep);
+		}
+		return bean;
+	}
+
+	public static OperationBean createOperationBean() {
+
+		final OperationBean bean = new OperationBean();
+		fill(bean);
+		bean.setFilePath("/dls/i22/data/2015/sm12345-1/i22-123456.nxs");
+		bean.setDatasetPath("/entry1/detector/data");
+		bean.setOutputFilePath("/dls/i22/data/2015/sm12345-1/processing/i22-123456_processed.nxs");
+		bean.setPersistencePath("/dls/i22/data/2015/sm12345-1/processing/pipeline.nxs");
+		bean.setExecutionType(ExecutionType.SERIES);
+		bean.setParallelTimeout(5000);
+		bean.setXmx("4096m");
+		bean.setDataDimensions(new int[]{2, 3});
+		final Map<Integer, String> axes = new HashMap<Integer, String>(4);
+		axes.put(1, "/entry1/detector/x");
+		axes.put(2, "/entry1/detector/y");
+		bean.setAxesNames(axes);
+		return bean;
+	}
+
+	public static JythonBean createJythonBean() {
+		final JythonBean bean = new JythonBean();
+		fill(bean);
+		bean.setJythonClass("ReductionScript");
+		bean.setJythonCode("from uk.ac.diamond.scisoft.analysis import io\ndata = io.load(path)\nprint(data.shape)\n");
+		return bean;
+	}
+
+	private static void fill(StatusBean bean) {
+		bean.setUniqueId(UUID.randomUUID().toString());
+		bean.setName("Benchmark run of "+bean.getClass().getSimpleName());
+		bean.setMessage("Integrating thau1_3");
+		bean.setStatus(Status.RUNNING);
+		bean.setPreviousStatus(Status.QUEUED);
+		bean.setPercentComplete(42.5);
+		bean.setRunDirectory("/dls/i03/data/2014/cm4950-2/20140425/gw/processing/thau1/MultiCrystal_12");
+		bean.setUserName("abc12345");
+		bean.setHostName("cs04r-sc-serv-63.diamond.ac.uk");
+		bean.setSubmissionTime(System.currentTimeMillis());
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of this bundle with the gc profiler, so that the
+ * bytes allocated per operation are reported with the throughput.
+ *
+ * Arguments (both optional):
+ *
+ *   1. regular expression of the benchmarks to run, default is all of them, e.g. Marshalling
+ *   2. file to write the results to as JSON, default is jmh-result.json
+ *
+ * The JMH annotation processor (jmh-generator-annprocess) must be on the
+ * annotation processing path when the bundle is compiled, it generates the
+ * classes which JMH runs. Keep the JSON results of a release to compare
+ * with those of the next one.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+
+		final String include = args.length>0 ? args[0] : BenchmarkRunner.class.getPackage().getName()+".*";
+		final String result  = args.length>1 ? args[1] : "jmh-result.json";
+
+		final Options options = new OptionsBuilder().include(include)
+				                                    .addProfiler(GCProfiler.class)
+				                                    .result(result)
+				                                    .resultFormat(ResultFormatType.JSON)
+				                                    .build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.scanning.api.event.IEventConnectorService;
+import org.eclipse.scanning.api.event.status.StatusBean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.diamond.daq.activemq.connector.ActivemqConnectorService;
+
+/**
+ * Measures IEventConnectorService.marshal and unmarshal, which are
+ * used for every status broadcast and by writeProjectBean.
+ *
+ * The ProjectBean here has 10 sweeps, ProjectBeanMarshallingBenchmark
+ * measures it with 1 to 500. Run with the gc profiler (see BenchmarkRunner)
+ * for the bytes allocated per operation.
+ *
+ * @author Matthew Gerring
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarshallingBenchmark {
+
+	@Param({"status", "project", "operation", "jython"})
+	private String type;
+
+	private IEventConnectorService service;
+	private StatusBean             bean;
+	private String                 json;
+	private Class<? extends StatusBean> beanClass;
+
+	@Setup
+	public void setup() throws Exception {
+		this.service   = new ActivemqConnectorService();
+		this.bean      = BenchmarkBeans.create(type, 10);
+		this.beanClass = bean.getClass();
+		this.json      = service.marshal(bean);
+	}
+
+	@Benchmark
+	public String marshal() throws Exception {
+		return service.marshal(bean);
+	}
+
+	@Benchmark
+	public Object unmarshal() throws Exception {
+		return service.unmarshal(json, beanClass);
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.scanning.api.event.status.StatusBean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures StatusBean.merge(...), which ProgressableProcess.broadcast
+ * calls for every status update, and the copy of the bean made
+ * by BroadcastChannel (a new instance and a merge).
+ *
+ * @author Matthew Gerring
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeBenchmark {
+
+	@Param({"status", "project", "operation", "jython"})
+	private String type;
+
+	private StatusBean target;
+	private StatusBean source;
+
+	@Setup
+	public void setup() throws Exception {
+		this.target = BenchmarkBeans.create(type, 10);
+		this.source = BenchmarkBeans.create(type, 10);
+	}
+
+	@Benchmark
+	public StatusBean merge() {
+		target.merge(source);
+		return target;
+	}
+
+	@Benchmark
+	public StatusBean copy() throws Exception {
+		final StatusBean copy = source.getClass().newInstance();
+		copy.merge(source);
+		return copy;
+	}
+}
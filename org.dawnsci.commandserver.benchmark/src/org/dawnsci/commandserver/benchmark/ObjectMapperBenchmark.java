@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dawnsci.commandserver.processing.beans.OperationBean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * OperationProcess.writeProjectBean creates a new ObjectMapper for each
+ * job. Compares that with writing the bean with one shared mapper.
+ *
+ * @author Matthew Gerring
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectMapperBenchmark {
+
+	private OperationBean bean;
+	private ObjectMapper  shared;
+
+	@Setup
+	public void setup() {
+		this.bean   = BenchmarkBeans.createOperationBean();
+		this.shared = new ObjectMapper();
+	}
+
+	@Benchmark
+	public String freshMapper() throws Exception {
+		return new ObjectMapper().writeValueAsString(bean);
+	}
+
+	@Benchmark
+	public String sharedMapper() throws Exception {
+		return shared.writeValueAsString(bean);
+	}
+}
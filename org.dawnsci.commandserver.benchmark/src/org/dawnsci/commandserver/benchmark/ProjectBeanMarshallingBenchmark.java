@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dawnsci.commandserver.mx.beans.ProjectBean;
+import org.eclipse.scanning.api.event.IEventConnectorService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.diamond.daq.activemq.connector.ActivemqConnectorService;
+
+/**
+ * Measures marshal and unmarshal of a ProjectBean with 1 to 500 sweeps,
+ * the whole list of sweeps is sent with every status update of a xia2 run.
+ *
+ * @author Matthew Gerring
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProjectBeanMarshallingBenchmark {
+
+	@Param({"1", "10", "100", "500"})
+	private int sweeps;
+
+	private IEventConnectorService service;
+	private ProjectBean            bean;
+	private String                 json;
+
+	@Setup
+	public void setup() throws Exception {
+		this.service   = new ActivemqConnectorService();
+		this.bean      = BenchmarkBeans.createProjectBean(sweeps);
+		this.json      = service.marshal(bean);
+	}
+
+	@Benchmark
+	public String marshal() throws Exception {
+		return service.marshal(bean);
+	}
+
+	@Benchmark
+	public Object unmarshal() throws Exception {
+		return service.unmarshal(json, ProjectBean.class);
+	}
+}
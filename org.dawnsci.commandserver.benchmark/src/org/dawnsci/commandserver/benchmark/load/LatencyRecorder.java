@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.benchmark.load;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dawnsci.commandserver.core.metrics.Histogram;
+import org.dawnsci.commandserver.core.metrics.MetricsRegistry;
+import org.eclipse.scanning.api.event.bean.BeanEvent;
+import org.eclipse.scanning.api.event.bean.IBeanListener;
+import org.eclipse.scanning.api.event.status.Status;
+import org.eclipse.scanning.api.event.status.StatusBean;
+
+/**
+ * Listens to the status topic of a consumer and records, for each job
+ * submitted by the LoadGenerator, the time from submission until the job
+ * was first seen QUEUED, first seen RUNNING and seen in a final state.
+ *
+ * Times are measured from when the job was scheduled to be submitted, not
+ * when the submit returned, so that a slow broker shows up in the latency
+ * rather than hiding it by submitting less (coordinated omission).
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class LatencyRecorder implements IBeanListener<StatusBean> {
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private final Map<String, Job>  jobs;
+	private final MetricsRegistry   metrics;
+	private final Histogram         queued, running, complete;
+	private final Map<String, Long> finalCounts;
+	private final AtomicLong        firstSubmit, lastFinal;
+	private volatile int            submitted, finished;
+
+	public LatencyRecorder() {
+		this.jobs        = new ConcurrentHashMap<String, Job>(1024);
+		this.metrics     = new MetricsRegistry();
+		this.queued      = metrics.histogram("load_queued_seconds",  "Submit to QUEUED");
+		this.running     = metrics.histogram("load_running_seconds", "Submit to RUNNING");
+		this.complete    = metrics.histogram("load_final_seconds",   "Submit to final state");
+		this.finalCounts = new ConcurrentHashMap<String, Long>(7);
+		this.firstSubmit = new AtomicLong(-1);
+		this.lastFinal   = new AtomicLong(-1);
+	}
+
+	/**
+	 * Call before the bean is submitted so that no status is missed.
+	 *
+	 * @param bean
+	 * @param type name of the job type in the mix, used to report each type separately
+	 * @param scheduled the System.nanoTime() at which the job was due to be submitted
+	 */
+	public void register(StatusBean bean, String type, long scheduled) {
+		jobs.put(bean.getUniqueId(), new Job(type, scheduled));
+		firstSubmit.compareAndSet(-1, scheduled);
+		++submitted;
+	}
+
+	@Override
+	public void beanChangePerformed(BeanEvent<StatusBean> evt) {
+
+		final long       now    = System.nanoTime();
+		final StatusBean bean   = evt.getBean();
+		final Job        job    = jobs.get(bean.getUniqueId());
+		if (job==null) return; // Not one of ours
+		final Status     status = bean.getStatus();
+		if (status==null) return;
+
+		if (!job.queued && (status==Status.QUEUED || status.isRunning() || status.isFinal())) {
+			job.queued = true;
+			if (status==Status.QUEUED) queued.record(now-job.scheduled);
+		}
+		if (!job.running && (status.isRunning() || status.isFinal())) {
+			job.running = true;
+			if (status.isRunning()) running.record(now-job.scheduled);
+		}
+		if (status.isFinal() && jobs.remove(bean.getUniqueId())!=null) {
+			complete.record(now-job.scheduled);
+			metrics.histogram("load_final_seconds", "Submit to final state", "type", job.type).record(now-job.scheduled);
+			synchronized (finalCounts) {
+				final Long count = finalCounts.get(status.toString());
+				finalCounts.put(status.toString(), count==null ? 1 : count+1);
+			}
+			lastFinal.set(now);
+			synchronized (this) {
+				++finished;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits until every job registered has reached a final state.
+	 *
+	 * @param time
+	 * @param unit
+	 * @return true if they all finished, false if the time ran out first.
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean await(long time, TimeUnit unit) throws InterruptedException {
+		final long end = System.nanoTime()+unit.toNanos(time);
+		while (finished<submitted) {
+			final long left = end-System.nanoTime();
+			if (left<=0) return false;
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the jobs submitted which have not yet reached a final state.
+	 */
+	public int getOutstanding() {
+		return jobs.size();
+	}
+
+	/**
+	 * @return the histogram of times from submission to a final state.
+	 */
+	public Histogram getCompleteLatency() {
+		return complete;
+	}
+
+	/**
+	 * Writes the latency percentiles of each stage and the throughput.
+	 *
+	 * @param out
+	 * @param types the job types in the mix
+	 */
+	public void report(PrintStream out, List<String> types) {
+
+		out.println(String.format("%-22s %8s %10s %10s %10s %10s %10s", "Latency (ms)", "count", "p50", "p90", "p99", "p99.9", "max"));
+		report(out, "submit -> QUEUED",  queued);
+		report(out, "submit -> RUNNING", running);
+		report(out, "submit -> final",   complete);
+		for (String type : types) {
+			report(out, "  "+type, metrics.histogram("load_final_seconds", "Submit to final state", "type", type));
+		}
+
+		out.println();
+		final List<String> states = new ArrayList<String>(finalCounts.keySet());
+		Collections.sort(states);
+		for (String state : states) out.println(String.format("%-22s %8d", state, finalCounts.get(state)));
+		if (getOutstanding()>0) out.println(String.format("%-22s %8d", "not finished", getOutstanding()));
+
+		final long first = firstSubmit.get();
+		final long last  = lastFinal.get();
+		if (first>=0 && last>first) {
+			final double seconds = (last-first)/1e9;
+			out.println(String.format("Throughput %.2f jobs/s (%d jobs finished in %.1f s)", complete.getCount()/seconds, complete.getCount(), seconds));
+		}
+	}
+
+	private static void report(PrintStream out, String name, Histogram histogram) {
+		final StringBuilder buf = new StringBuilder(String.format("%-22s %8d", name, histogram.getCount()));
+		for (double q : QUANTILES) buf.append(String.format(" %10.1f", histogram.getValueAtQuantile(q)/1e6));
+		buf.append(String.format(" %10.1f", histogram.getMax()/1e6));
+		out.println(buf);
+	}
+
+	private static final class Job {
+		final String     type;
+		final long       scheduled;
+		volatile boolean queued, running;
+		Job(String type, long scheduled) {
+			this.type      = type;
+			this.scheduled = scheduled;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.benchmark.load;
+
+import org.dawnsci.commandserver.core.process.ProcessConsumer;
+import org.dawnsci.commandserver.core.process.ProgressableProcess;
+import org.eclipse.scanning.api.event.core.IPublisher;
+import org.eclipse.scanning.api.event.status.StatusBean;
+
+/**
+ * A consumer of synthetic jobs for the LoadGenerator. It has all of the
+ * scheduling of a real consumer (maxConcurrent, admissionControl etc.)
+ * but each job only waits for the run time it was submitted with.
+ *
+ * Start it with the Consumer application, for instance:
+ *
+ *   -bundle org.dawnsci.commandserver.benchmark -consumer org.dawnsci.commandserver.benchmark.load.LoadConsumer
+ *   -uri tcp://localhost:61616 -submit scisoft.load.SUBMISSION_QUEUE -topic scisoft.load.STATUS_TOPIC -status scisoft.load.STATUS_QUEUE
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class LoadConsumer extends ProcessConsumer<StatusBean> {
+
+	@Override
+	public String getName() {
+		return "Load Test Consumer";
+	}
+
+	@Override
+	protected Class<StatusBean> getBeanClass() {
+		return StatusBean.class;
+	}
+
+	@Override
+	protected ProgressableProcess<StatusBean> createProcess(StatusBean bean, IPublisher<StatusBean> publisher) throws Exception {
+		return new LoadProcess(bean, publisher);
+	}
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.benchmark.load;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.dawnsci.commandserver.benchmark.BenchmarkBeans;
+import org.dawnsci.commandserver.core.ActiveMQServiceHolder;
+import org.dawnsci.commandserver.core.EmbeddedBroker;
+import org.eclipse.scanning.api.event.IEventService;
+import org.eclipse.scanning.api.event.bean.IBeanListener;
+import org.eclipse.scanning.api.event.core.ISubmitter;
+import org.eclipse.scanning.api.event.core.ISubscriber;
+import org.eclipse.scanning.api.event.status.Status;
+import org.eclipse.scanning.api.event.status.StatusBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Submits a stream of jobs to a consumer and reports how long they took
+ * to be queued, to start running and to finish, so that the size of a
+ * consumer's pool and changes to its scheduling can be checked against
+ * the bursts of jobs seen on the beamlines.
+ *
+ * The jobs are submitted open loop: when a job is due it is submitted
+ * whether or not the earlier ones have finished, as happens when users
+ * collect data.
+ *
+ * Arguments:
+ *
+ * -uri       activemq URI, default from ActiveMQServiceHolder.getDefaultUri()
+ * -submit    queue to submit to e.g. scisoft.load.SUBMISSION_QUEUE
+ * -topic     status topic of the consumer e.g. scisoft.load.STATUS_TOPIC
+ *
+ * Optional:
+ * -arrival   poisson (default) or burst
+ * -rate      mean jobs per second for poisson arrivals, default 1
+ * -burst     jobs in each burst for burst arrivals, default 10
+ * -interval  ms between the start of each burst, default 10000
+ * -count     jobs to submit, default 100
+ * -duration  seconds to submit for, instead of count
+ * -mix       comma separated type:weight:runTime, default status:1:1000, where type is a bean type
+ *            of BenchmarkBeans (status, project, operation, jython) and runTime is in ms. For instance
+ *            status:8:500,project:2:20000 is one long project job for each four short ones.
+ * -wait      seconds to wait for the jobs to finish after the last is submitted, default 600
+ * -seed      seed for the random arrivals and mix, so that a run may be repeated
+ *
+ * If the uri is vm:// a broker is started in this JVM, the consumer must then
+ * connect to its -brokerConnector.
+ *
+ * Any consumer may be loaded, as long as it accepts the beans of the mix. The
+ * LoadConsumer runs jobs which only wait for the runTime of the mix, BubblesConsumer
+ * or a consumer using DummyProcess takes 10s for each job.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class LoadGenerator {
+
+	private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+	private final URI            uri;
+	private final String         submitQName, statusTName;
+	private final boolean        burst;
+	private final double         rate;
+	private final int            burstSize;
+	private final long           interval;
+	private final int            count;
+	private final long           duration;
+	private final long           wait;
+	private final List<JobType>  mix;
+	private final Random         random;
+
+	public LoadGenerator(Map<String, String> config) throws Exception {
+		this.uri         = config.containsKey("uri") ? new URI(config.get("uri")) : ActiveMQServiceHolder.getDefaultUri();
+		this.submitQName = config.get("submit");
+		this.statusTName = config.get("topic");
+		if (submitQName==null || statusTName==null) throw new IllegalArgumentException("Please set -submit and -topic!");
+
+		this.burst     = "burst".equals(get(config, "arrival", "poisson"));
+		this.rate      = Double.parseDouble(get(config, "rate", "1"));
+		this.burstSize = Integer.parseInt(get(config, "burst", "10"));
+		this.interval  = Long.parseLong(get(config, "interval", "10000"));
+		this.count     = config.containsKey("duration") ? Integer.MAX_VALUE : Integer.parseInt(get(config, "count", "100"));
+		this.duration  = config.containsKey("duration") ? TimeUnit.SECONDS.toNanos(Long.parseLong(config.get("duration"))) : Long.MAX_VALUE;
+		this.wait      = Long.parseLong(get(config, "wait", "600"));
+		this.mix       = JobType.parse(get(config, "mix", "status:1:1000"));
+		this.random    = config.containsKey("seed") ? new Random(Long.parseLong(config.get("seed"))) : new Random();
+		if (rate<=0 || burstSize<1 || interval<1) throw new IllegalArgumentException("The rate, burst and interval must be positive!");
+	}
+
+	private static String get(Map<String, String> config, String key, String def) {
+		final String value = config.get(key);
+		return value!=null ? value : def;
+	}
+
+	/**
+	 * Submits the jobs, waits for them to finish and reports the latencies.
+	 *
+	 * @return the recorded latencies
+	 * @throws Exception
+	 */
+	public LatencyRecorder run() throws Exception {
+
+		final IEventService    service   = ActiveMQServiceHolder.getEventService();
+		if (service==null) throw new IllegalStateException("The event service has not been injected, please run the load generator in OSGi!");
+		final boolean embedded = EmbeddedBroker.startIfEmbedded(uri);
+
+		final LatencyRecorder  recorder  = new LatencyRecorder();
+		final ISubscriber<IBeanListener<StatusBean>> subscriber = service.createSubscriber(uri, statusTName);
+		final ISubmitter<StatusBean>                 submitter  = service.createSubmitter(uri, submitQName);
+		try {
+			subscriber.addListener(recorder);
+
+			final long start = System.nanoTime();
+			long       due   = start;
+			int        sent  = 0;
+			while (sent<count && due-start<duration) {
+
+				final long delay = due-System.nanoTime();
+				if (delay>0) LockSupport.parkNanos(delay);
+
+				final int inBatch = burst ? Math.min(burstSize, count-sent) : 1;
+				for (int i = 0; i < inBatch; i++) {
+					final JobType    type = JobType.choose(mix, random);
+					final StatusBean bean = type.create();
+					recorder.register(bean, type.name, due);
+					submitter.submit(bean);
+					++sent;
+				}
+				due += burst ? TimeUnit.MILLISECONDS.toNanos(interval) : (long)(-Math.log(1-random.nextDouble())/rate*1e9);
+			}
+			logger.info("Submitted "+sent+" jobs in "+TimeUnit.NANOSECONDS.toSeconds(System.nanoTime()-start)+"s, waiting for them to finish");
+
+			if (!recorder.await(wait, TimeUnit.SECONDS)) {
+				logger.warn(recorder.getOutstanding()+" jobs did not finish within "+wait+"s");
+			}
+			final List<String> types = new ArrayList<String>(mix.size());
+			for (JobType type : mix) types.add(type.name);
+			recorder.report(System.out, types);
+			return recorder;
+
+		} finally {
+			submitter.disconnect();
+			subscriber.disconnect();
+			if (embedded) EmbeddedBroker.release();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		final Map<String, String> conf = new HashMap<String, String>(7);
+		for (int i = 0; i < args.length-1; i++) {
+			if (args[i].startsWith("-")) conf.put(args[i].substring(1), args[i+1]);
+		}
+		new LoadGenerator(conf).run();
+	}
+
+	private static final class JobType {
+
+		final String name;
+		final double weight;
+		final long   runTime;
+
+		JobType(String name, double weight, long runTime) {
+			this.name    = name;
+			this.weight  = weight;
+			this.runTime = runTime;
+		}
+
+		StatusBean create() {
+			final StatusBean bean = BenchmarkBeans.create(name, 4);
+			bean.setUniqueId(UUID.randomUUID().toString());
+			bean.setName("Load test "+name);
+			bean.setStatus(Status.SUBMITTED);
+			bean.setPreviousStatus(null);
+			bean.setPercentComplete(0);
+			bean.setMessage(null);
+			bean.setSubmissionTime(System.currentTimeMillis());
+			bean.setProperty(LoadProcess.RUN_TIME, String.valueOf(runTime));
+			return bean;
+		}
+
+		static List<JobType> parse(String mix) {
+			final List<JobType> types = new ArrayList<JobType>(4);
+			for (String item : mix.split(",")) {
+				final String[] parts = item.trim().split(":");
+				if (parts.length!=3) throw new IllegalArgumentException("The mix must be type:weight:runTime, not "+item);
+				types.add(new JobType(parts[0], Double.parseDouble(parts[1]), Long.parseLong(parts[2])));
+			}
+			return types;
+		}
+
+		static JobType choose(List<JobType> mix, Random random) {
+			double total = 0;
+			for (JobType type : mix) total += type.weight;
+			double r = random.nextDouble()*total;
+			for (JobType type : mix) {
+				r -= type.weight;
+				if (r<0) return type;
+			}
+			return mix.get(mix.size()-1);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.benchmark.load;
+
+import org.dawnsci.commandserver.core.process.ProgressableProcess;
+import org.eclipse.scanning.api.event.EventException;
+import org.eclipse.scanning.api.event.core.IPublisher;
+import org.eclipse.scanning.api.event.status.Status;
+import org.eclipse.scanning.api.event.status.StatusBean;
+
+/**
+ * A synthetic job which does nothing but wait for the time in the
+ * RUN_TIME property of the bean, sending percent complete in ten steps
+ * as a real job would. Like DummyProcess but the run time is chosen by
+ * the LoadGenerator.
+ *
+ * @author Matthew Gerring
+ *
+ */
+class LoadProcess extends ProgressableProcess<StatusBean> {
+
+	static final String RUN_TIME = "loadRunTime";
+
+	private static final int STEPS = 10;
+
+	private volatile boolean terminated;
+
+	LoadProcess(StatusBean bean, IPublisher<StatusBean> statusPublisher) {
+		super(bean, statusPublisher, false);
+	}
+
+	@Override
+	public void execute() throws EventException {
+
+		bean.setStatus(Status.RUNNING);
+		bean.setPercentComplete(1);
+		broadcast(bean);
+
+		final String runTime = bean.getProperty(RUN_TIME);
+		final long   step    = runTime!=null ? Long.parseLong(runTime)/STEPS : 0;
+		for (int i = 1; i <= STEPS; i++) {
+			if (terminated || bean.getStatus()==Status.REQUEST_TERMINATE) {
+				bean.setStatus(Status.TERMINATED);
+				broadcast(bean);
+				return;
+			}
+			try {
+				if (step>0) Thread.sleep(step);
+			} catch (InterruptedException ne) {
+				throw new EventException("Interrupted running "+bean.getName(), ne);
+			}
+			if (i<STEPS) {
+				bean.setPercentComplete(i*100d/STEPS);
+				broadcast(bean);
+			}
+		}
+
+		bean.setStatus(Status.COMPLETE);
+		bean.setPercentComplete(100);
+		bean.setMessage("Load test job complete");
+		broadcast(bean);
+	}
+
+	@Override
+	public void terminate() throws EventException {
+		terminated = true;
+	}
+
+}
@@ -2,6 +2,8 @@ package org.dawnsci.commandserver.bubbles;
 
 import java.net.URI;
 
+import org.dawnsci.commandserver.core.ActiveMQServiceHolder;
+
 public class ExampleSubmit {
 
 	public static void main(String[] args) throws Exception {
@@ -13,7 +15,7 @@ public class ExampleSubmit {
 		
 		// URI could be anywhere I am using the scisoft activemq server
 		// which should be fine for bubbles too.
-		URI uri = new URI("tcp://sci-serv5.diamond.ac.uk:61616");
+		URI uri = ActiveMQServiceHolder.getDefaultUri();
 		
         // Just a bean that gets JSONed, the actual submission only requires
 		// a JSON string, this is Java suger rather than required.
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.foldermonitor;
+
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the events of each file until none has come for the quiet window,
+ * then passes one event for them on. Writing a detector image gives a
+ * create and many modifies, which become one create; a file created and
+ * deleted within the window gives nothing.
+ *
+ * Events are merged as follows, the first event being the one held:
+ *
+ *   CREATE + MODIFY = CREATE     MODIFY + MODIFY = MODIFY     DELETE + CREATE = MODIFY
+ *   CREATE + DELETE = nothing    MODIFY + DELETE = DELETE
+ *
+ * The events passed on are sent by a thread of the debouncer, in the
+ * order in which their files went quiet.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class EventDebouncer implements PollingScanner.IScanListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(EventDebouncer.class);
+
+	private final long                         window;
+	private final PollingScanner.IScanListener listener;
+	private final Map<Path, Pending>           pending; // In the order of their last event
+	private final Thread                       thread;
+
+	private volatile boolean disposed;
+
+	/**
+	 * @param window ms without an event after which the event of a file is passed on
+	 * @param listener to which events are passed
+	 */
+	public EventDebouncer(long window, PollingScanner.IScanListener listener) {
+		this.window   = window;
+		this.listener = listener;
+		this.pending  = new LinkedHashMap<Path, Pending>(89);
+		this.thread   = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				send();
+			}
+		}, "Folder monitor debouncer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void fileChanged(EventType type, Path file) {
+
+		final long now = System.currentTimeMillis();
+		synchronized (pending) {
+			final Pending held = pending.remove(file); // Put back at the end
+			final EventType merged = held!=null ? merge(held.type, type) : type;
+			if (merged!=null) pending.put(file, new Pending(merged, now));
+			pending.notifyAll();
+		}
+	}
+
+	/**
+	 * @return the event for both, or null if they cancel out.
+	 */
+	private static EventType merge(EventType held, EventType type) {
+		if (held==EventType.ENTRY_CREATE) return type==EventType.ENTRY_DELETE ? null : EventType.ENTRY_CREATE;
+		return type==EventType.ENTRY_DELETE ? EventType.ENTRY_DELETE : EventType.ENTRY_MODIFY;
+	}
+
+	/**
+	 * @return the number of files whose events are being held.
+	 */
+	public int getPendingCount() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Passes on the events held without waiting for their files to go quiet.
+	 */
+	public void flush() {
+		send(take(Long.MAX_VALUE));
+	}
+
+	/**
+	 * Stops the debouncer, the events held are passed on.
+	 */
+	public void dispose() {
+		disposed = true;
+		thread.interrupt();
+		flush();
+	}
+
+	private void send() {
+		try {
+			while(!disposed) {
+				final List<Map.Entry<Path, Pending>> quiet;
+				synchronized (pending) {
+					final long wait = getWait();
+					if (wait>0) {
+						pending.wait(wait);
+						continue;
+					}
+					quiet = take(System.currentTimeMillis()-window);
+				}
+				send(quiet);
+			}
+		} catch (InterruptedException ne) {
+			// Disposed
+		}
+	}
+
+	/**
+	 * @return ms until the first file held is quiet, 0 if it is.
+	 */
+	private long getWait() {
+		if (pending.isEmpty()) return Long.MAX_VALUE; // Until an event comes
+		final Pending first = pending.values().iterator().next();
+		return Math.max(0, first.time+window-System.currentTimeMillis());
+	}
+
+	/**
+	 * @return the events last changed at or before time
+	 */
+	private List<Map.Entry<Path, Pending>> take(long time) {
+		synchronized (pending) {
+			final List<Map.Entry<Path, Pending>> ret = new ArrayList<Map.Entry<Path, Pending>>(Math.min(pending.size(), 31));
+			for (Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator(); it.hasNext();) {
+				final Map.Entry<Path, Pending> entry = it.next();
+				if (entry.getValue().time>time) break; // The rest are later
+				ret.add(new AbstractMap.SimpleEntry<Path, Pending>(entry));
+				it.remove();
+			}
+			return ret;
+		}
+	}
+
+	private void send(List<Map.Entry<Path, Pending>> events) {
+		for (Map.Entry<Path, Pending> entry : events) {
+			try {
+				listener.fileChanged(entry.getValue().type, entry.getKey());
+			} catch (Exception ne) {
+				logger.error("Cannot send "+entry.getValue().type+" for "+entry.getKey(), ne);
+			}
+		}
+	}
+
+	private static final class Pending {
+		final EventType type;
+		final long      time;
+		Pending(EventType type, long time) {
+			this.type = type;
+			this.time = time;
+		}
+	}
+}
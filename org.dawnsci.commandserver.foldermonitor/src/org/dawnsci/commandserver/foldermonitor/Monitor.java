@@ -32,12 +32,15 @@ import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import org.dawnsci.commandserver.core.ActiveMQServiceHolder;
@@ -62,6 +65,27 @@ import org.slf4j.LoggerFactory;
  * 
  * The command line parameter "location" must be set when starting the consumer.
  * 
+ * When polling, "sleepTime" is the time between scans, "hotTime" the time
+ * for which a modified file is checked on every scan and "fullScanInterval"
+ * the time between scans which check every file, all in ms. With
+ * "recursive" sub-directories are polled to "maxDepth" by "pollThreads"
+ * threads, and a directory in which nothing has changed for "idleInterval"
+ * ms is then only polled every "idleInterval".
+ * 
+ * With "debounceWindow" the events of a file are merged until none has
+ * come for that many ms, see EventDebouncer. With "readyStrategy" the
+ * create of a file is sent when the file is complete, see ReadinessGate,
+ * checked every "readyInterval" ms for up to "readyTimeout" ms.
+ * "readyPolls" is the number of checks for which a stable file must not
+ * change and "readyMarker" the suffix of marker files.
+ * 
+ * With "nio" a snapshot of the tree is kept, and the directories whose
+ * events have been lost, when the queue of events overflows, are rescanned
+ * to find them, as are those in which many events have happened since they
+ * were last rescanned. The whole tree is also rescanned every
+ * "reconcileInterval" ms if it is set, by default it is 0 and only the
+ * directories whose events are lost are rescanned. See Reconciler.
+ * 
  * @author Matthew Gerring
  *
  */
@@ -78,6 +102,9 @@ public class Monitor implements IConsumerExtension{
 	private Pattern       filePattern;
 
 	private WatchService watcher;
+	private EventDebouncer debouncer;
+	private ReadinessGate  gate;
+	private PollingScanner.IScanListener listener;
 	
 	private IPublisher<StatusBean> broadcaster;
 
@@ -153,14 +180,28 @@ public class Monitor implements IConsumerExtension{
         	filePattern = Pattern.compile(config.get("filePattern")); // Might throw exception.
         	System.out.println("File name matching set to '"+filePattern+"'");
         }
+        
+		this.listener = new Broadcast();
+		if (config.get("readyStrategy")!=null) {
+			final int    polls    = config.get("readyPolls") != null ? Integer.parseInt(config.get("readyPolls")) : 2;
+			final long   interval = config.get("readyInterval") != null ? Long.parseLong(config.get("readyInterval")) : 1000L;
+			final long   timeout  = config.get("readyTimeout") != null ? Long.parseLong(config.get("readyTimeout")) : 60000L;
+			final String marker   = config.get("readyMarker") != null ? config.get("readyMarker") : ".done";
+			System.out.println("Files are created when they are complete by '"+config.get("readyStrategy")+"', or after "+timeout+" ms");
+			this.gate     = new ReadinessGate(ReadinessGate.createReadiness(config.get("readyStrategy"), polls, marker), interval, timeout, new Broadcast());
+			this.listener = gate;
+		}
+		final long window = config.get("debounceWindow") != null ? Long.parseLong(config.get("debounceWindow")) : 0L;
+		if (window>0) {
+			System.out.println("Events of a file are sent after "+window+" ms without one");
+			this.debouncer = new EventDebouncer(window, listener);
+			this.listener  = debouncer;
+		}
 
 		boolean nio = Boolean.parseBoolean(config.get("nio"));
 		if (nio) {
             startNio();
 		} else {
-			boolean recursive = Boolean.parseBoolean(config.get("recursive"));
-            if (recursive) throw new IllegalArgumentException("Cannot use recursive monitoring with nio!");
-			
             startPolling();
 		}
 	}
@@ -168,81 +209,40 @@ public class Monitor implements IConsumerExtension{
 	private void startPolling() throws Exception {
 		
 		final long sleepTime = config.get("sleepTime") != null ? Long.parseLong(config.get("sleepTime")) : 1000L;
-		System.out.println("Starting polling folder monitor @ '"+dir+"' with sleepTime of "+sleepTime+" ms");
+		final long hotTime   = config.get("hotTime") != null ? Long.parseLong(config.get("hotTime")) : 10000L;
+		final long fullScan  = config.get("fullScanInterval") != null ? Long.parseLong(config.get("fullScanInterval")) : 60000L;
+		
+		final boolean recursive = Boolean.parseBoolean(config.get("recursive"));
+		final int     maxDepth  = !recursive ? 0 : config.get("maxDepth") != null ? Integer.parseInt(config.get("maxDepth")) : Integer.MAX_VALUE;
+		final long    idleTime  = config.get("idleInterval") != null ? Long.parseLong(config.get("idleInterval")) : (recursive ? 10000L : 0L);
+		final int     threads   = config.get("pollThreads") != null ? Integer.parseInt(config.get("pollThreads")) : 4;
+		System.out.println("Starting polling folder monitor @ '"+dir+"' with sleepTime of "+sleepTime+" ms. Recursive is "+(recursive?"on":"off"));
 
 		// We initiate the file list and last modified times.
-		Map<Path, FileTime> fileList = readFileList(dir);
+		final ForkJoinPool   pool    = recursive && threads>1 ? new ForkJoinPool(threads) : null;
+		final PollingScanner scanner = new PollingScanner(dir, filePattern, hotTime, fullScan, maxDepth, idleTime, pool);
+		try {
+			scanner.scan(null);
+			poll(scanner, sleepTime);
+		} finally {
+			if (pool!=null) pool.shutdown();
+		}
+	}
+
+	private void poll(PollingScanner scanner, long sleepTime) throws Exception {
 		
 		while(!stopped) {
 			
 			Thread.sleep(sleepTime); // Can be interrupted
 			
 			try {
-				Map<Path, FileTime> currentList = readFileList(dir);
-				
-				if (currentList.equals(fileList)) continue;
-				
-				// Otherwise we notify of new, modified and deleted files
-				
-				Map<Path, FileTime> tmp = 	new HashMap<Path, FileTime>(fileList);
-			    tmp.keySet().removeAll(currentList.keySet());
-			    if (tmp.size()>0)  broadcast(tmp, EventType.ENTRY_DELETE);
-	
-			    tmp = 	new HashMap<Path, FileTime>(currentList);
-			    tmp.keySet().removeAll(fileList.keySet());		    
-			    if (tmp.size()>0)  broadcast(tmp, EventType.ENTRY_CREATE);
-			    		    
-			    for (Path path : currentList.keySet()) {
-					if (fileList.containsKey(path)) {
-						final FileTime oldTime = fileList.get(path);
-						final FileTime newTime = currentList.get(path);
-						
-						if (!oldTime.equals(newTime)) {
-			                System.out.format("%s: %s\n", ENTRY_MODIFY, path);
-							broadcaster.broadcast(bean(ENTRY_MODIFY, path));
-						}
-					}
-				}
-			    
-			    fileList = currentList;
+				scanner.scan(listener);
 			} catch (java.nio.file.NoSuchFileException nfe) {
 				// Files can be deleted and not walked.
 				continue;
 			}
 		}
 	}
-	
-	private void broadcast(Map<Path, FileTime> fileList, EventType type) throws Exception {
-		
-	    for (Path path : fileList.keySet()) {
-            System.out.format("%s: %s\n", type, path);
-		    broadcaster.broadcast(bean(type, path));
-	    }
-	}
-
-	private Map<Path, FileTime> readFileList(final Path dir) throws IOException {
-		
-		final Map<Path, FileTime> ret = new HashMap<Path, FileTime>(31);
-		
-        Files.walkFileTree(dir, new SimpleFileVisitor<Path>()  {
-            @Override
-            public FileVisitResult preVisitDirectory(Path file, BasicFileAttributes attrs) throws IOException {
-            	if (file.equals(dir)) return FileVisitResult.CONTINUE;
-            	return FileVisitResult.SKIP_SUBTREE;
-            }
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (filePattern!=null) {
-                	if (!filePattern.matcher(file.getFileName().toString()).matches()) {
-                		return FileVisitResult.CONTINUE;
-                	}
-                }
-            	ret.put(file, attrs.lastModifiedTime());
-            	return FileVisitResult.CONTINUE;
-            }       
-        });
-
-		return ret;
-	}
 
 	private void startNio() throws Exception {
 		
@@ -255,60 +255,137 @@ public class Monitor implements IConsumerExtension{
 			dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
 		}
 
-		
-		System.out.println("Starting nio folder monitor @ '"+dir+"'. Recursive is "+(recursive?"on":"off"));
-		while(!stopped) {
-			
-			WatchKey key = watcher.take();
-			
-			List<WatchEvent<?>> events = key.pollEvents();
-			for (WatchEvent<?> event : events) {
-
-				Kind kind = event.kind();
-				if (kind == OVERFLOW)  continue;
+		final long reconcileTime = config.get("reconcileInterval") != null ? Long.parseLong(config.get("reconcileInterval")) : 0L;
+		final int  threads       = config.get("pollThreads") != null ? Integer.parseInt(config.get("pollThreads")) : 4;
 
-				WatchEvent<?> ev = (WatchEvent<?>)event;
-				Object   context = ev.context();
-				if (!(context instanceof Path)) continue;
-
-				Path name  = (Path)context;
-				Path child = dir.resolve(name);
-				try {
-
-					if (filePattern!=null) {
-						if (!filePattern.matcher(child.getFileName().toString()).matches()) {
-							continue;
+		// A snapshot of the tree, to find the events lost when the queue overflows.
+		final ForkJoinPool   pool       = recursive && threads>1 ? new ForkJoinPool(threads) : null;
+		final Reconciler     reconciler = new Reconciler(new PollingScanner(dir, filePattern, 0, 0, recursive ? Integer.MAX_VALUE : 0, 0, pool), listener, 100000);
+		final Set<Path>      lost       = new HashSet<Path>(7);
+		try {
+			try {
+				reconciler.start();
+			} catch (IOException ne) {
+				logger.warn("Cannot take the snapshot of '"+dir+"', lost events will not be found until it is rescanned", ne);
+			}
+			
+			System.out.println("Starting nio folder monitor @ '"+dir+"'. Recursive is "+(recursive?"on":"off"));
+			long    reconciled = System.currentTimeMillis();
+			boolean all        = false;
+			while(!stopped) {
+				
+				if (reconcileTime>0 && System.currentTimeMillis()-reconciled>=reconcileTime) all = true;
+
+				// The directories to rescan are rescanned when the keys ready have been read,
+				// so that the events in them are not found as lost.
+				final boolean rescan = all || !lost.isEmpty() || reconciler.isFull();
+				WatchKey key = rescan          ? watcher.poll()
+						     : reconcileTime>0 ? watcher.poll(Math.max(1, reconciled+reconcileTime-System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+						                       : watcher.take();
+				if (key==null) {
+					if (all) {
+						reconcile(reconciler, null);
+						reconciled = System.currentTimeMillis();
+						all        = false;
+						lost.clear();
+					} else if (!lost.isEmpty()) {
+						reconcile(reconciler, lost);
+						lost.clear();
+					}
+					if (reconciler.isFull()) reconcile(reconciler, reconciler.getSentDirectories());
+					continue;
+				}
+				
+				final Path watched = (Path)key.watchable();
+				List<WatchEvent<?>> events = key.pollEvents();
+				for (WatchEvent<?> event : events) {
+	
+					Kind kind = event.kind();
+					if (kind == OVERFLOW) {
+						logger.warn("Events have been lost in '"+watched+"', it will be rescanned");
+						lost.add(watched);
+						continue;
+					}
+	
+					WatchEvent<?> ev = (WatchEvent<?>)event;
+					Object   context = ev.context();
+					if (!(context instanceof Path)) continue;
+	
+					Path name  = (Path)context;
+					Path child = watched.resolve(name);
+					try {
+	
+						if (filePattern!=null) {
+							if (!filePattern.matcher(child.getFileName().toString()).matches()) {
+								continue;
+							}
 						}
+	
+						reconciler.fileChanged(EventType.valueOf(kind.name()), child);
+	
+					} finally {
+	
+		                if (recursive && (kind == ENTRY_CREATE)) {
+		                	if (Files.isDirectory(child)) {
+		                		registerAll(child);
+		                		lost.add(child); // Files may have been created before it was watched
+		                	}
+		                }
 					}
-
-					// print out event
-					System.out.format("%s: %s\n", kind, child);
-					StatusBean bean = bean(kind, child);
-
-					broadcaster.broadcast(bean);
-
-				} finally {
-
-	                if (recursive && (kind == ENTRY_CREATE)) {
-	                	if (Files.isDirectory(child)) {
-	                		registerAll(child);
-	                	}
-	                }
+	                
 				}
-                
+				
+				boolean valid = key.reset();
+			    if (!valid) {
+			    	if (watched.equals(dir)) throw new Exception("Cannot monitor '"+key+"'");
+			    	lost.add(watched.getParent()); // A sub-directory has been deleted, the rescan finds its files
+			    }
 			}
-			
-			boolean valid = key.reset();
-		    if (!valid) throw new Exception("Cannot monitor '"+key+"'");
+		} finally {
+			if (pool!=null) pool.shutdown();
 		}
 		System.out.println("Finished folder monitor @ '"+dir+"'");
 	}
 
-	private StatusBean bean(Kind kind, Path child) throws IOException {
-		return bean(EventType.valueOf(kind.name()), child);
+	/**
+	 * Sends the events which the watch service has lost.
+	 * @param reconciler
+	 * @param dirs to rescan, or null for all
+	 */
+	private void reconcile(Reconciler reconciler, Collection<Path> dirs) throws Exception {
+		try {
+			final int missed = dirs!=null ? reconciler.rescan(dirs) : reconciler.rescan();
+			if (missed>0) logger.warn("Found "+missed+" events which were lost in '"+dir+"'");
+		} catch (IOException ne) {
+			// A directory which cannot be read is skipped by the scanner, the next rescan tries again.
+			logger.warn("Cannot rescan '"+dir+"'", ne);
+		}
 	}
-	
-	private StatusBean bean(EventType type, Path child) throws IOException {
+
+	/**
+	 * Sends the events which have passed the debouncer and readiness gate, if there are any.
+	 */
+	private class Broadcast implements PollingScanner.IScanListener, ReadinessGate.IGateListener {
+		@Override
+		public void fileChanged(EventType type, Path file) throws Exception {
+			fileChanged(type, file, null);
+		}
+		@Override
+		public void fileChanged(EventType type, Path file, boolean ready) throws Exception {
+			fileChanged(type, file, Boolean.valueOf(ready));
+		}
+		private void fileChanged(EventType type, Path file, Boolean ready) throws Exception {
+            System.out.format("%s: %s\n", type, file);
+		    broadcaster.broadcast(bean(type, file, ready));
+		}
+	}
+
+	/**
+	 * @param type
+	 * @param child
+	 * @param ready if the readiness of files is checked, otherwise null
+	 */
+	private StatusBean bean(EventType type, Path child, Boolean ready) throws IOException {
 		
 		StatusBean bean = new StatusBean();
 		bean.setStatus(Status.NONE);
@@ -335,6 +412,7 @@ public class Monitor implements IConsumerExtension{
 		bean.setProperty("file_dir",   newFile.getParent());
 		bean.setProperty("event_type", type.name());
 		bean.setProperty("is_file",    String.valueOf(newFile.isFile()));
+		if (ready!=null) bean.setProperty("file_ready", ready.toString());
 		
 		if (newFile.exists()) {
 		
@@ -379,6 +457,9 @@ public class Monitor implements IConsumerExtension{
 		try {
 			System.out.println("Stopping folder monitor @ '"+dir+"'");
 			if (watcher!=null) watcher.close();
+			// The debouncer flushes into the gate, which sends what it holds before the disconnect.
+			if (debouncer!=null) debouncer.dispose();
+			if (gate!=null) gate.dispose();
 			stopped = true;
 			disconnect();
 			Thread.sleep(2000);
@@ -0,0 +1,472 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.foldermonitor;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the files created, modified and deleted in a directory since the
+ * last scan, doing as little work as it can for a directory of many files.
+ *
+ * The directory is only listed again if its own modified time has changed,
+ * which it does when a file is created, deleted or renamed in it. The
+ * listing is sorted and compared with the last one in one pass, and only
+ * new files are read. The names and modified times are kept in sorted
+ * arrays rather than in a map of Paths.
+ *
+ * Writing to a file does not change the modified time of its directory, so
+ * files modified within the last hotTime are read on every scan and all
+ * files are read on a full scan, every fullScanInterval.
+ *
+ * Sub-directories are scanned to maxDepth, each in the same way, and are
+ * scanned in parallel if there is a pool. A directory in which nothing has
+ * changed for idleInterval is then only scanned every idleInterval, so
+ * that the parts of a large tree which are finished cost little to watch.
+ * Links to directories are not followed. A directory which cannot be read
+ * is skipped, keeping what was found in it, until it can be read again.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class PollingScanner {
+
+	private static final Logger logger = LoggerFactory.getLogger(PollingScanner.class);
+
+	/**
+	 * Told about each change found by a scan.
+	 */
+	public interface IScanListener {
+		void fileChanged(EventType type, Path file) throws Exception;
+	}
+
+	/**
+	 * A directory modified this close to the time it was listed is listed
+	 * again, because another change in the same tick of the file system's
+	 * clock would not change its modified time.
+	 */
+	private static final long RACY_TIME = 2000;
+
+	private static final long     DIRECTORY = Long.MIN_VALUE;   // The modified time of a sub-directory, which is not reported
+	private static final long     GONE      = Long.MIN_VALUE+1; // Deleted after it was listed
+	private static final long     IGNORED   = Long.MIN_VALUE+2; // Not matching the pattern, kept when recursive to know it is not a directory
+	private static final String[] NO_NAMES  = new String[0];
+	private static final long[]   NO_TIMES  = new long[0];
+	private static final int[]    NO_HOT    = new int[0];
+
+	private final Path         root;
+	private final Pattern      filePattern;
+	private final long         hotTime;
+	private final long         fullScanInterval;
+	private final int          maxDepth;
+	private final long         idleInterval;
+	private final ForkJoinPool pool;
+
+	private Directory tree;
+
+	/**
+	 * @param dir to scan
+	 * @param filePattern of the names of files to report, may be null
+	 * @param hotTime ms for which a modified file is read on every scan
+	 * @param fullScanInterval ms between scans which read all files
+	 */
+	public PollingScanner(Path dir, Pattern filePattern, long hotTime, long fullScanInterval) {
+		this(dir, filePattern, hotTime, fullScanInterval, 0, 0, null);
+	}
+
+	/**
+	 * @param dir to scan
+	 * @param filePattern of the names of files to report, may be null
+	 * @param hotTime ms for which a modified file is read on every scan
+	 * @param fullScanInterval ms between scans which read all files
+	 * @param maxDepth of the sub-directories scanned, 0 for dir only
+	 * @param idleInterval ms between scans of a directory in which nothing has changed for this long, 0 to scan it every time
+	 * @param pool to scan directories in parallel, may be null
+	 */
+	public PollingScanner(Path dir, Pattern filePattern, long hotTime, long fullScanInterval, int maxDepth, long idleInterval, ForkJoinPool pool) {
+		this.root             = dir;
+		this.filePattern      = filePattern;
+		this.hotTime          = hotTime;
+		this.fullScanInterval = fullScanInterval;
+		this.maxDepth         = maxDepth;
+		this.idleInterval     = idleInterval;
+		this.pool             = pool;
+	}
+
+	/**
+	 * Scans the directories. The first scan finds the files which are there
+	 * without telling the listener about them. The listener is called by
+	 * the thread calling scan.
+	 *
+	 * @param listener
+	 * @throws Exception from the listener
+	 */
+	public void scan(IScanListener listener) throws Exception {
+
+		if (tree==null) tree = new Directory(root, 0, false);
+		scan(tree, false);
+		tree.notify(listener);
+	}
+
+	/**
+	 * Scans a directory and its sub-directories now, for instance because
+	 * events from it have been lost.
+	 *
+	 * @param listener
+	 * @param dir in the tree scanned, if it is not known yet the nearest directory above it is scanned
+	 * @param full true to read all of the files rather than only the new and hot ones
+	 * @return the directory scanned
+	 * @throws Exception from the listener
+	 */
+	public Path scan(IScanListener listener, Path dir, boolean full) throws Exception {
+
+		if (tree==null) {
+			scan(listener);
+			return root;
+		}
+		Directory node = tree;
+		if (dir.startsWith(root)) {
+			for (Path name : root.relativize(dir)) {
+				final Directory child = node.children.get(name.toString());
+				if (child==null) break;
+				node = child;
+			}
+		}
+		scan(node, full);
+		tree.notify(listener);
+		return node.path;
+	}
+
+	private void scan(Directory dir, boolean force) {
+		final long now = System.currentTimeMillis();
+		if (pool!=null) {
+			pool.invoke(new ScanTask(dir, now, force));
+		} else {
+			scan(dir, now, force);
+		}
+	}
+
+	private void scan(Directory dir, long now, boolean force) {
+		dir.scan(now, force);
+		for (Directory child : dir.getChildren()) scan(child, now, force);
+	}
+
+	/**
+	 * @return the number of files known, not including directories.
+	 */
+	public int getFileCount() {
+		return tree!=null ? tree.getFileCount() : 0;
+	}
+
+	private class ScanTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Directory dir;
+		private final long      now;
+		private final boolean   force;
+
+		ScanTask(Directory dir, long now, boolean force) {
+			this.dir   = dir;
+			this.now   = now;
+			this.force = force;
+		}
+
+		@Override
+		protected void compute() {
+			dir.scan(now, force);
+			final Collection<Directory> children = dir.getChildren();
+			if (children.isEmpty()) return;
+			final List<ScanTask> tasks = new ArrayList<ScanTask>(children.size());
+			for (Directory child : children) tasks.add(new ScanTask(child, now, force));
+			invokeAll(tasks);
+		}
+	}
+
+	private static final class Change {
+		final EventType type;
+		final Path      path;
+		Change(EventType type, Path path) {
+			this.type = type;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * The files of one directory, which is scanned by one thread at a time.
+	 */
+	private final class Directory {
+
+		private final Path path;
+		private final int  depth;
+
+		private boolean  report;       // The changes found are reported, false for the first scan of the tree.
+		private boolean  unreadable;   // The last scan failed, so it has been logged.
+		private long     dirModified = DIRECTORY;
+		private long     listed;
+		private long     lastFullScan;
+		private long     lastScan;
+		private long     lastChange;
+		private String[] names    = NO_NAMES;  // sorted
+		private long[]   modified = NO_TIMES;  // of names
+		private int[]    hot      = NO_HOT;    // indices of names modified within hotTime
+
+		private Map<String, Directory> children = Collections.emptyMap();
+		private List<Change>           changes;
+
+		Directory(Path path, int depth, boolean report) {
+			this.path   = path;
+			this.depth  = depth;
+			this.report = report;
+		}
+
+		Collection<Directory> getChildren() {
+			return children.isEmpty() ? Collections.<Directory>emptyList() : new ArrayList<Directory>(children.values());
+		}
+
+		/**
+		 * Scans this directory and not its children. If it cannot be read what
+		 * was found by the last scan is kept.
+		 * @param force true to scan now and read all of the files
+		 */
+		void scan(long now, boolean force) {
+
+			final boolean full = force || now-lastFullScan>=fullScanInterval;
+			final boolean idle = dirModified!=DIRECTORY && now-lastChange>=idleInterval;
+			if (idle && !full && hot.length==0 && now-lastScan<idleInterval) return;
+			lastScan = now;
+			if (full) lastFullScan = now;
+
+			final int count = changes!=null ? changes.size() : 0;
+			try {
+				final long current = Files.getLastModifiedTime(path).toMillis();
+				if (current!=dirModified || listed-current<RACY_TIME) {
+					final String[] listing = list();
+					dirModified = current;
+					listed      = now;
+					merge(listing, full, now);
+
+				} else if (full) {
+					for (int i = 0; i < names.length; i++) check(i);
+					hot = findHot(now);
+
+				} else if (hot.length>0) {
+					for (int i : hot) check(i);
+					hot = stillHot(now);
+				}
+
+				if (unreadable) logger.info("'"+path+"' can be read again");
+				unreadable = false;
+
+			} catch (NoSuchFileException ne) {
+				// It may be created again, or the scan of its parent finds that it has gone.
+			} catch (IOException ne) {
+				if (!unreadable) logger.warn("Cannot read '"+path+"', it is skipped until it can be", ne);
+				unreadable = true;
+			}
+			if (changes!=null && changes.size()>count) lastChange = now;
+			if (dirModified!=DIRECTORY) report = true;
+		}
+
+		private String[] list() throws IOException {
+			final boolean recursive = depth<maxDepth;
+			final List<String> ret = new ArrayList<String>(Math.max(names.length, 31));
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+				for (Path file : stream) {
+					final String name = file.getFileName().toString();
+					// Sub-directories do not have to match
+					if (!recursive && filePattern!=null && !filePattern.matcher(name).matches()) continue;
+					ret.add(name);
+				}
+			}
+			final String[] listing = ret.toArray(new String[ret.size()]);
+			Arrays.sort(listing);
+			return listing;
+		}
+
+		/**
+		 * Compares the sorted listing with the last one. The files are read
+		 * first, so that nothing is changed if one of them cannot be.
+		 */
+		private void merge(String[] listing, boolean full, long now) throws IOException {
+
+			final long[] read = new long[listing.length];
+			for (int i = 0, j = 0; j < listing.length; j++) {
+				while(i<names.length && names[i].compareTo(listing[j])<0) ++i;
+				final boolean known = i<names.length && names[i].equals(listing[j]);
+				if (!known || modified[i]==GONE || isFile(modified[i]) && (full || now-modified[i]<hotTime)) {
+					read[j] = read(listing[j]);
+				}
+			}
+
+			final long[] times = new long[listing.length];
+			int i = 0, j = 0;
+			while(i<names.length || j<listing.length) {
+
+				final int cmp = i>=names.length ? 1 : j>=listing.length ? -1 : names[i].compareTo(listing[j]);
+				if (cmp<0) { // Deleted
+					if (isFile(modified[i])) add(EventType.ENTRY_DELETE, names[i]);
+					if (modified[i]==DIRECTORY) removeChild(names[i]);
+					++i;
+
+				} else if (cmp>0) { // Created
+					times[j] = created(listing[j], read[j]);
+					++j;
+
+				} else {
+					times[j] = modified[i];
+					if (times[j]==GONE) { // Was deleted while listed, and is back
+						times[j] = created(listing[j], read[j]);
+
+					} else if (isFile(times[j]) && (full || now-times[j]<hotTime)) {
+						final long time = read[j];
+						if (isFile(time) && time!=modified[i]) {
+							times[j] = time;
+							add(EventType.ENTRY_MODIFY, listing[j]);
+						}
+					}
+					++i;
+					++j;
+				}
+			}
+			names    = listing;
+			modified = times;
+			hot      = findHot(now);
+		}
+
+		private long created(String name, long time) {
+			if (isFile(time)) add(EventType.ENTRY_CREATE, name);
+			if (time==DIRECTORY && depth<maxDepth) {
+				if (children.isEmpty()) children = new TreeMap<String, Directory>();
+				children.put(name, new Directory(path.resolve(name), depth+1, report));
+			}
+			return time;
+		}
+
+		private void check(int index) throws IOException {
+			if (!isFile(modified[index])) return;
+			final long time = read(names[index]);
+			if (isFile(time) && time!=modified[index]) { // If it has gone the next listing finds it
+				modified[index] = time;
+				add(EventType.ENTRY_MODIFY, names[index]);
+			}
+		}
+
+		private void removeChild(String name) {
+			final Directory child = children.remove(name);
+			if (child==null) return;
+			child.deleted();
+			if (child.changes!=null) {
+				if (changes==null) changes = new ArrayList<Change>(child.changes.size());
+				changes.addAll(child.changes);
+			}
+		}
+
+		/**
+		 * The directory has gone, and so have its files.
+		 */
+		private void deleted() {
+			for (int i = 0; i < names.length; i++) {
+				if (isFile(modified[i])) add(EventType.ENTRY_DELETE, names[i]);
+			}
+			for (String name : new ArrayList<String>(children.keySet())) removeChild(name);
+			names    = NO_NAMES;
+			modified = NO_TIMES;
+			hot      = NO_HOT;
+		}
+
+		private void add(EventType type, String name) {
+			if (!report) return;
+			if (changes==null) changes = new ArrayList<Change>(7);
+			changes.add(new Change(type, path.resolve(name)));
+		}
+
+		void notify(IScanListener listener) throws Exception {
+			if (changes!=null) {
+				final List<Change> found = changes;
+				changes = null;
+				for (Change change : found) listener.fileChanged(change.type, change.path);
+			}
+			for (Directory child : children.values()) child.notify(listener);
+		}
+
+		int getFileCount() {
+			int count = 0;
+			for (long time : modified) if (isFile(time)) ++count;
+			for (Directory child : children.values()) count+=child.getFileCount();
+			return count;
+		}
+
+		private int[] findHot(long now) {
+			int count = 0;
+			int[] ret = NO_HOT;
+			for (int i = 0; i < modified.length; i++) {
+				if (!isFile(modified[i]) || now-modified[i]>=hotTime) continue;
+				if (count==ret.length) ret = Arrays.copyOf(ret, Math.max(16, count*2));
+				ret[count++] = i;
+			}
+			return count==ret.length ? ret : Arrays.copyOf(ret, count);
+		}
+
+		/**
+		 * @return the hot files which are still hot, without reading all of the times.
+		 */
+		private int[] stillHot(long now) {
+			int count = 0;
+			for (int i : hot) if (now-modified[i]<hotTime) hot[count++] = i;
+			return count==hot.length ? hot : Arrays.copyOf(hot, count);
+		}
+
+		/**
+		 * @return the modified time of the file, or DIRECTORY, IGNORED or GONE.
+		 * A link to a directory is IGNORED so that a loop of links is not followed.
+		 */
+		private long read(String name) throws IOException {
+			final Path file = path.resolve(name);
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				if (attrs.isSymbolicLink()) {
+					try {
+						attrs = Files.readAttributes(file, BasicFileAttributes.class);
+					} catch (IOException ne) {
+						// A broken link or a loop, reported as the link.
+					}
+					if (attrs.isDirectory()) return IGNORED;
+				}
+				if (attrs.isDirectory()) return DIRECTORY;
+				if (filePattern!=null && !filePattern.matcher(name).matches()) return IGNORED;
+				return attrs.lastModifiedTime().toMillis();
+			} catch (NoSuchFileException ne) {
+				return GONE;
+			}
+		}
+	}
+
+	private static boolean isFile(long time) {
+		return time!=DIRECTORY && time!=GONE && time!=IGNORED;
+	}
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.foldermonitor;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dawnsci.commandserver.core.util.Inotify;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the create event of a file until the file is complete, so that
+ * the job started for it does not read a file which is still being
+ * written. If the file is not complete within the timeout the event is
+ * sent anyway, marked as not ready.
+ *
+ * Whether a file is complete is decided by one of these:
+ *
+ *   stable   its size and modified time have not changed for a number of checks
+ *   marker   a marker file, the name of the file with a suffix such as .done, exists
+ *   hdf5     the HDF5 superblock says that the file is not open for writing, for
+ *            other files or old superblocks as stable
+ *   inotify  the file has been closed after writing on this host, or as stable for
+ *            files written by other hosts
+ *
+ * Modify events of a held file are dropped, a delete drops the create.
+ * Other events are sent at once. When the gate is disposed the creates
+ * which it holds are sent, marked as not ready.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class ReadinessGate implements PollingScanner.IScanListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(ReadinessGate.class);
+
+	/**
+	 * Told about the events which have passed the gate.
+	 */
+	public interface IGateListener {
+		/**
+		 * @param type
+		 * @param file
+		 * @param ready false if a create was sent because the file was not complete within the timeout.
+		 */
+		void fileChanged(EventType type, Path file, boolean ready) throws Exception;
+	}
+
+	/**
+	 * Decides whether a file is complete.
+	 */
+	public interface IReadiness {
+
+		/**
+		 * Called when the create event of the file is held.
+		 */
+		void held(Path file);
+
+		/**
+		 * Called when the create of the file is no longer held, because it
+		 * has been sent or the file has been deleted.
+		 */
+		void released(Path file);
+
+		/**
+		 * Called on every check of the gate, before the held files are
+		 * checked, including when none are held.
+		 */
+		void check();
+
+		/**
+		 * @param file
+		 * @param state of the file, kept between checks
+		 * @return true if the file is complete
+		 */
+		boolean isReady(Path file, FileState state) throws IOException;
+
+		void dispose();
+	}
+
+	/**
+	 * What was seen of a held file the last time it was checked.
+	 */
+	public static final class FileState {
+		private final long held;
+		private long size = -1;
+		private long modified;
+		private int  stableCount;
+
+		FileState(long held) {
+			this.held = held;
+		}
+
+		/**
+		 * @return the number of checks in a row which have seen the same size and modified time.
+		 */
+		int update(BasicFileAttributes attrs) {
+			if (attrs.size()==size && attrs.lastModifiedTime().toMillis()==modified) {
+				++stableCount;
+			} else {
+				size        = attrs.size();
+				modified    = attrs.lastModifiedTime().toMillis();
+				stableCount = 0;
+			}
+			return stableCount;
+		}
+	}
+
+	/**
+	 * @param strategy stable, marker, hdf5 or inotify
+	 * @param polls the number of checks over which the file must not change, for stable
+	 * @param markerSuffix added to the name of the file to give its marker file, for marker
+	 * @return the readiness
+	 */
+	public static IReadiness createReadiness(String strategy, int polls, String markerSuffix) {
+		if ("stable".equals(strategy))  return new Stable(polls);
+		if ("marker".equals(strategy))  return new Marker(markerSuffix);
+		if ("hdf5".equals(strategy))    return new Hdf5(new Stable(polls));
+		if ("inotify".equals(strategy)) {
+			if (Inotify.isAvailable()) {
+				try {
+					return new ClosedAfterWrite(new Stable(polls));
+				} catch (IOException ne) {
+					logger.warn("Cannot use inotify, files are complete when stable", ne);
+				}
+			} else {
+				logger.warn("inotify is not available, files are complete when stable");
+			}
+			return new Stable(polls);
+		}
+		throw new IllegalArgumentException("Unknown file readiness '"+strategy+"', use stable, marker, hdf5 or inotify");
+	}
+
+	private final IReadiness             readiness;
+	private final long                   interval;
+	private final long                   timeout;
+	private final IGateListener          listener;
+	private final Map<Path, FileState>   pending;
+	private final Thread                 thread;
+
+	private volatile boolean disposed;
+
+	/**
+	 * @param readiness which decides when a file is complete
+	 * @param interval ms between checks of the held files
+	 * @param timeout ms after which a create is sent even if the file is not complete
+	 * @param listener
+	 */
+	public ReadinessGate(IReadiness readiness, long interval, long timeout, IGateListener listener) {
+		this.readiness = readiness;
+		this.interval  = interval;
+		this.timeout   = timeout;
+		this.listener  = listener;
+		this.pending   = new LinkedHashMap<Path, FileState>(89);
+		this.thread    = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(!disposed) {
+						Thread.sleep(ReadinessGate.this.interval);
+						check();
+					}
+				} catch (InterruptedException ne) {
+					// Disposed
+				}
+			}
+		}, "Folder monitor readiness");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void fileChanged(EventType type, Path file) throws Exception {
+
+		synchronized (pending) {
+			if (type==EventType.ENTRY_CREATE && !Files.isDirectory(file) && !disposed) {
+				pending.put(file, new FileState(System.currentTimeMillis()));
+				readiness.held(file);
+				return;
+			}
+			if (pending.containsKey(file)) {
+				if (type==EventType.ENTRY_DELETE) {
+					pending.remove(file);
+					readiness.released(file);
+				}
+				return;
+			}
+		}
+		listener.fileChanged(type, file, type!=EventType.ENTRY_CREATE || !disposed);
+	}
+
+	/**
+	 * @return the number of files whose create is held.
+	 */
+	public int getPendingCount() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Checks the held files and sends the creates of those which are complete or have timed out.
+	 */
+	public void check() {
+
+		readiness.check();
+
+		final List<Path> files;
+		synchronized (pending) {
+			if (pending.isEmpty()) return;
+			files = new ArrayList<Path>(pending.keySet());
+		}
+
+		final long now = System.currentTimeMillis();
+		for (Path file : files) {
+			final FileState state;
+			synchronized (pending) {
+				state = pending.get(file);
+			}
+			if (state==null) continue; // Deleted
+
+			Boolean ready;
+			try {
+				ready = readiness.isReady(file, state) ? Boolean.TRUE : null;
+			} catch (NoSuchFileException ne) {
+				ready = null; // The delete event drops it
+			} catch (IOException ne) {
+				logger.debug("Cannot check "+file, ne);
+				ready = null;
+			}
+			if (ready==null && now-state.held>=timeout) {
+				logger.warn(file+" was not complete after "+timeout+" ms");
+				ready = Boolean.FALSE;
+			}
+			if (ready==null) continue;
+
+			synchronized (pending) {
+				if (pending.remove(file)==null) continue;
+			}
+			readiness.released(file);
+			send(file, ready);
+		}
+	}
+
+	private void send(Path file, boolean ready) {
+		try {
+			listener.fileChanged(EventType.ENTRY_CREATE, file, ready);
+		} catch (Exception ne) {
+			logger.error("Cannot send "+EventType.ENTRY_CREATE+" for "+file, ne);
+		}
+	}
+
+	/**
+	 * Stops the gate and sends the creates held, marked as not ready. A
+	 * create which arrives afterwards is sent at once, also not ready.
+	 */
+	public void dispose() {
+		disposed = true;
+		thread.interrupt();
+		final List<Path> files;
+		synchronized (pending) {
+			files = new ArrayList<Path>(pending.keySet());
+			pending.clear();
+		}
+		for (Path file : files) {
+			readiness.released(file);
+			send(file, false);
+		}
+		readiness.dispose();
+	}
+
+	/**
+	 * Complete when the size and modified time have not changed for polls checks.
+	 */
+	private static class Stable implements IReadiness {
+
+		private final int polls;
+
+		Stable(int polls) {
+			this.polls = polls;
+		}
+
+		@Override
+		public void held(Path file) {
+			// Nothing to do
+		}
+
+		@Override
+		public void released(Path file) {
+			// Nothing to do
+		}
+
+		@Override
+		public void check() {
+			// Nothing to do
+		}
+
+		@Override
+		public boolean isReady(Path file, FileState state) throws IOException {
+			return state.update(Files.readAttributes(file, BasicFileAttributes.class))>=polls;
+		}
+
+		@Override
+		public void dispose() {
+			// Nothing to do
+		}
+	}
+
+	/**
+	 * Complete when the marker file exists.
+	 */
+	private static class Marker extends Stable {
+
+		private final String suffix;
+
+		Marker(String suffix) {
+			super(0);
+			this.suffix = suffix;
+		}
+
+		@Override
+		public boolean isReady(Path file, FileState state) throws IOException {
+			final String name = file.getFileName().toString();
+			if (name.endsWith(suffix)) return true; // The marker of another file
+			return Files.exists(file.resolveSibling(name+suffix));
+		}
+	}
+
+	/**
+	 * Complete when the file consistency flags of a version 2 or 3 superblock
+	 * are clear. The library sets them while the file is open for writing,
+	 * including SWMR writing. The superblock may be at 0, 512, 1024, 2048...
+	 */
+	private static class Hdf5 implements IReadiness {
+
+		private static final byte[] SIGNATURE = {(byte)0x89, 'H', 'D', 'F', '\r', '\n', 0x1a, '\n'};
+
+		private final IReadiness other;
+
+		Hdf5(IReadiness other) {
+			this.other = other;
+		}
+
+		@Override
+		public void held(Path file) {
+			other.held(file);
+		}
+
+		@Override
+		public void released(Path file) {
+			other.released(file);
+		}
+
+		@Override
+		public void check() {
+			other.check();
+		}
+
+		@Override
+		public boolean isReady(Path file, FileState state) throws IOException {
+			final int flags = readFlags(file);
+			if (flags<0) return other.isReady(file, state);
+			return flags==0;
+		}
+
+		/**
+		 * @return the consistency flags, or -1 if the file has no superblock with them.
+		 */
+		private static int readFlags(Path file) throws IOException {
+			try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+				final byte[] block = new byte[12];
+				for (long offset = 0; offset+block.length<=raf.length(); offset = offset==0 ? 512 : offset*2) {
+					raf.seek(offset);
+					raf.readFully(block);
+					if (!startsWith(block, SIGNATURE)) continue;
+					final int version = block[8];
+					return version>=2 ? block[11] & 0xff : -1;
+				}
+				return -1;
+			}
+		}
+
+		private static boolean startsWith(byte[] block, byte[] start) {
+			for (int i = 0; i < start.length; i++) if (block[i]!=start[i]) return false;
+			return true;
+		}
+
+		@Override
+		public void dispose() {
+			other.dispose();
+		}
+	}
+
+	/**
+	 * Complete when inotify has seen the file closed after writing. Files
+	 * closed before they were held, or written by other hosts, are decided
+	 * by the other readiness, as are all of the files held when inotify's
+	 * queue overflows. Only the directories of held files are watched, and
+	 * the events are read on every check so that the queue does not fill.
+	 */
+	private static class ClosedAfterWrite implements IReadiness, Inotify.IEventListener {
+
+		private static final class Watch {
+			final int wd;
+			int       held; // The number of files held in the directory
+			Watch(int wd) {
+				this.wd = wd;
+			}
+		}
+
+		private final IReadiness           other;
+		private final Inotify              inotify;
+		private final Map<Path, Watch>     watches; // Of the directories
+		private final Map<Integer, Path>   dirs;
+		private final Set<Path>            held;
+		private final Set<Path>            closed;  // Of the held files
+
+		ClosedAfterWrite(IReadiness other) throws IOException {
+			this.other   = other;
+			this.inotify = new Inotify();
+			this.watches = new HashMap<Path, Watch>(7);
+			this.dirs    = new HashMap<Integer, Path>(7);
+			this.held    = new HashSet<Path>(31);
+			this.closed  = new HashSet<Path>(31);
+		}
+
+		@Override
+		public synchronized void held(Path file) {
+			other.held(file);
+			if (!held.add(file)) return;
+			final Path dir   = file.getParent();
+			Watch      watch = watches.get(dir);
+			if (watch==null) {
+				int wd;
+				try {
+					wd = inotify.addWatch(dir.toString(), Inotify.IN_CLOSE_WRITE | Inotify.IN_MOVED_TO);
+					dirs.put(wd, dir);
+				} catch (IOException ne) {
+					logger.warn("Cannot watch "+dir+" for files being closed", ne);
+					wd = -1; // Not tried again while files are held in it
+				}
+				watch = new Watch(wd);
+				watches.put(dir, watch);
+			}
+			++watch.held;
+		}
+
+		@Override
+		public synchronized void released(Path file) {
+			other.released(file);
+			closed.remove(file);
+			if (!held.remove(file)) return;
+			final Path  dir   = file.getParent();
+			final Watch watch = watches.get(dir);
+			if (watch==null || --watch.held>0) return;
+			watches.remove(dir);
+			if (watch.wd>=0) {
+				inotify.removeWatch(watch.wd);
+				dirs.remove(watch.wd); // Events still queued for it are dropped
+			}
+		}
+
+		@Override
+		public synchronized void check() {
+			other.check();
+			inotify.read(this);
+		}
+
+		@Override
+		public synchronized boolean isReady(Path file, FileState state) throws IOException {
+			if (closed.remove(file)) return true;
+			return other.isReady(file, state);
+		}
+
+		@Override
+		public void event(int wd, int mask, String name) {
+			if ((mask & Inotify.IN_Q_OVERFLOW)!=0) {
+				logger.warn("Files being closed have been lost, the files held are complete when stable");
+				return;
+			}
+			final Path dir = dirs.get(wd);
+			if (dir==null || name.length()==0) return;
+			final Path file = dir.resolve(name);
+			if (held.contains(file)) closed.add(file);
+		}
+
+		@Override
+		public synchronized void dispose() {
+			inotify.close();
+			other.dispose();
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.foldermonitor;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the events which a watch service has lost, for instance when the
+ * kernel's queue of events overflows during fast data collection.
+ *
+ * A snapshot of the watched tree is kept by a scanner. The events of the
+ * watch service are passed on through the reconciler, which remembers
+ * them until the next rescan. A rescan compares the tree with the snapshot
+ * and passes on the changes for which no event was sent: a create or
+ * modify is matched by either, a delete by a delete. The changes passed
+ * on are remembered in turn, so that the event of the watch service for
+ * one of them, if it comes late, is not passed on again.
+ *
+ * The events remembered are forgotten when the directories in which they
+ * happened are rescanned. When maxSent have been remembered isFull() is
+ * true, and getSentDirectories() are to be rescanned, rather than the tree.
+ * Rescan once the events which the watch service has ready have been
+ * passed on, so that they are not found as lost.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class Reconciler implements PollingScanner.IScanListener {
+
+	private final PollingScanner               snapshot;
+	private final PollingScanner.IScanListener listener;
+	private final int                          maxSent;
+	private final Map<Path, EventType>         sent;      // Since the last rescan
+	private final Map<Path, EventType>         rescanned; // Found by the last rescan
+	private final Map<Path, EventType>         found;     // By the rescan being made
+	private final PollingScanner.IScanListener missed;
+
+	private int missedCount;
+
+	/**
+	 * @param snapshot a scanner of the watched tree which reads all files on every scan
+	 * @param listener to which events are passed
+	 * @param maxSent the number of events remembered after which the whole tree is rescanned
+	 */
+	public Reconciler(PollingScanner snapshot, PollingScanner.IScanListener listener, int maxSent) {
+		this.snapshot = snapshot;
+		this.listener = listener;
+		this.maxSent  = maxSent;
+		this.sent      = new HashMap<Path, EventType>(89);
+		this.rescanned = new HashMap<Path, EventType>(89);
+		this.found     = new HashMap<Path, EventType>(89);
+		this.missed    = new PollingScanner.IScanListener() {
+			@Override
+			public void fileChanged(EventType type, Path file) throws Exception {
+				if (isSent(sent.get(file), type)) return;
+				++missedCount;
+				found.put(file, type);
+				Reconciler.this.listener.fileChanged(type, file);
+			}
+		};
+	}
+
+	/**
+	 * Takes the snapshot. Call after the directories are watched, so that
+	 * no file is created between the two without an event.
+	 *
+	 * @throws Exception from the scanner
+	 */
+	public void start() throws Exception {
+		snapshot.scan(null);
+	}
+
+	@Override
+	public void fileChanged(EventType type, Path file) throws Exception {
+		final boolean late = isSent(rescanned.remove(file), type);
+		sent.put(file, type);
+		if (!late) listener.fileChanged(type, file);
+	}
+
+	/**
+	 * Rescans the whole tree.
+	 *
+	 * @return the number of events which had been missed
+	 * @throws Exception from the listener
+	 */
+	public int rescan() throws Exception {
+		missedCount = 0;
+		found.clear();
+		try {
+			snapshot.scan(missed);
+			sent.clear();
+			rescanned.clear();
+		} finally {
+			rescanned.putAll(found);
+			found.clear();
+		}
+		return missedCount;
+	}
+
+	/**
+	 * Rescans the directories and their sub-directories.
+	 *
+	 * @param dirs whose events may have been lost
+	 * @return the number of events which had been missed
+	 * @throws Exception from the listener
+	 */
+	public int rescan(Collection<Path> dirs) throws Exception {
+		missedCount = 0;
+		for (Path dir : outermost(dirs)) {
+			found.clear();
+			try {
+				final Path scanned = snapshot.scan(missed, dir, true);
+				forget(sent.keySet(), scanned);
+				forget(rescanned.keySet(), scanned);
+			} finally {
+				rescanned.putAll(found);
+				found.clear();
+			}
+		}
+		return missedCount;
+	}
+
+	/**
+	 * @return the directories in which the events remembered happened, which
+	 * are rescanned so that the events can be forgotten without reading the
+	 * rest of the tree.
+	 */
+	public Set<Path> getSentDirectories() {
+		final Set<Path> dirs = new HashSet<Path>(89);
+		for (Path file : sent.keySet())      dirs.add(file.getParent());
+		for (Path file : rescanned.keySet()) dirs.add(file.getParent());
+		return dirs;
+	}
+
+	/**
+	 * @return true if maxSent events are remembered, and getSentDirectories() should be rescanned.
+	 */
+	public boolean isFull() {
+		return getSentCount()>=maxSent;
+	}
+
+	/**
+	 * @return the number of events remembered since the last rescan, including those which it found.
+	 */
+	public int getSentCount() {
+		return sent.size()+rescanned.size();
+	}
+
+	private static void forget(Set<Path> files, Path dir) {
+		for (Iterator<Path> it = files.iterator(); it.hasNext();) {
+			if (it.next().startsWith(dir)) it.remove();
+		}
+	}
+
+	private static boolean isSent(EventType sent, EventType type) {
+		if (sent==null) return false;
+		if (type==EventType.ENTRY_DELETE) return sent==EventType.ENTRY_DELETE;
+		return sent!=EventType.ENTRY_DELETE;
+	}
+
+	/**
+	 * @return the directories which are not inside another of them.
+	 */
+	private static List<Path> outermost(Collection<Path> dirs) {
+		final Set<Path>  all = new HashSet<Path>(dirs);
+		final List<Path> ret = new ArrayList<Path>(all.size());
+		for (Path dir : all) {
+			Path parent = dir.getParent();
+			while(parent!=null && !all.contains(parent)) parent = parent.getParent();
+			if (parent==null) ret.add(dir);
+		}
+		return ret;
+	}
+}
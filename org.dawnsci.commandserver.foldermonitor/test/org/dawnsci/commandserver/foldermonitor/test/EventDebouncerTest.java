@@ -0,0 +1,75 @@
+package org.dawnsci.commandserver.foldermonitor.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dawnsci.commandserver.foldermonitor.EventDebouncer;
+import org.dawnsci.commandserver.foldermonitor.EventType;
+import org.dawnsci.commandserver.foldermonitor.PollingScanner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the events of a file are merged into one, or none, and
+ * only sent once the file has been quiet for the window.
+ */
+public class EventDebouncerTest {
+
+	private List<String>   events;
+	private EventDebouncer debouncer;
+
+	@Before
+	public void create() {
+		events    = Collections.synchronizedList(new ArrayList<String>(7));
+		debouncer = new EventDebouncer(200, new PollingScanner.IScanListener() {
+			@Override
+			public void fileChanged(EventType type, Path file) throws Exception {
+				events.add(type+" "+file.getFileName());
+			}
+		});
+	}
+
+	@After
+	public void dispose() {
+		debouncer.dispose();
+	}
+
+	@Test
+	public void testWriteStorm() throws Exception {
+
+		final Path image = Paths.get("/scratch/image_0001.cbf");
+		debouncer.fileChanged(EventType.ENTRY_CREATE, image);
+		for (int i = 0; i < 10; i++) {
+			debouncer.fileChanged(EventType.ENTRY_MODIFY, image);
+			Thread.sleep(20);
+		}
+		assertTrue(events.isEmpty()); // Not quiet yet
+
+		Thread.sleep(500);
+		assertEquals("[ENTRY_CREATE image_0001.cbf]", events.toString());
+		assertEquals(0, debouncer.getPendingCount());
+	}
+
+	@Test
+	public void testMerged() throws Exception {
+
+		debouncer.fileChanged(EventType.ENTRY_CREATE, Paths.get("/scratch/temp.cbf"));
+		debouncer.fileChanged(EventType.ENTRY_DELETE, Paths.get("/scratch/temp.cbf"));
+
+		debouncer.fileChanged(EventType.ENTRY_MODIFY, Paths.get("/scratch/old.cbf"));
+		debouncer.fileChanged(EventType.ENTRY_DELETE, Paths.get("/scratch/old.cbf"));
+
+		debouncer.fileChanged(EventType.ENTRY_DELETE, Paths.get("/scratch/replaced.cbf"));
+		debouncer.fileChanged(EventType.ENTRY_CREATE, Paths.get("/scratch/replaced.cbf"));
+
+		debouncer.flush();
+		assertEquals("[ENTRY_DELETE old.cbf, ENTRY_MODIFY replaced.cbf]", events.toString());
+	}
+}
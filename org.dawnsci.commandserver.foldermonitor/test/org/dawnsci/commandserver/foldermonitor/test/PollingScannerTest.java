@@ -0,0 +1,161 @@
+package org.dawnsci.commandserver.foldermonitor.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+
+import org.dawnsci.commandserver.foldermonitor.EventType;
+import org.dawnsci.commandserver.foldermonitor.PollingScanner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the polling scanner finds created, modified and deleted
+ * files, including modifications which do not change the directory.
+ */
+public class PollingScannerTest {
+
+	private File         dir;
+	private List<String> events;
+	private PollingScanner.IScanListener listener;
+
+	@Before
+	public void create() throws Exception {
+		dir = File.createTempFile("scanner", "");
+		dir.delete();
+		dir.mkdirs();
+		events   = new ArrayList<String>(7);
+		listener = new PollingScanner.IScanListener() {
+			@Override
+			public void fileChanged(EventType type, Path file) throws Exception {
+				events.add(type+" "+file.getFileName());
+			}
+		};
+	}
+
+	@After
+	public void dispose() {
+		MonitorCreateFileTest.recursiveDelete(dir);
+	}
+
+	@Test
+	public void testCreateModifyDelete() throws Exception {
+
+		write("existing.mrc", 1);
+		final PollingScanner scanner = new PollingScanner(dir.toPath(), Pattern.compile(".*\\.mrc"), 60000, 60000);
+		scanner.scan(listener);
+		assertTrue(events.isEmpty());
+		assertEquals(1, scanner.getFileCount());
+
+		write("b.mrc", 1);
+		write("a.mrc", 1);
+		write("ignored.txt", 1);
+		new File(dir, "sub").mkdir();
+		scanner.scan(listener);
+		assertEquals("[ENTRY_CREATE a.mrc, ENTRY_CREATE b.mrc]", events.toString());
+		assertEquals(3, scanner.getFileCount());
+
+		// Writing to a file does not change its directory, a.mrc is hot.
+		events.clear();
+		final File a = write("a.mrc", 2);
+		a.setLastModified(System.currentTimeMillis()-1000);
+		scanner.scan(listener);
+		assertEquals("[ENTRY_MODIFY a.mrc]", events.toString());
+
+		events.clear();
+		new File(dir, "existing.mrc").delete();
+		scanner.scan(listener);
+		assertEquals("[ENTRY_DELETE existing.mrc]", events.toString());
+	}
+
+	@Test
+	public void testFullScan() throws Exception {
+
+		final File old = write("old.mrc", 1);
+		old.setLastModified(System.currentTimeMillis()-120000);
+		final PollingScanner scanner = new PollingScanner(dir.toPath(), null, 1000, 0);
+		scanner.scan(listener);
+
+		// Not hot, so only found by a full scan.
+		old.setLastModified(System.currentTimeMillis()-60000);
+		scanner.scan(listener);
+		assertEquals("[ENTRY_MODIFY old.mrc]", events.toString());
+	}
+
+	@Test
+	public void testRecursive() throws Exception {
+
+		final File visit = new File(dir, "visit");
+		new File(visit, "sample1").mkdirs();
+		write("visit/sample1/existing.mrc", 1);
+
+		final ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			final PollingScanner scanner = new PollingScanner(dir.toPath(), Pattern.compile(".*\\.mrc"), 60000, 60000, 2, 0, pool);
+			scanner.scan(listener);
+			assertTrue(events.isEmpty());
+			assertEquals(1, scanner.getFileCount());
+
+			// A new directory, and one deeper than maxDepth
+			new File(visit, "sample2/too_deep").mkdirs();
+			write("visit/sample2/new.mrc", 1);
+			write("visit/sample2/too_deep/deep.mrc", 1);
+			write("visit/sample1/second.mrc", 1);
+			scanner.scan(listener);
+			Collections.sort(events);
+			assertEquals("[ENTRY_CREATE new.mrc, ENTRY_CREATE second.mrc]", events.toString());
+
+			events.clear();
+			MonitorCreateFileTest.recursiveDelete(new File(visit, "sample1"));
+			scanner.scan(listener);
+			Collections.sort(events);
+			assertEquals("[ENTRY_DELETE existing.mrc, ENTRY_DELETE second.mrc]", events.toString());
+			assertEquals(1, scanner.getFileCount());
+
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testLinks() throws Exception {
+
+		final File visit = new File(dir, "visit");
+		visit.mkdirs();
+		write("visit/existing.mrc", 1);
+
+		// A loop, which is not followed, and a link to a file, which is reported.
+		final Path loop = Files.createSymbolicLink(new File(visit, "loop").toPath(), dir.toPath());
+		try {
+			final PollingScanner scanner = new PollingScanner(dir.toPath(), Pattern.compile(".*\\.mrc"), 60000, 60000, Integer.MAX_VALUE, 0, null);
+			scanner.scan(listener);
+			assertEquals(1, scanner.getFileCount());
+
+			Files.createSymbolicLink(new File(visit, "link.mrc").toPath(), new File(visit, "existing.mrc").toPath());
+			write("visit/new.mrc", 1);
+			scanner.scan(listener);
+			assertEquals("[ENTRY_CREATE link.mrc, ENTRY_CREATE new.mrc]", events.toString());
+			assertEquals(3, scanner.getFileCount());
+		} finally {
+			Files.delete(loop);
+		}
+	}
+
+	private File write(String name, int size) throws Exception {
+		final File file = new File(dir, name);
+		final FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[size]);
+		out.close();
+		return file;
+	}
+}
@@ -0,0 +1,188 @@
+package org.dawnsci.commandserver.foldermonitor.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dawnsci.commandserver.core.util.Inotify;
+import org.dawnsci.commandserver.foldermonitor.EventType;
+import org.dawnsci.commandserver.foldermonitor.ReadinessGate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that creates are held until the file is complete, by each way
+ * of deciding it, and are sent as not ready after the timeout.
+ */
+public class ReadinessGateTest {
+
+	private File          dir;
+	private List<String>  events;
+	private ReadinessGate gate;
+
+	@Before
+	public void create() throws Exception {
+		dir = File.createTempFile("gate", "");
+		dir.delete();
+		dir.mkdirs();
+		events = new ArrayList<String>(7);
+	}
+
+	@After
+	public void dispose() {
+		if (gate!=null) gate.dispose();
+		MonitorCreateFileTest.recursiveDelete(dir);
+	}
+
+	private void createGate(String strategy, long timeout) {
+		// Checked by the test rather than the thread of the gate.
+		gate = new ReadinessGate(ReadinessGate.createReadiness(strategy, 2, ".done"), 60000, timeout, new ReadinessGate.IGateListener() {
+			@Override
+			public void fileChanged(EventType type, Path file, boolean ready) throws Exception {
+				events.add(type+" "+file.getFileName()+" "+ready);
+			}
+		});
+	}
+
+	@Test
+	public void testStable() throws Exception {
+
+		createGate("stable", 60000);
+		final File image = write("image.cbf", new byte[10]);
+		gate.fileChanged(EventType.ENTRY_CREATE, image.toPath());
+		gate.fileChanged(EventType.ENTRY_MODIFY, image.toPath());
+
+		gate.check();
+		gate.check();
+		append(image);
+		gate.check(); // Changed
+		gate.check();
+		assertTrue(events.isEmpty());
+
+		gate.check();
+		assertEquals("[ENTRY_CREATE image.cbf true]", events.toString());
+	}
+
+	@Test
+	public void testMarkerAndDelete() throws Exception {
+
+		createGate("marker", 60000);
+		final File image = write("image.cbf", new byte[10]);
+		final File temp  = write("temp.cbf", new byte[10]);
+		gate.fileChanged(EventType.ENTRY_CREATE, image.toPath());
+		gate.fileChanged(EventType.ENTRY_CREATE, temp.toPath());
+		gate.fileChanged(EventType.ENTRY_DELETE, temp.toPath());
+		gate.check();
+		assertTrue(events.isEmpty());
+		assertEquals(1, gate.getPendingCount());
+
+		write("image.cbf.done", new byte[0]);
+		gate.check();
+		assertEquals("[ENTRY_CREATE image.cbf true]", events.toString());
+	}
+
+	@Test
+	public void testHdf5() throws Exception {
+
+		createGate("hdf5", 60000);
+		final byte[] superblock = {(byte)0x89, 'H', 'D', 'F', '\r', '\n', 0x1a, '\n', 3, 8, 8, 0x5, 0, 0, 0, 0};
+		final File file = write("data.h5", superblock);
+		gate.fileChanged(EventType.ENTRY_CREATE, file.toPath());
+		gate.check();
+		assertTrue(events.isEmpty()); // Open for SWMR writing
+
+		superblock[11] = 0;
+		write("data.h5", superblock);
+		gate.check();
+		assertEquals("[ENTRY_CREATE data.h5 true]", events.toString());
+	}
+
+	@Test
+	public void testInotify() throws Exception {
+
+		if (!Inotify.isAvailable()) return;
+
+		createGate("inotify", 60000);
+		final File image = new File(dir, "image.cbf");
+		final FileOutputStream out = new FileOutputStream(image);
+		gate.fileChanged(EventType.ENTRY_CREATE, image.toPath());
+		out.write(new byte[10]);
+		gate.check();
+		assertTrue(events.isEmpty());
+
+		out.close();
+		gate.check();
+		assertEquals("[ENTRY_CREATE image.cbf true]", events.toString());
+	}
+
+	@Test
+	public void testInotifyClosedBeforeHeld() throws Exception {
+
+		if (!Inotify.isAvailable()) return;
+
+		createGate("inotify", 60000);
+		final File first = new File(dir, "first.cbf");
+		final FileOutputStream out = new FileOutputStream(first);
+		gate.fileChanged(EventType.ENTRY_CREATE, first.toPath()); // Watches the directory
+
+		// Closed before it is held, so it is decided by stable.
+		final File image = write("image.cbf", new byte[10]);
+		gate.check();
+		gate.fileChanged(EventType.ENTRY_CREATE, image.toPath());
+		gate.check();
+		assertTrue(events.isEmpty());
+
+		out.close();
+		gate.check();
+		assertEquals("[ENTRY_CREATE first.cbf true]", events.toString());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+
+		createGate("marker", 0);
+		final File image = write("image.cbf", new byte[10]);
+		gate.fileChanged(EventType.ENTRY_CREATE, image.toPath());
+		gate.fileChanged(EventType.ENTRY_MODIFY, new File(dir, "other.cbf").toPath());
+		gate.check();
+		assertEquals("[ENTRY_MODIFY other.cbf true, ENTRY_CREATE image.cbf false]", events.toString());
+	}
+
+	@Test
+	public void testDispose() throws Exception {
+
+		createGate("marker", 60000);
+		final File image = write("image.cbf", new byte[10]);
+		gate.fileChanged(EventType.ENTRY_CREATE, image.toPath());
+		gate.check();
+		assertTrue(events.isEmpty());
+
+		gate.dispose();
+		assertEquals("[ENTRY_CREATE image.cbf false]", events.toString());
+		assertEquals(0, gate.getPendingCount());
+
+		events.clear();
+		gate.fileChanged(EventType.ENTRY_CREATE, write("late.cbf", new byte[10]).toPath());
+		assertEquals("[ENTRY_CREATE late.cbf false]", events.toString());
+	}
+
+	private File write(String name, byte[] bytes) throws Exception {
+		final File file = new File(dir, name);
+		final FileOutputStream out = new FileOutputStream(file);
+		out.write(bytes);
+		out.close();
+		return file;
+	}
+
+	private void append(File file) throws Exception {
+		final FileOutputStream out = new FileOutputStream(file, true);
+		out.write(1);
+		out.close();
+	}
+}
@@ -0,0 +1,147 @@
+package org.dawnsci.commandserver.foldermonitor.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.dawnsci.commandserver.foldermonitor.EventType;
+import org.dawnsci.commandserver.foldermonitor.PollingScanner;
+import org.dawnsci.commandserver.foldermonitor.Reconciler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a rescan sends the events which the watch service lost,
+ * and not those which it sent.
+ */
+public class ReconcilerTest {
+
+	private File         dir;
+	private List<String> events;
+	private Reconciler   reconciler;
+	private PollingScanner.IScanListener listener;
+
+	@Before
+	public void create() throws Exception {
+		dir = File.createTempFile("reconciler", "");
+		dir.delete();
+		dir.mkdirs();
+		events = new ArrayList<String>(7);
+		listener = new PollingScanner.IScanListener() {
+			@Override
+			public void fileChanged(EventType type, Path file) throws Exception {
+				events.add(type+" "+file.getFileName());
+			}
+		};
+		write("existing.mrc");
+		reconciler = createReconciler(100);
+	}
+
+	@After
+	public void dispose() {
+		MonitorCreateFileTest.recursiveDelete(dir);
+	}
+
+	@Test
+	public void testRescan() throws Exception {
+
+		reconciler.fileChanged(EventType.ENTRY_CREATE, write("sent.mrc").toPath());
+		write("lost.mrc");
+		assertEquals("[ENTRY_CREATE sent.mrc]", events.toString());
+
+		events.clear();
+		assertEquals(1, reconciler.rescan());
+		assertEquals("[ENTRY_CREATE lost.mrc]", events.toString());
+		assertEquals(1, reconciler.getSentCount()); // The create found
+
+		final File sent = new File(dir, "sent.mrc");
+		sent.delete();
+		reconciler.fileChanged(EventType.ENTRY_DELETE, sent.toPath());
+		new File(dir, "lost.mrc").delete();
+		new File(dir, "existing.mrc").setLastModified(System.currentTimeMillis()-60000);
+
+		events.clear();
+		assertEquals(2, reconciler.rescan(Collections.singleton(dir.toPath())));
+		Collections.sort(events);
+		assertEquals("[ENTRY_DELETE lost.mrc, ENTRY_MODIFY existing.mrc]", events.toString());
+		assertEquals(0, reconciler.rescan());
+	}
+
+	@Test
+	public void testNewDirectory() throws Exception {
+
+		// Files written before the new directory was watched.
+		new File(dir, "visit/sample1").mkdirs();
+		write("visit/sample1/first.mrc");
+		write("visit/second.mrc");
+
+		final Path visit = new File(dir, "visit").toPath();
+		assertEquals(2, reconciler.rescan(Arrays.asList(visit, visit.resolve("sample1"))));
+		Collections.sort(events);
+		assertEquals("[ENTRY_CREATE first.mrc, ENTRY_CREATE second.mrc]", events.toString());
+
+		events.clear();
+		MonitorCreateFileTest.recursiveDelete(visit.toFile());
+		assertEquals(2, reconciler.rescan(Collections.singleton(dir.toPath())));
+		Collections.sort(events);
+		assertEquals("[ENTRY_DELETE first.mrc, ENTRY_DELETE second.mrc]", events.toString());
+		assertEquals(0, reconciler.rescan());
+	}
+
+	@Test
+	public void testLateEvent() throws Exception {
+
+		final File lost = write("lost.mrc");
+		assertEquals(1, reconciler.rescan());
+
+		// The event of the watch service comes after the rescan found it.
+		events.clear();
+		reconciler.fileChanged(EventType.ENTRY_CREATE, lost.toPath());
+		assertTrue(events.isEmpty());
+		reconciler.fileChanged(EventType.ENTRY_MODIFY, lost.toPath());
+		assertEquals("[ENTRY_MODIFY lost.mrc]", events.toString());
+	}
+
+	@Test
+	public void testFull() throws Exception {
+
+		new File(dir, "visit").mkdirs();
+		new File(dir, "other").mkdirs();
+		reconciler = createReconciler(2);
+		reconciler.fileChanged(EventType.ENTRY_CREATE, write("visit/first.mrc").toPath());
+		assertFalse(reconciler.isFull());
+		reconciler.fileChanged(EventType.ENTRY_CREATE, write("visit/second.mrc").toPath());
+		assertTrue(reconciler.isFull());
+		write("other/lost.mrc");
+
+		// Only the directory of the events is rescanned.
+		assertEquals(Collections.singleton(new File(dir, "visit").toPath()), reconciler.getSentDirectories());
+		assertEquals(0, reconciler.rescan(reconciler.getSentDirectories()));
+		assertFalse(reconciler.isFull());
+		assertEquals(0, reconciler.getSentCount());
+		assertEquals(1, reconciler.rescan());
+	}
+
+	private Reconciler createReconciler(int maxSent) throws Exception {
+		final Reconciler ret = new Reconciler(new PollingScanner(dir.toPath(), null, 0, 0, Integer.MAX_VALUE, 0, null), listener, maxSent);
+		ret.start();
+		return ret;
+	}
+
+	private File write(String name) throws Exception {
+		final File file = new File(dir, name);
+		final FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[1]);
+		out.close();
+		return file;
+	}
+}
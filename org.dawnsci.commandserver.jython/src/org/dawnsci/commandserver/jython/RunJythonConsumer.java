@@ -66,7 +66,7 @@ public class RunJythonConsumer {
 		
 		//Finally set up the submission system
 		try{ 
-			commandServerUri = new URI("tcp://sci-serv5.diamond.ac.uk:61616");
+			commandServerUri = ActiveMQServiceHolder.getDefaultUri();
 			
 			IEventService service = ActiveMQServiceHolder.getEventService();
 			final ISubmitter<JythonBean> queueSub = service.createSubmitter(commandServerUri, "scisoft.jython.SUBMISSION_QUEUE");
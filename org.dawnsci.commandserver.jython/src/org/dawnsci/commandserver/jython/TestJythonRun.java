@@ -25,7 +25,7 @@ public class TestJythonRun {
 
 	public static void main(String[] args) throws Exception {
 		
-		URI uri = new URI("tcp://sci-serv5.diamond.ac.uk:61616");
+		URI uri = ActiveMQServiceHolder.getDefaultUri();
 		
 		JythonBean jbean = new JythonBean();
 		jbean.setName("Test Jython");
@@ -8,6 +8,7 @@
  */
 package org.dawnsci.commandserver.mx.consumer;
 
+import java.io.File;
 import java.net.URI;
 
 import org.dawnsci.commandserver.core.process.ProcessConsumer;
@@ -73,6 +74,12 @@ public class MXSubmissionConsumer extends ProcessConsumer<ProjectBean> {
 	protected ProgressableProcess<ProjectBean> createProcess(ProjectBean bean, IPublisher<ProjectBean> status) throws Exception {
 		return new Xia2Process(bean, status);
 	}
+	
+	@Override
+	protected ProgressableProcess<ProjectBean> reattachProcess(ProjectBean bean, IPublisher<ProjectBean> status, int pid) throws Exception {
+		if (bean.getRunDirectory()==null || !new File(bean.getRunDirectory()).isDirectory()) return null;
+		return new Xia2Process(bean, status, pid);
+	}
 
 	
 	private static final long TWO_DAYS = 48*60*60*1000; // ms
@@ -8,17 +8,17 @@
  */
 package org.dawnsci.commandserver.mx.process;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.lang.ProcessBuilder.Redirect;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import org.dawnsci.commandserver.core.process.POSIX;
+import org.dawnsci.commandserver.core.process.ILineListener;
+import org.dawnsci.commandserver.core.process.LogScanner;
+import org.dawnsci.commandserver.core.process.ModuleEnvironment;
+import org.dawnsci.commandserver.core.process.ProcFS;
+import org.dawnsci.commandserver.core.process.ProcessControl;
+import org.dawnsci.commandserver.core.process.ProcessResources;
+import org.dawnsci.commandserver.core.process.ProgressRules;
 import org.dawnsci.commandserver.core.process.ProgressableProcess;
 import org.dawnsci.commandserver.mx.beans.ProjectBean;
 import org.eclipse.scanning.api.event.EventException;
@@ -31,7 +31,7 @@ import org.slf4j.LoggerFactory;
  * Rerun of several collections as follows:
  * o Write the Xia2 command file, automatic.xinfo
  * o Runs Xia2 with file
- * o Progress reported by stating xia2.txt
+ * o Progress reported by tailing xia2.txt with the rules in xia2_progress.properties
  * o Runs xia2 html to generate report.
  * 
  * @author Matthew Gerring
@@ -60,6 +60,37 @@ public class Xia2Process extends ProgressableProcess<ProjectBean>{
 	private String processingDir;
 	private String scriptLocation;
 	private Process process;
+	private boolean reattached;
+	
+	private final LogScanner scanner = new LogScanner();
+	private String error;      // The first error found in the output of xia2
+	private String statusLine; // The first line of xia2.txt with Status: in it
+	
+	/**
+	 * Re-attaches to a xia2 run which was started before the consumer was
+	 * restarted. The run directory of the bean is the MultiCrystal_N directory
+	 * of the run, which is monitored until the process has ended.
+	 * 
+	 * @param bean
+	 * @param status
+	 * @param pid of the running xia2 command
+	 */
+	public Xia2Process(ProjectBean bean, IPublisher<ProjectBean> status, int pid) {
+		
+		super(bean, status);
+		this.processingDir  = bean.getRunDirectory();
+		this.reattached     = true;
+		this.scriptLocation = "";
+		setPid(pid);
+		
+		File processLog = new File(processingDir, "xia2JavaProcessLog.txt");
+ 		try {
+			setLoggingFile(processLog, true);
+		} catch (IOException e1) {
+			logger.error("Cannot redirect logging file to "+processLog, e1);
+		}
+ 		out.println("Consumer restarted, re-attached to xia2 running as pid "+pid);
+	}
 	
 	public Xia2Process(ProjectBean bean, IPublisher<ProjectBean> status) {
 		
@@ -108,6 +139,10 @@ public class Xia2Process extends ProgressableProcess<ProjectBean>{
 	public void execute() throws EventException {
 		
 		try {
+			if (reattached) {
+				monitorXia2();
+				return;
+			}
 			writeFile();
 
 			bean.setPreviousStatus(Status.QUEUED);
@@ -121,9 +156,26 @@ public class Xia2Process extends ProgressableProcess<ProjectBean>{
 		}
 	}
 
+	/**
+	 * Xia2 with -xparallel integrates the sweeps in parallel, so the job needs
+	 * a core per sweep up to all of the cores of the host. The memory per sweep
+	 * may be set with org.dawnsci.commandserver.mx.xia2SweepMemory, default 1g.
+	 * Both may be set on the bean properties 'cores' and 'memory' instead.
+	 */
+	@Override
+	protected ProcessResources getResources() {
+		final int  sweeps = bean.getSweeps()!=null ? Math.max(1, bean.getSweeps().size()) : 1;
+		final int  cores  = XIA2_FIXEDCMD.contains("-xparallel") ? Math.min(sweeps, Runtime.getRuntime().availableProcessors()) : 1;
+		final long memory = sweeps*ProcessResources.parseMemory(System.getProperty("org.dawnsci.commandserver.mx.xia2SweepMemory", "1g"));
+		return ProcessResources.fromProperties(bean.getProperties(), new ProcessResources(cores, memory, 0));
+	}
+
 	/**
 	 * Forcibly kills a process tree by default. You may override the terminate 
 	 * for instance when a job should be killed on the cluster.
+	 * 
+	 * Xia2 is started in a session of its own, so the XDS and other processes
+	 * which it starts are terminated with it, see ProcessControl.
 	 *  
 	 * You must manually call createTerminateListener() or the terminate will not be 
 	 * listened to and the topic will never trigger this method to be called.
@@ -134,11 +186,10 @@ public class Xia2Process extends ProgressableProcess<ProjectBean>{
 	public void terminate() throws EventException {
 
 		try {
-		    final int pid = getPid(process);
+		    final int pid = process!=null ? getPid(process) : getPid();
 		    
-		    out.println("killing pid "+pid);
-		    // Not sure if this works
-		    POSIX.INSTANCE.kill(pid, 9);
+		    out.println("terminating pid "+pid+" and the processes it started");
+		    if (!ProcessControl.terminate(pid)) out.println("Not all of the processes of "+pid+" could be killed!");
 		} catch (Exception ne) {
 			throw new EventException("Unable to terminate Xia2 Process!", ne);
 		}
@@ -160,10 +211,16 @@ public class Xia2Process extends ProgressableProcess<ProjectBean>{
 		if (isWindowsOS()) {
 			pb.command("cmd", "/C", createXai2Command(scriptLocation, (ProjectBean)bean));
 		} else {
-			pb.command("bash", "-c", createXai2Command(scriptLocation, (ProjectBean)bean));
+			// The environment of the module is cached so the module system is not run for each job
+			if (!ModuleEnvironment.getDefault().apply(pb, getSetupCommand(), getXia2Command(scriptLocation, (ProjectBean)bean))) {
+				pb.command("bash", "-c", createXai2Command(scriptLocation, (ProjectBean)bean));
+			}
+			ProcessControl.setSession(pb);
+			confine(pb);
 		}
 
-		this.process = pb.start();
+		this.process = getProcessLauncher().start(pb);
+		setPid(getPid(process)); // Recorded so that a restarted consumer can find the run
 		assert pb.redirectInput() == Redirect.PIPE;
 		assert process.getInputStream().read() == -1;	
 
@@ -178,11 +235,34 @@ public class Xia2Process extends ProgressableProcess<ProjectBean>{
 		// Now we monitor the output file. Then we wait for the process, then we check for errors again.
 		startProgressMonitor();
 		process.waitFor();
-		checkXia2Errors();						
+		checkXia2Finished();
+	}
+
+	/**
+	 * Watches a xia2 run which is already running until its process has ended.
+	 * @throws Exception
+	 */
+	private void monitorXia2() throws Exception {
+		
+		checkXia2Errors();
+		startProgressMonitor();
+		while(ProcFS.isAlive(getPid(), getPidStart())) { // Not another process given the same pid
+			Thread.sleep(2000);
+		}
+		checkXia2Finished();
+	}
+
+	/**
+	 * Called after the xia2 process has ended to set the final status.
+	 * @throws Exception
+	 */
+	private void checkXia2Finished() throws Exception {
+		
+		checkXia2Errors(true);
 
 		if (!bean.getStatus().isFinal()) {
 			
-			String line = getLine(new File(processingDir, "xia2.txt"), "Status:");
+			final String line = statusLine;
 			
 			if (line!=null && line.toLowerCase().contains("normal")) {
 				bean.setPreviousStatus(Status.RUNNING);
@@ -211,172 +291,119 @@ public class Xia2Process extends ProgressableProcess<ProjectBean>{
 
 	}
 
-	private static final Pattern STATUS_LINE = Pattern.compile("\\-+ Integrating ([a-zA-Z0-9_]+) \\-+");
+	private static ProgressRules defaultRules;
+	
 	/**
-     * Starts file polling on the output file, stops when bean reaches a final state.
+	 * @return the rules in xia2_progress.properties, loaded once
+	 * @throws IOException
+	 */
+	private static synchronized ProgressRules getDefaultRules() throws IOException {
+		if (defaultRules==null) defaultRules = ProgressRules.load(Xia2Process.class.getResourceAsStream("xia2_progress.properties"));
+		return defaultRules;
+	}
+
+	/**
+     * Tails the output file, stops when bean reaches a final state.
+     * The progress is read with the rules in xia2_progress.properties
+     * unless the consumer argument -progressRules is set.
      */
-	private void startProgressMonitor() {
+	private void startProgressMonitor() throws IOException {
 		
-		final Thread poll = new Thread(new Runnable() {
-			public void run() {
-			
-				try {
-					final Set<String> processedSweeps = new HashSet<String>();
-					
-					// First wait until file is there or bean is done.
-					final String name     = System.getProperty("org.dawnsci.commandserver.mx.xia2OutputFile")!=null
-					                      ? System.getProperty("org.dawnsci.commandserver.mx.xia2OutputFile")
-					                      : XIA2_FILE;
-					                      
-					final File xia2Output = new File(processingDir, name);
-					while(!bean.getStatus().isFinal() && !xia2Output.exists()) {
-	                    Thread.sleep(1000);
-					}
-					
-					// Now the file must exist or we are done
-					if (xia2Output.exists()) {
-						BufferedReader br = null;
-						try {
-							br = new BufferedReader( new FileReader(xia2Output) );
-						    while(!bean.getStatus().isFinal()) {
-								String line = br.readLine();
-								if (line==null) {
-									Thread.sleep(2000); // Xia2 writes some more lines
-									continue;
-								}
-								
-								if (line.contains("No images assigned for crystal test")) {
-									bean.setPreviousStatus(Status.RUNNING);
-									bean.setStatus(Status.FAILED);
-									bean.setMessage(line);
-									bean.setPercentComplete(0);
-									broadcast(bean);
-									return;
-								}
-								
-								final Matcher matcher = STATUS_LINE.matcher(line);
-								if (matcher.matches()) {
-									final String sweepName = matcher.group(1);
-									processedSweeps.add(sweepName); // They are not in order!
-									
-									ProjectBean pbean = (ProjectBean)bean;
-									final double complete = (processedSweeps.size()/(double)pbean.getSweeps().size())*50d;
-									out.println("XIA2 % commplete>> "+complete);
-									
-									bean.setMessage("Integrating "+sweepName);
-									bean.setPercentComplete(complete);
-									broadcast(bean);
-									out.println("XIA2>> "+line);
-									continue;
-								}
-								
-								if (line.startsWith("--------------------")) {
-									bean.setStatus(Status.RUNNING);
-									bean.setMessage(line.substring("--------------------".length()));
-									broadcast(bean);
-								}
-								
-								// TODO parse the lines when we have them
-								// broadcast any %-complete that we think we have found.
-								out.println("XIA2>> "+line);
-								
-								
-							} 
-						} finally {
-							if (br!=null) br.close();
-						}
-					}
-					
-				} catch (Exception ne) {
-					// Should we send the failure to monitor the file as an error?
-					// NOPE because xia2 writes an error file, that info is more useful.
-					ne.printStackTrace(out);
-					logger.error("Cannot monitor xia2 progress ", ne);
+		final ProgressRules       rules = getProgressRules(getDefaultRules());
+		final ProgressRules.State state = rules.createState();
+		final ProjectBean         pbean = (ProjectBean)bean;
+		state.setVariable("sweeps", pbean.getSweeps()!=null ? pbean.getSweeps().size() : 0);
+		
+		final String name     = System.getProperty("org.dawnsci.commandserver.mx.xia2OutputFile")!=null
+		                      ? System.getProperty("org.dawnsci.commandserver.mx.xia2OutputFile")
+		                      : XIA2_FILE;
+		                      
+		final File xia2Output = new File(processingDir, name);
+		tail(xia2Output, new ILineListener() {
+			@Override
+			public void lineRead(File file, String line) {
+				
+				// Nothing is changed once the bean is final, the tail is closed when the run ends.
+				final double complete = bean.getPercentComplete();
+				if (rules.apply(line, bean, state)) {
+					if (complete!=bean.getPercentComplete()) out.println("XIA2 % commplete>> "+bean.getPercentComplete());
+					broadcast(bean);
 				}
+				out.println("XIA2>> "+line);
 			}
 		});
-		poll.setName("xia2.txt polling thread");
-		poll.setPriority(Thread.MIN_PRIORITY);
-		poll.setDaemon(true);
-		poll.start();
 	}
 
 	/**
 	 * Throws an exception if an error file is found with the string Error: in it.
+	 * The files are scanned from where the last check stopped, see LogScanner.
 	 * @throws Exception
 	 */
 	private void checkXia2Errors() throws Exception {
+		checkXia2Errors(false);
+	}
+
+	/**
+	 * @param ended true if xia2 has ended so the files are complete
+	 * @throws Exception
+	 */
+	private void checkXia2Errors(boolean ended) throws Exception {
 		
 		final File dir = new File(processingDir);
 		if (!dir.exists()) return;
 		for (File c : dir.listFiles()) {
 			if (c.isFile() && c.getName().toLowerCase().endsWith(".error")) {
-				checkFile(c, "Error:");
+				scanner.scan(c, detector, ended);
 			}
 			
 			if (c.isFile() && c.getName().toLowerCase().contains("xia2_output.txt")) {
-				checkNotRecognised(c);
+				scanner.scan(c, detector, ended);
 			}
 		}
+		scanner.scan(new File(processingDir, XIA2_FILE), detector, ended);
+		if (error!=null) throw new Exception(error);
 	}
 
-	private void checkNotRecognised(File c) throws Exception {
-		BufferedReader br = null;
-		try {
-			br = new BufferedReader(new FileReader(c));
-			
-			String line = null;
-			while((line = br.readLine())!=null) {
-				if (line.contains("not recognized")) {
-					throw new Exception(line);
-				}
+	/**
+	 * Looks for errors and the Status: line in the lines which the scanner reads.
+	 */
+	private final ILineListener detector = new ILineListener() {
+		@Override
+		public void lineRead(File file, String line) {
+			final String name = file.getName().toLowerCase();
+			if (error==null && name.endsWith(".error") && line.contains("Error:")) {
+				final String[] split = line.split(":");
+				error = split.length>1 ? split[1] : line;
 			}
-		} finally {
-			if (br!=null) br.close();
-		}
-		
-	}
-
-	private void checkFile(File c, String string) throws Exception {
-		
-		String line = getLine(c, string);
-		if (line==null) return;
-		
-		final String[] split = line.split(":");
-		throw new Exception(split[1]);
-	}
-	
-	private String getLine(File c, String string) throws Exception {
-
-		BufferedReader br = null;
-		try {
-			br = new BufferedReader(new FileReader(c));
-			
-			String line = null;
-			while((line = br.readLine())!=null) {
-				if (line.contains(string)) {
-					return line;
-				}
+			if (error==null && name.contains("xia2_output.txt") && line.contains("not recognized")) {
+				error = line;
+			}
+			if (statusLine==null && file.getName().equals(XIA2_FILE) && line.contains("Status:")) {
+				statusLine = line;
 			}
-		} finally {
-			if (br!=null) br.close();
 		}
-		return null;
-	}
+	};
 
 	public static String createXai2Command(final String scriptLocation, ProjectBean bean) {
 		
 		String setupCmd = "";
 		if (!isWindowsOS()) { // We use module load xia2
 			// Get a linux enviroment		
-			setupCmd = System.getProperty("org.dawnsci.commandserver.mx.moduleCommand")!=null
-					        ? System.getProperty("org.dawnsci.commandserver.mx.moduleCommand")
-					        : SETUP_COMMAND;
-					        
-			setupCmd+=" ; ";
+			setupCmd = getSetupCommand()+" ; ";
 		}
 
 		// For windows xia2 must be on the path already.
+	    return setupCmd+getXia2Command(scriptLocation, bean);
+	}
+
+	private static String getSetupCommand() {
+		return System.getProperty("org.dawnsci.commandserver.mx.moduleCommand")!=null
+		        ? System.getProperty("org.dawnsci.commandserver.mx.moduleCommand")
+		        : SETUP_COMMAND;
+	}
+
+	private static String getXia2Command(final String scriptLocation, ProjectBean bean) {
+		
 		String xia2Cmd = System.getProperty("org.dawnsci.commandserver.mx.xia2Command");
 		
 		if (xia2Cmd==null) {
@@ -384,8 +411,7 @@ public class Xia2Process extends ProgressableProcess<ProjectBean>{
 			if (cmd==null) cmd = "";
 			xia2Cmd = scriptLocation+XIA2_NAME+" "+cmd+" "+XIA2_FIXEDCMD;
 		}
-	               
-	    return setupCmd+xia2Cmd;
+		return xia2Cmd;
 	}
 
 	private void writeFile() throws Exception {
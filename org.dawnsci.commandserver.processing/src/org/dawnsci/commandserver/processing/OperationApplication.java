@@ -32,7 +32,17 @@ public class OperationApplication implements IApplication {
 	@Override
 	public Object start(IApplicationContext context) throws Exception {
 		
-		// Parse out the configuration.
+		final Map<String, String> conf = getConfiguration(context);
+		this.runner = new OperationExecution();
+		runner.run(createOperationBean(conf.get("path")));
+		return runner;
+	}
+
+	/**
+	 * Parse out the configuration.
+	 */
+	static Map<String, String> getConfiguration(IApplicationContext context) {
+		
 		final Map      args          = context.getArguments();
 		final String[] configuration = (String[])args.get("application.args");
         
@@ -43,14 +53,10 @@ public class OperationApplication implements IApplication {
 				conf.put(pkey.substring(1), configuration[i+1]);
 			}
 		}
-		
-		this.runner = new OperationExecution();
-		runner.run(createOperationBean(conf));
-		return runner;
+		return conf;
 	}
 
-	private OperationBean createOperationBean(Map<String, String> conf) throws Exception {
-		final String path   = conf.get("path");
+	static OperationBean createOperationBean(String path) throws Exception {
 		ObjectMapper mapper = new ObjectMapper();
 		return mapper.readValue(new File(path), OperationBean.class); 
 	}
@@ -0,0 +1,52 @@
+package org.dawnsci.commandserver.processing;
+
+import java.util.Map;
+
+import org.dawnsci.commandserver.core.application.PoolWorker;
+import org.dawnsci.commandserver.processing.process.OperationExecution;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+
+/**
+ * Runs operation pipelines sent by the WorkerPool of an OperationProcess,
+ * so that DAWN is already started and warmed up when a job arrives.
+ * 
+ * Started by the pool with:
+ *    $DAWN_RELEASE_DIRECTORY/dawn -noSplash -application org.dawnsci.commandserver.processing.worker -data <workspace> -workerPort <port> -workerToken <token>
+ * 
+ * Each job is the path of an operationBean.json
+ * 
+ * @author Matthew Gerring
+ *
+ */
+public class OperationWorkerApplication implements IApplication {
+
+	private volatile OperationExecution runner;
+
+	@Override
+	public Object start(IApplicationContext context) throws Exception {
+		
+		final Map<String, String> conf = OperationApplication.getConfiguration(context);
+		if (!PoolWorker.isWorker(conf)) throw new Exception("The worker must be started by a pool with -workerPort and -workerToken");
+		
+		PoolWorker.serve(conf, new PoolWorker.IJobRunner() {
+			@Override
+			public void run(String path) throws Exception {
+				runner = new OperationExecution();
+				try {
+					runner.run(OperationApplication.createOperationBean(path));
+				} finally {
+					runner = null;
+				}
+			}
+		});
+		return IApplication.EXIT_OK;
+	}
+
+	@Override
+	public void stop() {
+		final OperationExecution current = runner;
+		if (current!=null) current.stop();
+	}
+
+}
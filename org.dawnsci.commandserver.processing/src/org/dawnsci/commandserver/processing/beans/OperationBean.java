@@ -64,6 +64,10 @@ public class OperationBean extends StatusBean {
         this.parallelTimeout = db.parallelTimeout;
         this.deletePersistenceFile = db.deletePersistenceFile;
         this.xmx = db.xmx;
+        this.axesNames       = db.axesNames;
+        this.outputFilePath  = db.outputFilePath;
+        this.dataDimensions  = db.dataDimensions;
+        this.readable        = db.readable;
 	}
 	
 
@@ -8,24 +8,45 @@
  */
 package org.dawnsci.commandserver.processing.consumer;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.Map;
 
+import org.dawnsci.commandserver.core.application.WorkerPool;
 import org.dawnsci.commandserver.core.process.ProcessConsumer;
 import org.dawnsci.commandserver.core.process.ProgressableProcess;
 import org.dawnsci.commandserver.processing.beans.OperationBean;
 import org.dawnsci.commandserver.processing.process.OperationProcess;
 import org.eclipse.scanning.api.event.core.IPublisher;
 import org.eclipse.scanning.api.event.status.StatusBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This consumer monitors a queue and starts runs based
  * on what is submitted.
  * 
+ * If -workerPool is set the consumer keeps a WorkerPool of started DAWNs
+ * in which its jobs are run, until the consumer is stopped.
+ * 
  * @author Matthew Gerring
  *
  */
 public class OperationSubmissionConsumer extends ProcessConsumer<OperationBean> {
 
+	private static final Logger logger = LoggerFactory.getLogger(OperationSubmissionConsumer.class);
+
+	private WorkerPool workers;
+
+	@Override
+	public void init(Map<String, String> configuration) throws Exception {
+		super.init(configuration);
+		try {
+			workers = WorkerPool.create(config, "org.dawnsci.commandserver.processing.worker");
+		} catch (IOException ne) {
+			logger.error("Cannot start the pool of workers, each job will start DAWN.", ne);
+		}
+	}
 
 	@Override
 	public String getName() {
@@ -41,7 +62,18 @@ public class OperationSubmissionConsumer extends ProcessConsumer<OperationBean>
 	@Override
 	protected ProgressableProcess<OperationBean> createProcess(OperationBean bean, IPublisher<OperationBean> status) throws Exception {
 
-		return new OperationProcess(bean, status);
+		final OperationProcess process = new OperationProcess(bean, status);
+		process.setWorkerPool(workers);
+		return process;
+	}
+
+	@Override
+	public void stop() throws Exception {
+		try {
+			super.stop();
+		} finally {
+			if (workers!=null) workers.dispose();
+		}
 	}
 
 
@@ -15,11 +15,17 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.dawnsci.commandserver.core.application.ApplicationProcess;
+import org.dawnsci.commandserver.core.application.WorkerPool;
+import org.dawnsci.commandserver.core.process.JobCgroup;
+import org.dawnsci.commandserver.core.process.ProcessControl;
+import org.dawnsci.commandserver.core.process.ProcessResources;
 import org.dawnsci.commandserver.core.process.ProgressableProcess;
 import org.dawnsci.commandserver.processing.beans.OperationBean;
 import org.eclipse.scanning.api.event.EventException;
 import org.eclipse.scanning.api.event.core.IPublisher;
 import org.eclipse.scanning.api.event.status.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -28,13 +34,28 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * This command runs in a separate process which can include
  * a cluster command if required.
  * 
+ * If the consumer has a WorkerPool, made from the consumer argument
+ * -workerPool, the pipelines are run in DAWNs which are already started
+ * instead. A job whose
+ * bean has an Xmx larger than -workerXmx, or any Xmx if -workerXmx is
+ * not set, starts its own DAWN as before, as does a job for which no
+ * worker is idle within -workerWait. A job run in a worker is charged
+ * the worker's Xmx by admission control. If the consumer runs jobs in
+ * cgroups the worker is moved into the job's cgroup while it runs the
+ * job, so its CPU and IO are limited and accounted; the memory which the
+ * worker had before the job stays charged to the worker's own cgroup.
+ * 
  * @author Matthew Gerring
  *
  */
 public class OperationProcess extends ProgressableProcess<OperationBean> {	
 	
+	private static final Logger logger = LoggerFactory.getLogger(OperationProcess.class);
+	
 	private String   processingDir;
-    private Process  process;
+    private volatile Process process;
+    private WorkerPool       workers;
+    private volatile WorkerPool.Worker worker;
 	
 	/**
 	 * Used to run a process without a bean and for OSGi to inject
@@ -90,19 +111,14 @@ public class OperationProcess extends ProgressableProcess<OperationBean> {
 			File path = new File(processingDir, "operationBean.json");
 			if (!path.exists()) throw new Exception("Cannot find path to OperationBean!");
 			
-			final Map<String,String> args = createApplicationArgs(path);
-			String workSpace = bean.getRunDirectory() + File.separator + "workspace";
-			new File(workSpace).mkdirs();
-			args.put("data", workSpace);
-			
-			ApplicationProcess process = new ApplicationProcess(args, arguments);
-			process.setApplicationName("org.dawnsci.commandserver.processing.processing");
-			process.setOutFileName("operation_out.txt");
-			process.setErrFileName("operation_err.txt");
-			process.setPropagateSysProps(false);
-			if (bean instanceof OperationBean)process.setXmx(((OperationBean)bean).getXmx());
-			Process p = process.start();
-			if (isBlocking()) p.waitFor();
+			final WorkerPool        pool   = isWorkerSized() ? workers : null;
+			final WorkerPool.Worker worker = pool!=null ? pool.take() : null;
+			if (worker!=null) {
+				runInWorker(pool, worker, path);
+			} else {
+				if (pool!=null) out.println("No worker was free, starting DAWN");
+				runApplication(path);
+			}
 			
 			// TODO Actually run something?
 			bean.setStatus(Status.COMPLETE);
@@ -119,6 +135,94 @@ public class OperationProcess extends ProgressableProcess<OperationBean> {
 		}
 	}
 
+	/**
+	 * Runs the pipeline in a DAWN which has already started.
+	 * @param pool
+	 * @param worker taken from the pool
+	 * @param path
+	 * @throws Exception
+	 */
+	private void runInWorker(WorkerPool pool, WorkerPool.Worker worker, File path) throws Exception {
+		this.worker = worker;
+		final JobCgroup cgroup = getCgroup();
+		File from = null;
+		try {
+			if (cgroup!=null) {
+				try {
+					from = cgroup.enter(worker.getPid());
+				} catch (IOException ne) {
+					logger.warn("Cannot move worker "+worker.getPid()+" into the cgroup of "+bean.getName()+", it runs without the job's limits", ne);
+				}
+			}
+			out.println("Running in worker "+worker.getPid());
+			worker.run(path.getAbsolutePath());
+		} finally {
+			this.worker = null;
+			if (from!=null) {
+				try {
+					cgroup.leave(worker.getPid(), from);
+				} catch (IOException ne) {
+					// The worker is killed with the cgroup and then replaced
+					logger.warn("Cannot move worker "+worker.getPid()+" out of the cgroup of "+bean.getName(), ne);
+				}
+			}
+			pool.release(worker);
+		}
+	}
+
+	/**
+	 * @return true if the job fits in a worker, which cannot change its -Xmx.
+	 */
+	private boolean isWorkerSized() {
+		final long xmx = ProcessResources.parseMemory(bean.getXmx());
+		if (xmx<=0) return true;
+		final String workerXmx = arguments!=null ? arguments.get("workerXmx") : null;
+		return workerXmx!=null && xmx<=ProcessResources.parseMemory(workerXmx);
+	}
+
+	/**
+	 * Starts a DAWN to run the pipeline.
+	 * @param path
+	 * @throws Exception
+	 */
+	private void runApplication(File path) throws Exception {
+		
+		final Map<String,String> args = createApplicationArgs(path);
+		String workSpace = bean.getRunDirectory() + File.separator + "workspace";
+		new File(workSpace).mkdirs();
+		args.put("data", workSpace);
+		
+		ApplicationProcess process = new ApplicationProcess(args, arguments);
+		process.setApplicationName("org.dawnsci.commandserver.processing.processing");
+		process.setOutFileName("operation_out.txt");
+		process.setErrFileName("operation_err.txt");
+		process.setPropagateSysProps(false);
+		if (bean instanceof OperationBean)process.setXmx(((OperationBean)bean).getXmx());
+		process.setCgroup(getCgroup());
+		process.setProcessLauncher(getProcessLauncher());
+		Process p = process.start();
+		this.process = p;
+		if (isBlocking() || isAdmitted() || getCgroup()!=null) p.waitFor(); // Hold any resources and the cgroup until it has run.
+	}
+
+	/**
+	 * @param workers the pool of the consumer, may be null to start DAWN for each job.
+	 */
+	public void setWorkerPool(WorkerPool workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * The operation pipeline runs in its own JVM with the -Xmx of the bean,
+	 * or in a worker with the -Xmx of the workers.
+	 */
+	@Override
+	protected ProcessResources getResources() {
+		final boolean inWorker = workers!=null && isWorkerSized();
+		final long    memory   = ProcessResources.parseMemory(inWorker ? arguments.get("workerXmx") : bean.getXmx());
+		return ProcessResources.fromProperties(bean.getProperties(), new ProcessResources(1, memory, 0));
+	}
+
 	private Map<String, String> createApplicationArgs(File path) {
 		final Map<String,String> args = new HashMap<String, String>(1);
 		args.put("path", path.getAbsolutePath());
@@ -128,7 +232,9 @@ public class OperationProcess extends ProgressableProcess<OperationBean> {
     
 	@Override
 	public void terminate() throws EventException {
-		if (process!=null) process.destroy();
+		final WorkerPool.Worker running = worker;
+		if (running!=null) running.kill();
+		if (process!=null) ProcessControl.terminate(process);
 	}
 
 	public String getProcessingDir() {
@@ -24,6 +24,7 @@ public class OperationVisitor implements IExecutionVisitor {
 	private IPublisher<OperationBean>  broadcaster;
 	private int           total;
 	private int           count;
+	private int           lastPercent = -1;
 
 	public OperationVisitor(ILazyDataset lz, OperationBean obean, IPublisher<OperationBean> broadcaster) throws Exception {
 		this.obean       = obean;
@@ -43,6 +44,7 @@ public class OperationVisitor implements IExecutionVisitor {
 	public void init(IOperation<? extends IOperationModel, ? extends OperationData>[] series,
 			         ILazyDataset dataset) throws Exception {
 		this.count = 0;
+		this.lastPercent = -1;
 	
 	}
 
@@ -56,8 +58,12 @@ public class OperationVisitor implements IExecutionVisitor {
 	public void executed(OperationData result, IMonitor monitor) throws Exception {
 		++count;
 		double done = (double)count / (double)total;
-		System.out.println(obean);
 		obean.setPercentComplete(done);
+		
+		// There can be many thousands of slices, only send whole percent changes.
+		final int percent = (int)(done*100);
+		if (percent==lastPercent && count<total) return;
+		lastPercent = percent;
 		broadcaster.broadcast(obean);	
 	}
 
@@ -154,7 +154,7 @@ public class OperationsTestRemote {
 	
 	private void testRemoteRun(IOperationContext context2) throws Exception {
 		// Run the model
-		OperationSubmission factory = new OperationSubmission(new URI("tcp://sci-serv5.diamond.ac.uk:61616"));
+		OperationSubmission factory = new OperationSubmission(ActiveMQServiceHolder.getDefaultUri());
 		OperationBean obean = factory.submit(context2);
 
 		// Blocks until a final state is reached
@@ -207,7 +207,7 @@ public class OperationsTestRemote {
 	
 	private void testRemoteRunBean(OperationBean obean) throws Exception {
 		// Run the model
-		OperationSubmission factory = new OperationSubmission(new URI("tcp://sci-serv5.diamond.ac.uk:61616"));
+		OperationSubmission factory = new OperationSubmission(ActiveMQServiceHolder.getDefaultUri());
 		factory.prepare(obean);
 		factory.directSubmit(obean);
 
@@ -261,7 +261,7 @@ public class OperationsTestRemote {
 		b.setOutputFilePath("/dls/science/groups/das/ExampleData/tmp/output_cluster_0.nxs");
 		
 		// Run the model
-		OperationSubmission factory = new OperationSubmission(new URI("tcp://sci-serv5.diamond.ac.uk:61616"),b.getRunDirectory());
+		OperationSubmission factory = new OperationSubmission(ActiveMQServiceHolder.getDefaultUri(),b.getRunDirectory());
 		factory.prepare(b);
 		factory.directSubmit(b);
 
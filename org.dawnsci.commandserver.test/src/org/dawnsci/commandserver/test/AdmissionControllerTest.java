@@ -0,0 +1,73 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.dawnsci.commandserver.core.process.AdmissionController;
+import org.dawnsci.commandserver.core.process.ProcessResources;
+import org.junit.Test;
+
+/**
+ * Checks that jobs wait until the cores and memory
+ * they need are free.
+ */
+public class AdmissionControllerTest {
+
+	private static final long GB = 1L<<30;
+
+	@Test
+	public void testParseMemory() throws Exception {
+		assertEquals(512L<<20, ProcessResources.parseMemory("512m"));
+		assertEquals(4*GB,     ProcessResources.parseMemory("4G"));
+		assertEquals(1024L,    ProcessResources.parseMemory("1024"));
+		assertEquals(0L,       ProcessResources.parseMemory(null));
+	}
+
+	@Test
+	public void testWaitsForCores() throws Exception {
+
+		final AdmissionController admission = new AdmissionController(new ProcessResources(4, Long.MAX_VALUE, Long.MAX_VALUE), null);
+		final ProcessResources first = admission.acquire(new ProcessResources(3, 0, 0));
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final Thread second = new Thread(new Runnable() {
+			public void run() {
+				try {
+					ProcessResources res = admission.acquire(new ProcessResources(2, 0, 0));
+					started.countDown();
+					admission.release(res);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		second.start();
+
+		assertFalse("The second job should wait for cores", started.await(500, TimeUnit.MILLISECONDS));
+		assertEquals(1, admission.getWaitingCount());
+
+		admission.release(first);
+		assertTrue("The second job should start when the first has finished", started.await(5, TimeUnit.SECONDS));
+		second.join();
+		assertEquals(0, admission.getRunningCount());
+	}
+
+	@Test
+	public void testLargeJobRunsAlone() throws Exception {
+
+		final AdmissionController admission = new AdmissionController(new ProcessResources(4, 8*GB, Long.MAX_VALUE), null);
+
+		// Needs more than the host has, it is clamped and runs when nothing else is.
+		final ProcessResources res = admission.acquire(new ProcessResources(16, 32*GB, 0));
+		assertEquals(4, res.getCores());
+		assertEquals(8*GB, res.getMemory());
+		assertEquals(1, admission.getRunningCount());
+
+		admission.release(res);
+		assertEquals(new ProcessResources(0, 0, 0), admission.getUsed());
+	}
+}
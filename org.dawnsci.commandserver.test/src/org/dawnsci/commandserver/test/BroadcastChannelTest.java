@@ -0,0 +1,112 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.dawnsci.commandserver.core.ActiveMQServiceHolder;
+import org.dawnsci.commandserver.core.process.BroadcastChannel;
+import org.dawnsci.commandserver.core.process.BroadcastDispatcher;
+import org.dawnsci.commandserver.jython.JythonBean;
+import org.eclipse.scanning.api.event.IEventConnectorService;
+import org.eclipse.scanning.api.event.status.Status;
+import org.eclipse.scanning.api.event.status.StatusBean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that percent complete updates are coalesced and
+ * that status changes are always sent, in order.
+ */
+public class BroadcastChannelTest {
+
+	private BroadcastDispatcher       dispatcher;
+	private MockPublisher<StatusBean> publisher;
+	private BroadcastChannel<StatusBean> channel;
+
+	@Before
+	public void create() {
+		dispatcher = new BroadcastDispatcher("test", 200);
+		publisher  = new MockPublisher<StatusBean>();
+		channel    = dispatcher.createChannel(publisher);
+	}
+
+	@After
+	public void dispose() {
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testPercentUpdatesCoalesced() throws Exception {
+
+		final StatusBean bean = new StatusBean();
+		bean.setUniqueId("test1");
+		bean.setStatus(Status.RUNNING);
+		for (int i = 0; i < 1000; i++) {
+			bean.setPercentComplete(i/10d);
+			channel.broadcast(bean);
+		}
+		Thread.sleep(500);
+
+		final List<StatusBean> sent = publisher.getBroadcasts();
+		assertTrue("Expected coalesced updates but got "+sent.size(), sent.size()<10);
+		assertEquals(99.9d, sent.get(sent.size()-1).getPercentComplete(), 0.0001);
+	}
+
+	@Test
+	public void testTransitionsAlwaysSent() throws Exception {
+
+		final StatusBean bean = new StatusBean();
+		bean.setUniqueId("test2");
+		bean.setStatus(Status.RUNNING);
+		channel.broadcast(bean);
+		for (int i = 0; i < 100; i++) {
+			bean.setPercentComplete(i);
+			channel.broadcast(bean);
+		}
+		bean.setStatus(Status.COMPLETE);
+		bean.setPercentComplete(100);
+		channel.broadcast(bean);
+		Thread.sleep(500);
+
+		final List<StatusBean> sent = publisher.getBroadcasts();
+		assertEquals(Status.RUNNING,  sent.get(0).getStatus());
+		assertEquals(Status.COMPLETE, sent.get(sent.size()-1).getStatus());
+		assertEquals(100d, sent.get(sent.size()-1).getPercentComplete(), 0.0001);
+		assertEquals("test2", sent.get(sent.size()-1).getUniqueId());
+	}
+
+	@Test
+	public void testBeanWithoutMerge() throws Exception {
+
+		// JythonBean does not override merge(), so without a connector it cannot be copied.
+		final IEventConnectorService service = ActiveMQServiceHolder.getEventConnectorService();
+		ActiveMQServiceHolder.setEventConnectorService(null);
+		try {
+			final MockPublisher<JythonBean>    jpublisher = new MockPublisher<JythonBean>();
+			final BroadcastChannel<JythonBean> jchannel   = dispatcher.createChannel(jpublisher);
+
+			final JythonBean bean = new JythonBean();
+			bean.setUniqueId("test3");
+			bean.setJythonClass("Sum");
+			bean.setJythonCode("print 1");
+			bean.setStatus(Status.RUNNING);
+			for (int i = 0; i < 10; i++) {
+				bean.setPercentComplete(i);
+				jchannel.broadcast(bean);
+			}
+			Thread.sleep(500);
+
+			final List<JythonBean> sent = jpublisher.getBroadcasts();
+			assertTrue(!sent.isEmpty());
+			for (JythonBean b : sent) {
+				assertEquals("Sum",     b.getJythonClass());
+				assertEquals("print 1", b.getJythonCode());
+			}
+		} finally {
+			ActiveMQServiceHolder.setEventConnectorService(service);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.dawnsci.commandserver.core.process.CgroupLauncher;
+import org.dawnsci.commandserver.core.process.JobCgroup;
+import org.dawnsci.commandserver.core.process.ProcFS;
+import org.dawnsci.commandserver.core.process.ProcessControl;
+import org.dawnsci.commandserver.core.process.ProcessResources;
+import org.eclipse.scanning.api.event.status.StatusBean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the limits and accounting of job cgroups using a
+ * directory which stands in for the delegated cgroup.
+ */
+public class CgroupLauncherTest {
+
+	private File parent;
+
+	@Before
+	public void create() throws Exception {
+		parent = File.createTempFile("cgroup", "");
+		parent.delete();
+		parent.mkdirs();
+	}
+
+	@After
+	public void dispose() {
+		delete(parent);
+	}
+
+	@Test
+	public void testNotVersion2() throws Exception {
+		assertNull(CgroupLauncher.create(Collections.singletonMap("cgroup", parent.getAbsolutePath())));
+		assertNull(CgroupLauncher.create(Collections.<String, String>emptyMap()));
+	}
+
+	@Test
+	public void testLimits() throws Exception {
+
+		final CgroupLauncher launcher = new CgroupLauncher(parent, 100, true, 1.5);
+		final JobCgroup      cgroup   = launcher.create("abc/123", new ProcessResources(2, 1L<<30, 0), null);
+
+		assertEquals(new File(parent, "job-abc_123"), cgroup.getDirectory());
+		assertEquals("100",           read(new File(cgroup.getDirectory(), "cpu.weight")));
+		assertEquals("200000 100000", read(new File(cgroup.getDirectory(), "cpu.max")));
+		assertEquals("1610612736",    read(new File(cgroup.getDirectory(), "memory.max")));
+
+		final Properties props = new Properties();
+		props.setProperty("cpuWeight", "500");
+		final JobCgroup second = launcher.create("abc/123", new ProcessResources(1, 0, 0), props);
+		assertEquals(new File(parent, "job-abc_123_1"), second.getDirectory());
+		assertEquals("500", read(new File(second.getDirectory(), "cpu.weight")));
+		assertTrue(!new File(second.getDirectory(), "memory.max").exists());
+	}
+
+	@Test
+	public void testMemoryLimit() throws Exception {
+
+		// The memory of the job is what admission expects it to use, not a limit.
+		final CgroupLauncher launcher = new CgroupLauncher(parent, 100, true);
+		final JobCgroup      cgroup   = launcher.create("first", new ProcessResources(1, 1L<<30, 0), null);
+		assertTrue(!new File(cgroup.getDirectory(), "memory.max").exists());
+
+		final Properties props = new Properties();
+		props.setProperty("memoryLimit", "2g");
+		final JobCgroup second = launcher.create("second", new ProcessResources(1, 1L<<30, 0), props);
+		assertEquals("2147483648", read(new File(second.getDirectory(), "memory.max")));
+	}
+
+	@Test
+	public void testAccounting() throws Exception {
+
+		final JobCgroup cgroup = new CgroupLauncher(parent, 100, false).create("job", ProcessResources.DEFAULT, null);
+		write(new File(cgroup.getDirectory(), "cpu.stat"),    "usage_usec 2500000\nuser_usec 2000000\nsystem_usec 500000\n");
+		write(new File(cgroup.getDirectory(), "memory.peak"), "52428800\n");
+		write(new File(cgroup.getDirectory(), "io.stat"),     "8:0 rbytes=1000 wbytes=200 rios=3 wios=1\n8:16 rbytes=24 wbytes=56 rios=1 wios=1\n");
+
+		final StatusBean bean = new StatusBean();
+		cgroup.account(bean);
+		assertEquals("2.5",      bean.getProperty("cpuSeconds"));
+		assertEquals("52428800", bean.getProperty("peakMemory"));
+		assertEquals("1024",     bean.getProperty("ioReadBytes"));
+		assertEquals("256",      bean.getProperty("ioWriteBytes"));
+	}
+
+	@Test
+	public void testJobEntersCgroup() throws Exception {
+		if (!ProcFS.isAvailable()) return;
+
+		final JobCgroup cgroup = new CgroupLauncher(parent, 100, false).create("job", ProcessResources.DEFAULT, null);
+		final ProcessBuilder pb = new ProcessBuilder(Arrays.asList("sh", "-c", "echo $$"));
+		ProcessControl.setSession(pb);
+		cgroup.wrap(pb);
+
+		final Process process = pb.start();
+		final String  echoed  = new BufferedReader(new InputStreamReader(process.getInputStream())).readLine();
+		process.waitFor();
+
+		// The pid written to cgroup.procs is that of the job, the shells exec.
+		assertEquals(String.valueOf(ProcessControl.getPid(process)), echoed.trim());
+		assertEquals(echoed.trim(), read(new File(cgroup.getDirectory(), "cgroup.procs")));
+	}
+
+	@Test
+	public void testWorkerEntersAndLeaves() throws Exception {
+		if (!ProcFS.isAvailable()) return;
+
+		final Process process = new ProcessBuilder(Arrays.asList("sleep", "10")).start();
+		try {
+			final int pid = ProcessControl.getPid(process);
+
+			// The cgroup which the worker is in, below the fake mount.
+			final File from = new File(parent, ProcFS.getCgroup(pid)+"/cgroup.procs");
+			from.getParentFile().mkdirs();
+			write(from, "");
+
+			final JobCgroup cgroup = new CgroupLauncher(parent, 100, false).create("worker", ProcessResources.DEFAULT, null);
+			assertEquals(from.getCanonicalFile(), cgroup.enter(pid).getCanonicalFile());
+			assertEquals(String.valueOf(pid), read(new File(cgroup.getDirectory(), "cgroup.procs")));
+
+			cgroup.leave(pid, from);
+			assertEquals(String.valueOf(pid), read(from));
+		} finally {
+			process.destroy();
+		}
+	}
+
+	private static String read(File file) throws Exception {
+		final BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			return reader.readLine().trim();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void write(File file, String text) throws Exception {
+		final FileWriter writer = new FileWriter(file);
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void delete(File file) {
+		final File[] files = file.listFiles();
+		if (files!=null) for (File f : files) delete(f);
+		file.delete();
+	}
+}
@@ -0,0 +1,101 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dawnsci.commandserver.core.application.ClassDataSharing;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that one JVM records the class data archive of an application
+ * and that the others use it once it has been written.
+ */
+public class ClassDataSharingTest {
+
+	private File                dir;
+	private Map<String, String> props;
+
+	@Before
+	public void create() throws Exception {
+		dir = File.createTempFile("cds", "");
+		dir.delete();
+		props = new HashMap<String, String>(1);
+		props.put("cdsDirectory", dir.getAbsolutePath());
+	}
+
+	@After
+	public void dispose() {
+		delete(dir);
+	}
+
+	@Test
+	public void testRecordThenShare() throws Exception {
+
+		final File   archive = new File(dir, "org.dawnsci.commandserver.consumer.jsa");
+		final String dawn    = install("JAVA_VERSION=\"17.0.2\"");
+
+		List<String> args = ClassDataSharing.getVmArgs(props, "org.dawnsci.commandserver.consumer", dawn);
+		assertEquals(Collections.singletonList("-XX:ArchiveClassesAtExit="+archive.getAbsolutePath()), args);
+
+		// Being recorded, so another JVM runs without
+		assertTrue(ClassDataSharing.getVmArgs(props, "org.dawnsci.commandserver.consumer", dawn).isEmpty());
+
+		// The other applications have their own archive
+		assertEquals(1, ClassDataSharing.getVmArgs(props, "org.dawnsci.commandserver.processing.worker", dawn).size());
+
+		// The recording JVM has exited
+		final FileOutputStream out = new FileOutputStream(archive);
+		out.write(new byte[]{1, 2, 3});
+		out.close();
+
+		args = ClassDataSharing.getVmArgs(props, "org.dawnsci.commandserver.consumer", dawn);
+		assertEquals("-XX:SharedArchiveFile="+archive.getAbsolutePath(), args.get(0));
+		assertFalse(new File(dir, "org.dawnsci.commandserver.consumer.jsa.lock").exists());
+	}
+
+	@Test
+	public void testJavaVersion() throws Exception {
+
+		// Java 8 does not know the options and would not start
+		assertTrue(ClassDataSharing.getVmArgs(props, "org.dawnsci.commandserver.consumer", install("JAVA_VERSION=\"1.8.0_292\"")).isEmpty());
+
+		// Unknown, so an older JVM is told to ignore them
+		final List<String> args = ClassDataSharing.getVmArgs(props, "org.dawnsci.commandserver.consumer", new File(dir, "none/dawn").getAbsolutePath());
+		assertEquals("-XX:+IgnoreUnrecognizedVMOptions", args.get(0));
+		assertTrue(args.get(1).startsWith("-XX:ArchiveClassesAtExit="));
+	}
+
+	@Test
+	public void testOff() throws Exception {
+		assertTrue(ClassDataSharing.getVmArgs(new HashMap<String, String>(1), "org.dawnsci.commandserver.consumer").isEmpty());
+		assertTrue(ClassDataSharing.getVmArgs(null, "org.dawnsci.commandserver.consumer").isEmpty());
+	}
+
+	/**
+	 * @return a DAWN executable with a jre of the release
+	 */
+	private String install(String release) throws Exception {
+		final File jre = new File(dir, "dawn/jre");
+		jre.mkdirs();
+		final FileOutputStream out = new FileOutputStream(new File(jre, "release"));
+		out.write(release.getBytes("UTF-8"));
+		out.close();
+		return new File(dir, "dawn/dawn").getAbsolutePath();
+	}
+
+	private static void delete(File file) {
+		final File[] files = file.listFiles();
+		if (files!=null) for (File f : files) delete(f);
+		file.delete();
+	}
+}
@@ -0,0 +1,37 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+
+import org.dawnsci.commandserver.core.ActiveMQServiceHolder;
+import org.dawnsci.commandserver.core.EmbeddedBroker;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Checks that the embedded broker runs until everything which
+ * started it has released it.
+ */
+public class EmbeddedBrokerTest {
+
+	@After
+	public void dispose() throws Exception {
+		EmbeddedBroker.stop();
+	}
+
+	@Test
+	public void testReleased() throws Exception {
+
+		final URI uri = new URI(ActiveMQServiceHolder.EMBEDDED_URI);
+		assertFalse(EmbeddedBroker.startIfEmbedded(new URI("tcp://localhost:61616")));
+		assertTrue(EmbeddedBroker.startIfEmbedded(uri)); // A consumer
+		assertTrue(EmbeddedBroker.startIfEmbedded(uri)); // A client in the same JVM
+
+		EmbeddedBroker.release();
+		assertTrue(EmbeddedBroker.isRunning());
+		EmbeddedBroker.release();
+		assertFalse(EmbeddedBroker.isRunning());
+	}
+}
@@ -0,0 +1,127 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.List;
+
+import org.dawnsci.commandserver.core.ActiveMQServiceHolder;
+import org.dawnsci.commandserver.core.process.JobJournal;
+import org.dawnsci.commandserver.core.process.ProcFS;
+import org.dawnsci.commandserver.core.process.ProcessControl;
+import org.eclipse.scanning.api.event.status.Status;
+import org.eclipse.scanning.api.event.status.StatusBean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.diamond.daq.activemq.connector.ActivemqConnectorService;
+
+/**
+ * Checks that the journal keeps the last state of the unfinished
+ * jobs only and that percent updates are rate limited.
+ */
+public class JobJournalTest {
+
+	private File journalFile;
+
+	@Before
+	public void create() throws Exception {
+		ActiveMQServiceHolder.setEventConnectorService(new ActivemqConnectorService());
+		journalFile = File.createTempFile("journal", ".txt");
+		journalFile.delete();
+	}
+
+	@After
+	public void dispose() {
+		journalFile.delete();
+	}
+
+	@Test
+	public void testUnfinishedJobsKept() throws Exception {
+
+		JobJournal journal = new JobJournal(journalFile, 60000);
+		assertTrue(journal.open(StatusBean.class).isEmpty());
+
+		final StatusBean running = createBean("running", Status.RUNNING);
+		journal.record(running, 1234, 99);
+
+		final StatusBean done = createBean("done", Status.RUNNING);
+		journal.record(done, 5678, 99);
+		done.setStatus(Status.COMPLETE);
+		journal.record(done, 5678, 99);
+		journal.close();
+
+		journal = new JobJournal(journalFile, 60000);
+		final List<JobJournal.Entry> entries = journal.open(StatusBean.class);
+		journal.close();
+
+		assertEquals(1, entries.size());
+		assertEquals("running", entries.get(0).getUniqueId());
+		assertEquals(Status.RUNNING, entries.get(0).getStatus());
+		assertEquals(1234, entries.get(0).getPid());
+		assertEquals("running", entries.get(0).getBean().getUniqueId());
+
+		// The journal was compacted when it was opened
+		assertEquals(1, countLines(journalFile));
+	}
+
+	@Test
+	public void testPercentRateLimited() throws Exception {
+
+		final JobJournal journal = new JobJournal(journalFile, 60000);
+		journal.open(StatusBean.class);
+
+		final StatusBean bean = createBean("percent", Status.RUNNING);
+		for (int i = 0; i < 100; i++) {
+			bean.setPercentComplete(i);
+			journal.record(bean, 1234, 99);
+		}
+		bean.setStatus(Status.COMPLETE);
+		journal.record(bean, 1234, 99);
+		journal.close();
+
+		// The first update and the change to complete
+		assertEquals(2, countLines(journalFile));
+	}
+
+	@Test
+	public void testProcessAlive() throws Exception {
+		if (!ProcFS.isAvailable()) return;
+
+		final Process process = new ProcessBuilder("sleep", "10").start();
+		try {
+			final int  pid   = ProcessControl.getPid(process);
+			final long start = ProcFS.getStartTime(pid);
+			assertTrue(start>0);
+			assertTrue(ProcFS.isAlive(pid, start));
+			assertFalse("A different start time is a different process", ProcFS.isAlive(pid, start+1));
+		} finally {
+			process.destroy();
+			process.waitFor();
+		}
+	}
+
+	private static StatusBean createBean(String id, Status status) {
+		final StatusBean bean = new StatusBean();
+		bean.setUniqueId(id);
+		bean.setName(id);
+		bean.setStatus(status);
+		return bean;
+	}
+
+	private static int countLines(File file) throws Exception {
+		final BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			int count = 0;
+			while(reader.readLine()!=null) ++count;
+			return count;
+		} finally {
+			reader.close();
+		}
+	}
+}
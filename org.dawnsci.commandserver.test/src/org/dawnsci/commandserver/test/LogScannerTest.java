@@ -0,0 +1,112 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dawnsci.commandserver.core.process.ILineListener;
+import org.dawnsci.commandserver.core.process.LogScanner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that each scan of a file gives only the lines written since the
+ * last scan, whether the file is read or memory mapped.
+ */
+public class LogScannerTest {
+
+	private File         file;
+	private List<String> lines;
+	private ILineListener listener;
+
+	@Before
+	public void create() throws Exception {
+		file  = File.createTempFile("scan", ".txt");
+		lines = new ArrayList<String>();
+		listener = new ILineListener() {
+			@Override
+			public void lineRead(File file, String line) {
+				lines.add(line);
+			}
+		};
+	}
+
+	@After
+	public void dispose() {
+		file.delete();
+	}
+
+	@Test
+	public void testRead() throws Exception {
+		checkScans(new LogScanner(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testMapped() throws Exception {
+		checkScans(new LogScanner(0));
+	}
+
+	private void checkScans(LogScanner scanner) throws Exception {
+
+		write("one\ntwo\nthr", true);
+		scanner.scan(file, listener);
+		assertEquals(Arrays.asList("one", "two"), lines);
+
+		write("ee\r\nfour\n", true);
+		scanner.scan(file, listener);
+		assertEquals(Arrays.asList("one", "two", "three", "four"), lines);
+		assertEquals(file.length(), scanner.getOffset(file));
+
+		scanner.scan(file, listener);
+		assertEquals(4, lines.size());
+
+		write("five", true);
+		scanner.scan(file, listener, true);
+		assertEquals("five", lines.get(4));
+
+		// Replaced by a shorter file
+		lines.clear();
+		write("six\n", false);
+		scanner.scan(file, listener);
+		assertEquals(Arrays.asList("six"), lines);
+	}
+
+	@Test
+	public void testLargeFile() throws Exception {
+
+		final StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < 100000; i++) buf.append("Line ").append(i).append('\n');
+		write(buf.toString(), false);
+
+		final LogScanner scanner = new LogScanner(1024);
+		scanner.scan(file, listener);
+		assertEquals(100000, lines.size());
+		assertEquals("Line 99999", lines.get(99999));
+
+		write("Status: normal termination\n", true);
+		scanner.scan(file, listener);
+		assertEquals(100001, lines.size());
+		assertEquals("Status: normal termination", lines.get(100000));
+	}
+
+	@Test
+	public void testMissingFile() throws Exception {
+		file.delete();
+		new LogScanner().scan(file, listener);
+		assertEquals(0, lines.size());
+	}
+
+	private void write(String text, boolean append) throws Exception {
+		final FileOutputStream out = new FileOutputStream(file, append);
+		try {
+			out.write(text.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+}
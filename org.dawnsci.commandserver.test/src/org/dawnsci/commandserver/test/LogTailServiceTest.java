@@ -0,0 +1,143 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.dawnsci.commandserver.core.process.ILineListener;
+import org.dawnsci.commandserver.core.process.LogTailService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that complete lines are given to the listener as they are
+ * written, including to files which do not exist when they are tailed.
+ */
+public class LogTailServiceTest {
+
+	private File           dir;
+	private LogTailService service;
+
+	@Before
+	public void create() throws Exception {
+		dir = File.createTempFile("tail", "");
+		dir.delete();
+		dir.mkdirs();
+		service = new LogTailService(100);
+	}
+
+	@After
+	public void dispose() {
+		for (File file : dir.listFiles()) file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testPartialLines() throws Exception {
+
+		final File         log   = new File(dir, "xia2.txt");
+		final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+		final LogTailService.Tail tail = service.tail(log, new ILineListener() {
+			@Override
+			public void lineRead(File file, String line) {
+				lines.add(line);
+			}
+		});
+		try {
+			append(log, "--- Integrating sweep1 ---\nhalf a ");
+			waitFor(lines, 1);
+			assertEquals(Arrays.asList("--- Integrating sweep1 ---"), lines);
+
+			append(log, "line\r\nlast\n");
+			waitFor(lines, 3);
+			assertEquals(Arrays.asList("--- Integrating sweep1 ---", "half a line", "last"), lines);
+		} finally {
+			tail.close();
+		}
+		assertEquals(0, service.getTailCount());
+	}
+
+	@Test
+	public void testTruncated() throws Exception {
+
+		final File log = new File(dir, "out.txt");
+		append(log, "one\ntwo\n");
+
+		final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+		final LogTailService.Tail tail = service.tail(log, new ILineListener() {
+			@Override
+			public void lineRead(File file, String line) {
+				lines.add(line);
+			}
+		});
+		try {
+			waitFor(lines, 2);
+			log.delete();
+			append(log, "3\n");
+			waitFor(lines, 3);
+			assertEquals(Arrays.asList("one", "two", "3"), lines);
+		} finally {
+			tail.close();
+		}
+	}
+
+	@Test
+	public void testClosed() throws Exception {
+
+		final File log = new File(dir, "closed.txt");
+		final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+		final LogTailService.Tail tail = service.tail(log, new ILineListener() {
+			@Override
+			public void lineRead(File file, String line) {
+				lines.add(line);
+			}
+		});
+		append(log, "before\n");
+		waitFor(lines, 1);
+		tail.close();
+
+		append(log, "after\n");
+		Thread.sleep(500);
+		assertEquals(Arrays.asList("before"), lines);
+	}
+
+	@Test
+	public void testLastLineOnClose() throws Exception {
+
+		final File log = new File(dir, "last.txt");
+		final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+		final LogTailService.Tail tail = service.tail(log, new ILineListener() {
+			@Override
+			public void lineRead(File file, String line) {
+				lines.add(line);
+			}
+		});
+		append(log, "first\n");
+		waitFor(lines, 1);
+
+		// Not yet read by the service, and without an end
+		append(log, "second\nno end");
+		tail.close();
+		assertEquals(Arrays.asList("first", "second", "no end"), lines);
+	}
+
+	private static void append(File file, String text) throws Exception {
+		final FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(text.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void waitFor(List<String> lines, int size) throws Exception {
+		for (int i = 0; i < 100 && lines.size()<size; i++) Thread.sleep(20);
+		Thread.sleep(50); // Nothing more should arrive
+	}
+}
@@ -0,0 +1,64 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dawnsci.commandserver.core.metrics.Gauge;
+import org.dawnsci.commandserver.core.metrics.Histogram;
+import org.dawnsci.commandserver.core.metrics.MetricsRegistry;
+import org.junit.Test;
+
+/**
+ * Checks the quantiles of the histogram and the
+ * Prometheus format of the registry.
+ */
+public class MetricsRegistryTest {
+
+	@Test
+	public void testHistogramQuantiles() throws Exception {
+
+		final Histogram histogram = new MetricsRegistry().histogram("test_seconds", "Test");
+		for (int i = 1; i <= 1000; i++) histogram.record(i, TimeUnit.MILLISECONDS);
+
+		assertEquals(1000, histogram.getCount());
+		assertWithin(500, histogram.getValueAtQuantile(0.5));
+		assertWithin(990, histogram.getValueAtQuantile(0.99));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), histogram.getMax());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(500500), histogram.getSum());
+	}
+
+	@Test
+	public void testSameMetricReturned() throws Exception {
+		final MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("test_total", "Test", "process", "a").inc();
+		registry.counter("test_total", "Test", "process", "a").inc();
+		registry.counter("test_total", "Test", "process", "b").inc();
+		assertEquals(2, registry.counter("test_total", "Test", "process", "a").get());
+	}
+
+	@Test
+	public void testScrape() throws Exception {
+
+		final MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("test_total", "Test count", "process", "a").add(3);
+		registry.gauge("test_active", "Test gauge", new Gauge() {
+			public double getValue() {
+				return 2;
+			}
+		});
+		registry.histogram("test_seconds", "Test time").record(1, TimeUnit.SECONDS);
+
+		final String text = registry.scrape();
+		assertTrue(text, text.contains("# TYPE test_total counter\ntest_total{process=\"a\"} 3\n"));
+		assertTrue(text, text.contains("# TYPE test_active gauge\ntest_active 2\n"));
+		assertTrue(text, text.contains("test_seconds_count 1\n"));
+		assertTrue(text, text.contains("test_seconds{quantile=\"0.5\"} 1"));
+	}
+
+	private static void assertWithin(long expectedMillis, long actualNanos) {
+		final double actual = actualNanos/1e6;
+		assertTrue("Expected about "+expectedMillis+"ms but was "+actual, Math.abs(actual-expectedMillis)<=expectedMillis/16d+1);
+	}
+}
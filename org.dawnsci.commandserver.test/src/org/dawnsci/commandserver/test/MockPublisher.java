@@ -0,0 +1,94 @@
+package org.dawnsci.commandserver.test;
+
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.eclipse.scanning.api.event.EventException;
+import org.eclipse.scanning.api.event.core.IPublisher;
+import org.eclipse.scanning.api.event.status.StatusBean;
+
+/**
+ * Records the beans broadcast so that tests can run without a broker.
+ */
+class MockPublisher<T extends StatusBean> implements IPublisher<T> {
+
+	private final List<T> broadcasts = Collections.synchronizedList(new ArrayList<T>(31));
+
+	@Override
+	public void broadcast(T bean) throws EventException {
+		broadcasts.add(bean);
+	}
+
+	public List<T> getBroadcasts() {
+		return broadcasts;
+	}
+
+	@Override
+	public String getTopicName() {
+		return null;
+	}
+
+	@Override
+	public void setTopicName(String topic) throws EventException {
+		
+	}
+
+	@Override
+	public void disconnect() throws EventException {
+		
+	}
+
+	@Override
+	public URI getUri() {
+		return null;
+	}
+
+	@Override
+	public void setAlive(boolean alive) throws EventException {
+		
+	}
+
+	@Override
+	public boolean isAlive() {
+		return false;
+	}
+
+	@Override
+	public void setQueueName(String queueName) {
+		
+	}
+
+	@Override
+	public String getQueueName() {
+		return null;
+	}
+
+	@Override
+	public String getConsumerName() {
+		return null;
+	}
+
+	@Override
+	public void setConsumerName(String cname) {
+		
+	}
+
+	@Override
+	public UUID getConsumerId() {
+		return null;
+	}
+
+	@Override
+	public void setConsumerId(UUID id) {
+		
+	}
+
+	@Override
+	public void setLoggingStream(PrintStream stream) {
+		
+	}
+}
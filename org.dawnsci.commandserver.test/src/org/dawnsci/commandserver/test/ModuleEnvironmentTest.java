@@ -0,0 +1,62 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.dawnsci.commandserver.core.process.ModuleEnvironment;
+import org.junit.Test;
+
+/**
+ * Checks that the environment of a setup command is made once, is used
+ * to run commands directly and is made again when a modulefile changes.
+ */
+public class ModuleEnvironmentTest {
+
+	@Test
+	public void testCommandRunDirectly() throws Exception {
+
+		final ModuleEnvironment modules = new ModuleEnvironment(60000);
+		final ProcessBuilder pb = new ProcessBuilder();
+		assertTrue(modules.apply(pb, "export MODULE_TEST=loaded", "printenv MODULE_TEST"));
+		assertEquals("loaded", pb.environment().get("MODULE_TEST"));
+		assertTrue(new File(pb.command().get(0)).isAbsolute());
+		assertEquals("MODULE_TEST", pb.command().get(1));
+
+		// Shell syntax is run by bash, without the setup command
+		final ProcessBuilder shell = new ProcessBuilder();
+		assertTrue(modules.apply(shell, "export MODULE_TEST=loaded", "echo $MODULE_TEST > out.txt"));
+		assertEquals(Arrays.asList("bash", "-c", "echo $MODULE_TEST > out.txt"), shell.command());
+	}
+
+	@Test
+	public void testCachedUntilModuleFileChanges() throws Exception {
+
+		final File modulefile = File.createTempFile("modulefile", "");
+		try {
+			final ModuleEnvironment modules = new ModuleEnvironment(60000);
+			final String setup = "export _LMFILES_="+modulefile.getAbsolutePath();
+			final Map<String, String> env = modules.getEnvironment(setup);
+			assertSame(env, modules.getEnvironment(setup));
+
+			modulefile.setLastModified(modulefile.lastModified()-10000);
+			assertNotSame(env, modules.getEnvironment(setup));
+
+		} finally {
+			modulefile.delete();
+		}
+	}
+
+	@Test
+	public void testSetupFails() throws Exception {
+		final ProcessBuilder pb = new ProcessBuilder("unchanged");
+		assertFalse(new ModuleEnvironment(60000).apply(pb, "exit 1", "xia2"));
+		assertEquals(Arrays.asList("unchanged"), pb.command());
+	}
+}
@@ -0,0 +1,139 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dawnsci.commandserver.core.process.ILineListener;
+import org.dawnsci.commandserver.core.process.PipeDrainer;
+import org.dawnsci.commandserver.core.process.ProcFS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the output of many processes is written to their files
+ * by one thread, and that the lines are given to the listener.
+ */
+public class PipeDrainerTest {
+
+	private File dir;
+
+	@Before
+	public void create() throws Exception {
+		dir = File.createTempFile("drain", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void dispose() {
+		for (File file : dir.listFiles()) file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testManyProcesses() throws Exception {
+		if (!ProcFS.isAvailable()) return;
+
+		final PipeDrainer drainer = new PipeDrainer(1, 20, 100);
+		final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+		final ILineListener listener = new ILineListener() {
+			@Override
+			public void lineRead(File file, String line) {
+				lines.add(line);
+			}
+		};
+
+		final List<PipeDrainer.Pipe> pipes = new ArrayList<PipeDrainer.Pipe>();
+		for (int i = 0; i < 20; i++) {
+			final Process process = new ProcessBuilder("/bin/sh", "-c", "for n in 1 2 3 4 5; do echo out"+i+"_$n; echo err"+i+"_$n >&2; done; printf end").start();
+			pipes.add(drainer.drain(process, process.getInputStream(), new File(dir, "out"+i+".txt"), listener));
+			pipes.add(drainer.drain(process, process.getErrorStream(), new File(dir, "err"+i+".txt"), null));
+		}
+
+		waitForClose(pipes, 10000);
+		for (int i = 0; i < 50 && drainer.getPipeCount()>0; i++) Thread.sleep(20);
+		assertEquals(0, drainer.getPipeCount());
+
+		assertEquals(20*6, lines.size()); // The last line has no end
+		for (int i = 0; i < 20; i++) {
+			final List<String> out = read(new File(dir, "out"+i+".txt"));
+			assertEquals(6, out.size());
+			assertEquals("out"+i+"_1", out.get(0));
+			assertEquals("end", out.get(5));
+			assertEquals(5, read(new File(dir, "err"+i+".txt")).size());
+		}
+	}
+
+	@Test
+	public void testDestroyed() throws Exception {
+		if (!ProcFS.isAvailable()) return;
+
+		final PipeDrainer drainer = new PipeDrainer(1, 20, 100);
+		final Process process = new ProcessBuilder("/bin/sh", "-c", "echo started; exec sleep 60").start();
+		final PipeDrainer.Pipe pipe = drainer.drain(process, process.getInputStream(), new File(dir, "out.txt"), null);
+
+		final long start = System.currentTimeMillis();
+		while(pipe.getByteCount()<8 && System.currentTimeMillis()-start<5000) Thread.sleep(10);
+		process.destroy();
+		process.waitFor();
+
+		waitForClose(Collections.singletonList(pipe), 5000);
+		assertEquals(Collections.singletonList("started"), read(new File(dir, "out.txt")));
+	}
+
+	@Test
+	public void testNoLineEnds() throws Exception {
+		if (!ProcFS.isAvailable()) return;
+
+		final PipeDrainer drainer = new PipeDrainer(1, 20, 100);
+		final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+		final ILineListener listener = new ILineListener() {
+			@Override
+			public void lineRead(File file, String line) {
+				lines.add(line);
+			}
+		};
+
+		// 1MB without a line end is given in parts, not kept in memory.
+		final Process process = new ProcessBuilder("/bin/sh", "-c", "head -c 1048576 /dev/zero | tr '\\0' x").start();
+		final PipeDrainer.Pipe pipe = drainer.drain(process, process.getInputStream(), new File(dir, "out.txt"), listener);
+		waitForClose(Collections.singletonList(pipe), 10000);
+
+		assertEquals(1048576, pipe.getByteCount());
+		assertTrue(lines.size()>1);
+		int length = 0;
+		for (String line : lines) {
+			assertTrue(line.length()<=128*1024);
+			length += line.length();
+		}
+		assertEquals(1048576, length);
+	}
+
+	private static void waitForClose(List<PipeDrainer.Pipe> pipes, long timeout) throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		for (PipeDrainer.Pipe pipe : pipes) {
+			while(!pipe.isClosed() && System.currentTimeMillis()-start<timeout) Thread.sleep(20);
+			assertTrue(pipe.getFile()+" is not closed", pipe.isClosed());
+		}
+	}
+
+	private static List<String> read(File file) throws Exception {
+		final List<String> ret = new ArrayList<String>();
+		final BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while((line = reader.readLine())!=null) ret.add(line);
+		} finally {
+			reader.close();
+		}
+		return ret;
+	}
+}
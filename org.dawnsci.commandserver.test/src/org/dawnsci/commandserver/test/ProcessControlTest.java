@@ -0,0 +1,90 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.dawnsci.commandserver.core.process.ProcFS;
+import org.dawnsci.commandserver.core.process.ProcessControl;
+import org.junit.Test;
+
+/**
+ * Checks that a job started in its own session is terminated
+ * with all of the processes that it started.
+ */
+public class ProcessControlTest {
+
+	@Test
+	public void testTreeTerminated() throws Exception {
+		if (!ProcFS.isAvailable()) return;
+
+		final Process process = start("sleep 60 & sleep 60 & wait");
+		try {
+			final int pid = ProcessControl.getPid(process);
+			final Set<Integer> tree = waitForTree(pid, 3);
+
+			assertTrue(ProcessControl.terminate(pid, 2000));
+			for (Integer proc : tree) assertFalse("Process "+proc+" is still alive", ProcFS.isAlive(proc, -1));
+		} finally {
+			process.destroy();
+			process.waitFor();
+		}
+	}
+
+	@Test
+	public void testKilledAfterGrace() throws Exception {
+		if (!ProcFS.isAvailable()) return;
+
+		// Ignores SIGTERM, which the sleep inherits.
+		final Process process = start("trap '' TERM; sleep 60 & wait");
+		try {
+			final int pid = ProcessControl.getPid(process);
+			final Set<Integer> tree = waitForTree(pid, 2);
+
+			final long start = System.currentTimeMillis();
+			assertTrue(ProcessControl.terminate(pid, 500));
+			assertTrue("The grace period was not waited for", System.currentTimeMillis()-start>=500);
+			for (Integer proc : tree) assertFalse("Process "+proc+" is still alive", ProcFS.isAlive(proc, -1));
+		} finally {
+			process.destroy();
+			process.waitFor();
+		}
+	}
+
+	@Test
+	public void testOrphansInSessionTerminated() throws Exception {
+		if (!ProcFS.isAvailable()) return;
+
+		// The shell exits at once leaving the sleep re-parented to init, only its session remains.
+		final Process process = start("sleep 60 & echo $!");
+		try {
+			final int pid    = ProcessControl.getPid(process);
+			final int orphan = Integer.parseInt(new java.io.BufferedReader(new java.io.InputStreamReader(process.getInputStream())).readLine().trim());
+			process.waitFor();
+			assertTrue(ProcFS.isAlive(orphan, -1));
+			assertTrue(ProcessControl.getTree(pid).contains(orphan));
+
+			assertTrue(ProcessControl.terminate(pid, 2000));
+			assertFalse(ProcFS.isAlive(orphan, -1));
+		} finally {
+			process.destroy();
+		}
+	}
+
+	private static Process start(String command) throws Exception {
+		final ProcessBuilder pb = new ProcessBuilder("sh", "-c", command);
+		ProcessControl.setSession(pb);
+		return pb.start();
+	}
+
+	private static Set<Integer> waitForTree(int pid, int size) throws Exception {
+		Set<Integer> tree = ProcessControl.getTree(pid);
+		for (int i = 0; i < 100 && tree.size()<size; i++) {
+			Thread.sleep(20);
+			tree = ProcessControl.getTree(pid);
+		}
+		assertTrue("Expected "+size+" processes, found "+tree, tree.size()>=size);
+		return tree;
+	}
+}
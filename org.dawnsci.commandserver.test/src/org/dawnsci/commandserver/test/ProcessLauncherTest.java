@@ -0,0 +1,124 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Files;
+
+import org.dawnsci.commandserver.core.process.ProcFS;
+import org.dawnsci.commandserver.core.process.ProcessControl;
+import org.dawnsci.commandserver.core.process.ProcessLauncher;
+import org.dawnsci.commandserver.core.process.RemoteProcess;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that processes are started by the launch server with their
+ * directory, environment and redirects and that their exit code is
+ * returned to the consumer.
+ */
+public class ProcessLauncherTest {
+
+	private File            dir;
+	private ProcessLauncher launcher;
+
+	@Before
+	public void create() throws Exception {
+		dir = File.createTempFile("launch", "");
+		dir.delete();
+		dir.mkdirs();
+		launcher = new ProcessLauncher(true);
+	}
+
+	@After
+	public void dispose() {
+		for (File file : dir.listFiles()) file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testStartAndExit() throws Exception {
+
+		final File log = new File(dir, "out.txt");
+		final ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c", "echo $LAUNCH_TEST; pwd; echo error >&2; exit 3");
+		pb.directory(dir);
+		pb.environment().put("LAUNCH_TEST", "hello");
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(Redirect.appendTo(log));
+
+		final Process process = launcher.start(pb);
+		assertTrue(process instanceof RemoteProcess);
+		assertTrue(ProcessControl.getPid(process)>0);
+		assertEquals(-1, process.getInputStream().read());
+
+		assertEquals(3, process.waitFor());
+		assertEquals(3, process.exitValue());
+		final String output = new String(Files.readAllBytes(log.toPath()), "UTF-8");
+		assertEquals("hello\n"+dir.getCanonicalPath()+"\nerror\n", output);
+	}
+
+	@Test
+	public void testLargeEnvironment() throws Exception {
+
+		// Longer than writeUTF can send, shorter than the limit of exec.
+		final StringBuilder buf = new StringBuilder();
+		while(buf.length()<100000) buf.append("/opt/module/bin:");
+
+		final File log = new File(dir, "out.txt");
+		final ProcessBuilder pb = new ProcessBuilder("/bin/sh", "-c", "echo ${#LAUNCH_PATH}");
+		pb.environment().put("LAUNCH_PATH", buf.toString());
+		pb.redirectOutput(Redirect.to(log));
+		pb.redirectErrorStream(true);
+
+		final Process process = launcher.start(pb);
+		assertTrue(process instanceof RemoteProcess);
+		assertEquals(0, process.waitFor());
+		final String output = new String(Files.readAllBytes(log.toPath()), "UTF-8");
+		assertEquals(buf.length()+"\n", output);
+	}
+
+	@Test
+	public void testDestroy() throws Exception {
+
+		if (!ProcFS.isAvailable()) return;
+
+		final ProcessBuilder pb = new ProcessBuilder("sleep", "60");
+		pb.redirectOutput(Redirect.to(new File(dir, "out.txt")));
+		pb.redirectError(Redirect.to(new File(dir, "err.txt")));
+
+		final Process process = launcher.start(pb);
+		final int pid = ProcessControl.getPid(process);
+		assertTrue(ProcFS.isAlive(pid, -1));
+		try {
+			process.exitValue();
+			throw new Exception("The process should be running");
+		} catch (IllegalThreadStateException expected) {
+			// Still running
+		}
+
+		process.destroy();
+		process.waitFor();
+		assertFalse(ProcFS.isAlive(pid, -1));
+	}
+
+	@Test(expected=IOException.class)
+	public void testNoProgram() throws Exception {
+		final ProcessBuilder pb = new ProcessBuilder(new File(dir, "missing").getAbsolutePath());
+		pb.redirectOutput(Redirect.to(new File(dir, "out.txt")));
+		pb.redirectErrorStream(true);
+		launcher.start(pb);
+	}
+
+	@Test
+	public void testPipesStartedDirectly() throws Exception {
+		final Process process = launcher.start(new ProcessBuilder("echo", "piped"));
+		assertFalse(process instanceof RemoteProcess);
+		assertEquals('p', process.getInputStream().read());
+		process.waitFor();
+	}
+}
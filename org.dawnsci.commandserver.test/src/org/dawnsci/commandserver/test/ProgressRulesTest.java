@@ -0,0 +1,138 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.dawnsci.commandserver.core.process.ProgressRules;
+import org.dawnsci.commandserver.mx.beans.ProjectBean;
+import org.dawnsci.commandserver.mx.beans.SweepBean;
+import org.dawnsci.commandserver.mx.process.Xia2Process;
+import org.eclipse.scanning.api.event.status.Status;
+import org.eclipse.scanning.api.event.status.StatusBean;
+import org.junit.Test;
+
+/**
+ * Checks the progress rules, including that the xia2 rules give the
+ * progress which Xia2Process used to work out in code.
+ */
+public class ProgressRulesTest {
+
+	@Test
+	public void testXia2Rules() throws Exception {
+
+		final ProgressRules rules = ProgressRules.load(Xia2Process.class.getResourceAsStream("xia2_progress.properties"));
+
+		final ProjectBean bean = new ProjectBean();
+		bean.setSweeps(Arrays.asList(new SweepBean(), new SweepBean()));
+		bean.setStatus(Status.RUNNING);
+		final ProgressRules.State state = rules.createState();
+		state.setVariable("sweeps", bean.getSweeps().size());
+
+		assertFalse(rules.apply("Nothing to see here", bean, state));
+
+		assertTrue(rules.apply("-------------------- Integrating SWEEP1 --------------------", bean, state));
+		assertEquals("Integrating SWEEP1", bean.getMessage());
+		assertEquals(25d, bean.getPercentComplete(), 0.0001);
+
+		assertTrue(rules.apply("-------------------- Integrating SWEEP1 --------------------", bean, state));
+		assertEquals(25d, bean.getPercentComplete(), 0.0001);
+
+		assertTrue(rules.apply("-------------------- Integrating SWEEP2 --------------------", bean, state));
+		assertEquals(50d, bean.getPercentComplete(), 0.0001);
+
+		assertTrue(rules.apply("--------------------Scaling", bean, state));
+		assertEquals("Scaling", bean.getMessage());
+		assertEquals(Status.RUNNING, bean.getStatus());
+
+		assertTrue(rules.apply("Error: No images assigned for crystal test", bean, state));
+		assertEquals(Status.FAILED, bean.getStatus());
+		assertEquals(Status.RUNNING, bean.getPreviousStatus());
+		assertEquals("Error: No images assigned for crystal test", bean.getMessage());
+		assertEquals(0d, bean.getPercentComplete(), 0.0001);
+
+		// Final, so nothing else changes it
+		assertFalse(rules.apply("--------------------Merging", bean, state));
+		assertEquals(Status.FAILED, bean.getStatus());
+	}
+
+	@Test
+	public void testFirstRuleWins() throws Exception {
+
+		final Properties props = new Properties();
+		props.setProperty("rules", "done, images, any");
+		props.setProperty("done.match", "Finished");
+		props.setProperty("done.status", "COMPLETE");
+		props.setProperty("done.percent", "100");
+		props.setProperty("images.match", "regex:Processed (\\d+) of (\\d+) images");
+		props.setProperty("images.percent", "$1/$2*100");
+		props.setProperty("images.message", "$1 images");
+		props.setProperty("any.match", "regex:^.+$");
+		props.setProperty("any.message", "$0");
+		final ProgressRules rules = new ProgressRules(props);
+		assertEquals(3, rules.size());
+
+		final StatusBean          bean  = new StatusBean();
+		final ProgressRules.State state = rules.createState();
+		bean.setStatus(Status.RUNNING);
+
+		assertTrue(rules.apply("Processed 30 of 120 images", bean, state));
+		assertEquals(25d, bean.getPercentComplete(), 0.0001);
+		assertEquals("30 images", bean.getMessage());
+
+		assertTrue(rules.apply("Processed 30 of 0 images", bean, state)); // Cannot be worked out, percent is left
+		assertEquals(25d, bean.getPercentComplete(), 0.0001);
+
+		assertTrue(rules.apply("Something else", bean, state));
+		assertEquals("Something else", bean.getMessage());
+		assertEquals(25d, bean.getPercentComplete(), 0.0001);
+
+		assertTrue(rules.apply("Finished, processed 120 of 120 images", bean, state));
+		assertEquals(Status.COMPLETE, bean.getStatus());
+		assertEquals(100d, bean.getPercentComplete(), 0.0001);
+	}
+
+	@Test
+	public void testManyRules() throws Exception {
+
+		final Properties  props = new Properties();
+		final StringBuilder names = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			names.append("step"+i+",");
+			props.setProperty("step"+i+".match", "regex:^Step "+i+" of (\\d+)$");
+			props.setProperty("step"+i+".percent", "("+i+"+1)/$1*100");
+		}
+		props.setProperty("rules", names.toString());
+		final ProgressRules rules = new ProgressRules(props);
+
+		final StatusBean          bean  = new StatusBean();
+		final ProgressRules.State state = rules.createState();
+		bean.setStatus(Status.RUNNING);
+		for (int i = 0; i < 500; i++) {
+			assertTrue(rules.apply("Step "+i+" of 500", bean, state));
+			assertEquals((i+1)/5d, bean.getPercentComplete(), 0.0001);
+		}
+		assertFalse(rules.apply("Step 500 of 500", bean, state));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadPercent() throws Exception {
+		final Properties props = new Properties();
+		props.setProperty("rules", "bad");
+		props.setProperty("bad.match", "Integrating");
+		props.setProperty("bad.percent", "distinct(1)*");
+		new ProgressRules(props);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadStatus() throws Exception {
+		final Properties props = new Properties();
+		props.setProperty("rules", "bad");
+		props.setProperty("bad.match", "Integrating");
+		props.setProperty("bad.status", "HALF_DONE");
+		new ProgressRules(props);
+	}
+}
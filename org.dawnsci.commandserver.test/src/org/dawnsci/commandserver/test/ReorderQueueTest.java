@@ -19,6 +19,8 @@ import javax.jms.QueueSession;
 import javax.jms.Session;
 import javax.jms.TextMessage;
 
+import org.dawnsci.commandserver.core.ActiveMQServiceHolder;
+import org.dawnsci.commandserver.core.EmbeddedBroker;
 import org.eclipse.scanning.api.event.IEventConnectorService;
 import org.junit.Test;
 
@@ -38,7 +40,8 @@ public class ReorderQueueTest {
 	public void reoder() throws Exception {
 		
 		String testQueueName = "fred";
-		URI uri = new URI("tcp://sci-serv5.diamond.ac.uk:61616");
+		URI uri = ActiveMQServiceHolder.getDefaultUri();
+		EmbeddedBroker.startIfEmbedded(uri); // -Dorg.dawnsci.commandserver.uri=vm://localhost?broker.persistent=false runs without a server
 
 		try {
 			clearAnyOldTestQueue(testQueueName,uri);
@@ -0,0 +1,133 @@
+package org.dawnsci.commandserver.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dawnsci.commandserver.core.application.PoolWorker;
+import org.dawnsci.commandserver.core.application.WorkerPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that jobs are run by the workers of the pool and that workers
+ * are replaced after their number of jobs. The workers are threads here
+ * rather than DAWN applications.
+ */
+public class WorkerPoolTest {
+
+	private List<String>  jobs;
+	private AtomicInteger started;
+	private WorkerPool    pool;
+
+	@Before
+	public void create() throws Exception {
+		jobs    = Collections.synchronizedList(new ArrayList<String>());
+		started = new AtomicInteger(0);
+		pool = new WorkerPool(2, 3, 0) {
+			@Override
+			protected Process startWorker(final int port, final String token, int index) throws Exception {
+				started.incrementAndGet();
+				final Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							PoolWorker.serve(port, token, new PoolWorker.IJobRunner() {
+								@Override
+								public void run(String job) throws Exception {
+									if (job.startsWith("bad")) throw new Exception("Cannot run "+job);
+									jobs.add(job);
+								}
+							});
+						} catch (Exception ne) {
+							ne.printStackTrace();
+						}
+					}
+				}, "Test worker "+index);
+				thread.setDaemon(true);
+				thread.start();
+				return null;
+			}
+		};
+		pool.start();
+	}
+
+	@After
+	public void dispose() {
+		pool.dispose();
+	}
+
+	@Test
+	public void testJobsRun() throws Exception {
+
+		for (int i = 0; i < 10; i++) {
+			final WorkerPool.Worker worker = pool.take();
+			try {
+				worker.run("job"+i);
+			} finally {
+				pool.release(worker);
+			}
+		}
+		assertEquals(10, jobs.size());
+		assertEquals("job9", jobs.get(9));
+
+		// Each worker runs 3 jobs, so the 10 jobs need at least 4 workers and the pool keeps 2
+		assertTrue("Only "+started.get()+" workers were started", started.get()>=4);
+		assertEquals(2, pool.getWorkerCount());
+	}
+
+	@Test
+	public void testJobFails() throws Exception {
+
+		final WorkerPool.Worker worker = pool.take();
+		try {
+			worker.run("bad job");
+			fail("The job should have failed");
+		} catch (Exception ne) {
+			assertEquals("Cannot run bad job", ne.getMessage());
+		} finally {
+			pool.release(worker);
+		}
+
+		// The worker is still used
+		final WorkerPool.Worker next = pool.take();
+		try {
+			next.run("good job");
+		} finally {
+			pool.release(next);
+		}
+		assertEquals(Collections.singletonList("good job"), jobs);
+	}
+
+	@Test
+	public void testWorkersCannotStart() throws Exception {
+
+		// Workers which end before they connect, like a DAWN which cannot start
+		final AtomicInteger failed = new AtomicInteger(0);
+		final WorkerPool broken = new WorkerPool(2, 3, 0) {
+			@Override
+			protected Process startWorker(int port, String token, int index) throws Exception {
+				failed.incrementAndGet();
+				return new ProcessBuilder("sh", "-c", "exit 1").start();
+			}
+		};
+		try {
+			broken.start();
+			final long start = System.currentTimeMillis();
+			assertNull(broken.take(60, TimeUnit.SECONDS));
+			assertTrue("Waited "+(System.currentTimeMillis()-start)+"ms", System.currentTimeMillis()-start<10000);
+			assertEquals(0, broken.getWorkerCount());
+			assertTrue("Only "+failed.get()+" workers were started", failed.get()>=3);
+		} finally {
+			broken.dispose();
+		}
+	}
+}
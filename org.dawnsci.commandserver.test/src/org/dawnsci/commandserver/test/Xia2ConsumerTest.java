@@ -1,7 +1,6 @@
 package org.dawnsci.commandserver.test;
 
-import java.net.URI;
-
+import org.dawnsci.commandserver.core.ActiveMQServiceHolder;
 import org.dawnsci.commandserver.mx.consumer.MXSubmissionConsumer;
 import org.eclipse.scanning.api.event.IEventService;
 import org.eclipse.scanning.api.event.alive.ConsumerBean;
@@ -33,9 +32,9 @@ public class Xia2ConsumerTest {
 	public void testXia2BeingConsumed() throws Exception {
 		
 		IEventService servce = new EventServiceImpl(new ActivemqConnectorService()); // Testing!
-		servce.checkTopic(new URI("tcp://sci-serv5.diamond.ac.uk:61616"), MXSubmissionConsumer.NAME, 10000, "scisoft.commandserver.core.ALIVE_TOPIC", ConsumerBean.class);
+		servce.checkTopic(ActiveMQServiceHolder.getDefaultUri(), MXSubmissionConsumer.NAME, 10000, "scisoft.commandserver.core.ALIVE_TOPIC", ConsumerBean.class);
 		// Used once DAWN2 is released:
-		//servce.checkHeartbeat(new URI("tcp://sci-serv5.diamond.ac.uk:61616"), MXSubmissionConsumer.NAME, 10000);
+		//servce.checkHeartbeat(ActiveMQServiceHolder.getDefaultUri(), MXSubmissionConsumer.NAME, 10000);
 		System.out.println("The patient "+MXSubmissionConsumer.NAME+" is alive and well Dr.");
 	}
 }
@@ -12,7 +12,7 @@ public class TomoClient {
 	
 	public static void main(String[] args) throws Exception {
 		
-		URI uri = new URI("tcp://sci-serv5.diamond.ac.uk:61616");
+		URI uri = ActiveMQServiceHolder.getDefaultUri();
 		
 		TomoBean tbean = new TomoBean();
 		tbean.setName("Test Jython");
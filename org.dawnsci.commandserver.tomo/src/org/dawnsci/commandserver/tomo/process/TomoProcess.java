@@ -12,6 +12,9 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.ProcessBuilder.Redirect;
 
+import org.dawnsci.commandserver.core.process.ModuleEnvironment;
+import org.dawnsci.commandserver.core.process.ProcessControl;
+import org.dawnsci.commandserver.core.process.ProgressRules;
 import org.dawnsci.commandserver.core.process.ProgressableProcess;
 import org.dawnsci.commandserver.tomo.beans.TomoBean;
 import org.eclipse.scanning.api.event.EventException;
@@ -105,10 +108,15 @@ public class TomoProcess extends ProgressableProcess<TomoBean>{
 		if (isWindowsOS()) {
 		    pb.command("cmd", "/C", createTomoCommand());
 		} else {
-		    pb.command("bash", "-c", createTomoCommand());
+		    // The environment of the module is cached so the module system is not run for each job
+		    if (!ModuleEnvironment.getDefault().apply(pb, getSetupCommand(), getReconstructionCommand())) {
+		        pb.command("bash", "-c", createTomoCommand());
+		    }
+		    ProcessControl.setSession(pb);
+		    confine(pb);
 		}
 
-		Process p = pb.start();
+		Process p = getProcessLauncher().start(pb);
 		assert pb.redirectInput() == Redirect.PIPE;
 		assert p.getInputStream().read() == -1;	
 
@@ -120,15 +128,19 @@ public class TomoProcess extends ProgressableProcess<TomoBean>{
 		// checkTomoErrors(); // We do this to avoid starting an output file monitor at all.
 
 		// Now we monitor the output file. Then we wait for the process, then we check for errors again.
-		// startProgressMonitor();
+		// The progress is read with the rules given by the consumer argument -progressRules, if any.
+		final ProgressRules rules = getProgressRules(null);
+		if (rules!=null) tail(log, rules, rules.createState());
 		// createTerminateListener();
 		p.waitFor();
 		// checkXia2Errors(); // Check errors again at end					
 
-		bean.setStatus(Status.COMPLETE);
-		bean.setMessage("Reconstruction run completed normally");
-		bean.setPercentComplete(100);
-		broadcast(bean);
+		if (!bean.getStatus().isFinal()) {
+			bean.setStatus(Status.COMPLETE);
+			bean.setMessage("Reconstruction run completed normally");
+			bean.setPercentComplete(100);
+			broadcast(bean);
+		}
 
 
 	}
@@ -144,19 +156,23 @@ public class TomoProcess extends ProgressableProcess<TomoBean>{
 		String setupCmd = "";
 		if (!isWindowsOS()) { // We use module load xia2
 			// Get a linux enviroment		
-			setupCmd = System.getProperty("org.dawnsci.commandserver.tomo.moduleCommand")!=null
-					        ? System.getProperty("org.dawnsci.commandserver.tomo.moduleCommand")
-					        : SETUP_COMMAND;
-					        
-			setupCmd+=" ; ";
+			setupCmd = getSetupCommand()+" ; ";
 		}
 
 		// For windows xia2 must be on the path already.
-		String xia2Cmd = System.getProperty("org.dawnsci.commandserver.tomo.reconstructionCommand")!=null
+	    return setupCmd+getReconstructionCommand();
+	}
+
+	private String getSetupCommand() {
+		return System.getProperty("org.dawnsci.commandserver.tomo.moduleCommand")!=null
+		        ? System.getProperty("org.dawnsci.commandserver.tomo.moduleCommand")
+		        : SETUP_COMMAND;
+	}
+
+	private String getReconstructionCommand() {
+		return System.getProperty("org.dawnsci.commandserver.tomo.reconstructionCommand")!=null
 	               ? System.getProperty("org.dawnsci.commandserver.tomo.reconstructionCommand")
 	               : TOMO_COMMAND;
-	               
-	    return setupCmd+xia2Cmd;
 	}
 
 	private void writeFile() throws EventException {
@@ -1,10 +1,24 @@
 package org.dawnsci.commandserver.core;
 
+import java.net.URI;
+import java.net.URISyntaxException;
+
 import org.eclipse.scanning.api.event.IEventConnectorService;
 import org.eclipse.scanning.api.event.IEventService;
 
 public class ActiveMQServiceHolder {
 
+	/**
+	 * URI of a broker in this JVM, see EmbeddedBroker.
+	 */
+	public static final String EMBEDDED_URI = "vm://localhost?broker.persistent=false";
+
+	/**
+	 * The broker used by clients and tests if no other is given.
+	 * Change by setting org.dawnsci.commandserver.uri, e.g. to EMBEDDED_URI to run offline.
+	 */
+	public static final String DEFAULT_URI  = "tcp://sci-serv5.diamond.ac.uk:61616";
+
 	private static IEventConnectorService eventConnectorService;
 	private static IEventService          eventService;
 
@@ -23,4 +37,12 @@ public class ActiveMQServiceHolder {
 	public static void setEventService(IEventService eventService) {
 		ActiveMQServiceHolder.eventService = eventService;
 	}
+
+	/**
+	 * @return the value of the system property org.dawnsci.commandserver.uri or DEFAULT_URI
+	 * @throws URISyntaxException
+	 */
+	public static URI getDefaultUri() throws URISyntaxException {
+		return new URI(System.getProperty("org.dawnsci.commandserver.uri", DEFAULT_URI));
+	}
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core;
+
+import java.net.URI;
+
+import org.apache.activemq.broker.BrokerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs an ActiveMQ broker in this JVM, so that consumers, clients, tests and
+ * benchmarks can run without a network broker. Connect to it with the URI
+ * ActiveMQServiceHolder.EMBEDDED_URI, e.g. -uri vm://localhost?broker.persistent=false
+ *
+ * ActiveMQ creates a vm:// broker when the first connection is made, but stops
+ * it again when the last connection closes and so loses its queues. This class
+ * keeps the broker running while anything which called startIfEmbedded(...)
+ * has not called release(). The broker is shared by everything in the JVM,
+ * so a consumer which stops does not take it away from the others.
+ *
+ * The broker may also listen for remote clients, with the consumer argument
+ * -brokerConnector e.g. tcp://0.0.0.0:61616, which is enough to run the command
+ * server on a single machine.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class EmbeddedBroker {
+
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddedBroker.class);
+
+	private static BrokerService broker;
+	private static int           references; // Calls to startIfEmbedded(...) which have not been released
+
+	/**
+	 * @param uri
+	 * @return true if the uri is for a broker in this JVM.
+	 */
+	public static boolean isEmbedded(URI uri) {
+		return uri!=null && "vm".equalsIgnoreCase(uri.getScheme());
+	}
+
+	/**
+	 * Starts the broker if the uri is a vm:// uri and the broker is not already running.
+	 * If it returns true the caller must call release() when it no longer uses the broker.
+	 *
+	 * @param uri
+	 * @return true if the uri is embedded
+	 * @throws Exception
+	 */
+	public static boolean startIfEmbedded(URI uri) throws Exception {
+		return startIfEmbedded(uri, null);
+	}
+
+	/**
+	 * Starts the broker if the uri is a vm:// uri and the broker is not already running.
+	 * If it returns true the caller must call release() when it no longer uses the broker.
+	 *
+	 * @param uri
+	 * @param connector uri on which remote clients may connect to the broker, or null
+	 * @return true if the uri is embedded
+	 * @throws Exception
+	 */
+	public static synchronized boolean startIfEmbedded(URI uri, String connector) throws Exception {
+
+		if (!isEmbedded(uri)) return false;
+		if (broker!=null) {
+			++references;
+			return true;
+		}
+
+		final String name = uri.getHost()!=null ? uri.getHost() : uri.getSchemeSpecificPart().replaceAll("[/?].*", "");
+
+		final BrokerService service = new BrokerService();
+		service.setBrokerName(name);
+		service.setPersistent(false);
+		service.setUseJmx(false);
+		service.setUseShutdownHook(true);
+		if (connector!=null) service.addConnector(connector);
+		service.start();
+		service.waitUntilStarted();
+		broker     = service;
+		references = 1;
+
+		logger.info("Started embedded broker '"+name+"'"+(connector!=null ? " listening on "+connector : ""));
+		return true;
+	}
+
+	/**
+	 * Called by each caller of startIfEmbedded(...) which returned true when it
+	 * no longer uses the broker. The broker is stopped when the last has released it.
+	 * @throws Exception
+	 */
+	public static synchronized void release() throws Exception {
+		if (broker==null || --references>0) return;
+		stop();
+	}
+
+	/**
+	 * Stops the broker if it is running, even if others still use it.
+	 * @throws Exception
+	 */
+	public static synchronized void stop() throws Exception {
+		if (broker==null) return;
+		try {
+			broker.stop();
+			broker.waitUntilStopped();
+		} finally {
+			broker     = null;
+			references = 0;
+		}
+	}
+
+	public static synchronized boolean isRunning() {
+		return broker!=null;
+	}
+}
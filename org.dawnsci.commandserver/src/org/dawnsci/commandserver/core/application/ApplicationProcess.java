@@ -1,12 +1,19 @@
 package org.dawnsci.commandserver.core.application;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.dawnsci.commandserver.core.process.ILineListener;
+import org.dawnsci.commandserver.core.process.JobCgroup;
+import org.dawnsci.commandserver.core.process.PipeDrainer;
+import org.dawnsci.commandserver.core.process.ProcessLauncher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +40,8 @@ public class ApplicationProcess {
 	private String             xms=null;
 	private String             xmx=null;
 	private boolean			   propagateSysProps = true;
+	private JobCgroup          cgroup;
+	private ProcessLauncher    launcher = ProcessLauncher.getDefault();
 
 
 	public ApplicationProcess(File propertiesFile) throws Exception {
@@ -54,48 +63,66 @@ public class ApplicationProcess {
 		this.sysProps = sysProps;
 	}
 	
+	/**
+	 * Starts the application. Its output goes to the out and err files in the
+	 * workspace. Unless debug logging is on, when the lines are logged as well,
+	 * the process writes to the files itself and nothing in this JVM reads them.
+	 * 
+	 * @return the process
+	 * @throws Exception
+	 */
 	public Process start() throws Exception {
 		
 		final String line = createExecutionLine();
 		logger.debug("Execution line: "+line);
-		final String[]  command;
+		List<String> command;
 		if (isLinuxOS()) {
-			command = new String[]{"/bin/sh", "-c", line};
+			command = Arrays.asList("/bin/sh", "-c", line);
+			if (cgroup!=null) command = cgroup.wrap(command);
 		} else {
-			command = new String[]{"cmd", "/C", line};
+			command = Arrays.asList("cmd", "/C", line);
 		}
-		 
-		final Map<String,String> env = System.getenv();
-		this.process     = Runtime.getRuntime().exec(command, getStringArray(env));
 		
 		final String workspace = getWorkspace();
 		
 		final File dir = new File(workspace);
 		dir.mkdirs();
 
-		PrintWriter   outs         = new PrintWriter(new BufferedWriter(new FileWriter(new File(dir, outFileName))));
-		outs.write("Execution line: "+line);
-		StreamGobbler out          = new StreamGobbler(process.getInputStream(), outs, "output");
-		out.setStreamLogsToLogging(true);
-		out.start();
+		final File outFile = new File(dir, outFileName);
+		final File errFile = new File(dir, errFileName);
+		write(outFile, "Execution line: "+line+"\n");
+		write(errFile, "");
 		
-		PrintWriter   errs     = new PrintWriter(new BufferedWriter(new FileWriter(new File(dir, errFileName))));
-		StreamGobbler err      = new StreamGobbler(process.getErrorStream(), errs, "error");
-		err.setStreamLogsToLogging(true);
-		err.start();
-
+		final ProcessBuilder pb = new ProcessBuilder(command);
+		if (!logger.isDebugEnabled()) {
+			pb.redirectOutput(Redirect.appendTo(outFile));
+			pb.redirectError(Redirect.appendTo(errFile));
+			this.process = launcher.start(pb);
+			
+		} else {
+			this.process = pb.start();
+			PipeDrainer.getDefault().drain(process, process.getInputStream(), outFile, createLogger("output"));
+			PipeDrainer.getDefault().drain(process, process.getErrorStream(), errFile, createLogger("error"));
+		}
 		return process;
 	}
 	
-	private String[] getStringArray(Map<String, String> env) {
-		
-		final String[] ret = new String[env.size()];
-		int i = 0;
-		for (String key : env.keySet()) {
-			ret[i] = key+"="+env.get(key);
-			++i;
+	private static ILineListener createLogger(final String name) {
+		return new ILineListener() {
+			@Override
+			public void lineRead(File file, String line) {
+				logger.debug(name+"> "+line);
+			}
+		};
+	}
+	
+	private static void write(File file, String text) throws IOException {
+		final Writer writer = new FileWriter(file);
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
 		}
-		return ret;
 	}
 
 	/*
@@ -152,15 +179,27 @@ public class ApplicationProcess {
 		if (xmx!=null || xms!=null) {
 			if (!buf.toString().contains("-vmargs")) buf.append(" -vmargs ");
 			if (xms!=null) {
-				buf.append("-Xms");
+				buf.append(" -Xms");
 				buf.append(xms);
 			}
 			if (xmx!=null) {
-				buf.append("-Xmx");
+				buf.append(" -Xmx");
 				buf.append(xmx);
 			}
 		}
 		
+		// Maps in the classes which the application loaded last time, see ClassDataSharing
+		final List<String> cds = ClassDataSharing.getVmArgs(sysProps, progArgs.containsKey("application") ? progArgs.get("application") : applicationName, install);
+		if (!cds.isEmpty()) {
+			if (!buf.toString().contains("-vmargs")) buf.append(" -vmargs ");
+			for (String arg : cds) {
+				buf.append(" ");
+				if (arg.contains(" ")) buf.append("\"");
+				buf.append(arg);
+				if (arg.contains(" ")) buf.append("\"");
+			}
+		}
+		
 		if (sysProps.containsKey("logLocation") && propagateSysProps) {
 			// Two spaces deals with the value of the last property being \
 			buf.append("  > "+sysProps.get("logLocation"));
@@ -243,6 +282,20 @@ public class ApplicationProcess {
 		this.xmx = xmx;
 	}
 
+	/**
+	 * @param cgroup in which to run the application on linux, may be null.
+	 */
+	public void setCgroup(JobCgroup cgroup) {
+		this.cgroup = cgroup;
+	}
+
+	/**
+	 * @param launcher which starts the application, unless debug logging is on.
+	 */
+	public void setProcessLauncher(ProcessLauncher launcher) {
+		this.launcher = launcher;
+	}
+
 	public boolean isPropagateSysProps() {
 		return propagateSysProps;
 	}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.application;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gives the JVMs started by ApplicationProcess an AppCDS archive of the
+ * classes which the application loads, so that they are mapped in rather
+ * than loaded and verified again by each JVM.
+ *
+ * There is an archive for each application, e.g. one for the consumer and
+ * one for the processing workers. The first time an application is started
+ * its JVM records the classes which it loaded when it exits, with
+ * -XX:ArchiveClassesAtExit. Later starts use the archive with
+ * -XX:SharedArchiveFile. Only one JVM records an archive at a time, the
+ * others run without one until it exists. Delete the archive to record it
+ * again, e.g. when DAWN is updated; the JVM ignores an archive which does
+ * not match it anyway.
+ *
+ * The archives are made if 'cdsDirectory' is set in the properties of the
+ * application or as org.dawnsci.commandserver.core.cdsDirectory. The JVM
+ * of DAWN must be Java 13 or later. Its version is read from the release
+ * file of the jre next to the DAWN executable, and no archive is used with
+ * an older one. If there is no release file the options are given with
+ * -XX:+IgnoreUnrecognizedVMOptions, so that an older JVM still starts.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class ClassDataSharing {
+
+	private static final Logger logger = LoggerFactory.getLogger(ClassDataSharing.class);
+
+	/**
+	 * A recording which has not made its archive in this time has failed, e.g. the JVM was killed.
+	 */
+	private static final long RECORD_TIMEOUT = 60*60*1000;
+
+	/**
+	 * The first version of Java with -XX:ArchiveClassesAtExit
+	 */
+	private static final int MIN_VERSION = 13;
+
+	/**
+	 * @param sysProps of the application, may be null
+	 * @param applicationName
+	 * @return the -XX options for a JVM of unknown version, empty if it should run without an archive.
+	 */
+	public static List<String> getVmArgs(Map<String, String> sysProps, String applicationName) {
+		return getVmArgs(sysProps, applicationName, null);
+	}
+
+	/**
+	 * @param sysProps of the application, may be null
+	 * @param applicationName
+	 * @param executable the DAWN executable which is started, may be null if not known
+	 * @return the -XX options for the JVM of the application, empty if it should run without an archive.
+	 */
+	public static List<String> getVmArgs(Map<String, String> sysProps, String applicationName, String executable) {
+
+		final List<String> ret = new ArrayList<String>(3);
+		final File dir = getDirectory(sysProps);
+		if (dir==null) return ret;
+
+		final int version = getJavaVersion(executable);
+		if (version>0 && version<MIN_VERSION) {
+			logger.debug("The JVM of "+executable+" is Java "+version+", which cannot use a class data archive");
+			return ret;
+		}
+		if (version<0) ret.add("-XX:+IgnoreUnrecognizedVMOptions");
+
+		final File archive = new File(dir, applicationName+".jsa");
+		final File lock    = new File(dir, applicationName+".jsa.lock");
+		if (archive.length()>0) {
+			if (lock.exists()) lock.delete(); // The recording has finished
+			ret.add("-XX:SharedArchiveFile="+archive.getAbsolutePath());
+			ret.add("-Xshare:auto");
+			return ret;
+		}
+
+		if (lock.exists() && System.currentTimeMillis()-lock.lastModified()>RECORD_TIMEOUT) {
+			logger.warn("No class data archive was recorded to "+archive+", it will be recorded again");
+			lock.delete();
+		}
+		try {
+			dir.mkdirs();
+			if (lock.createNewFile()) {
+				logger.info("Recording class data archive "+archive);
+				ret.add("-XX:ArchiveClassesAtExit="+archive.getAbsolutePath());
+			}
+		} catch (IOException ne) {
+			logger.warn("Cannot record a class data archive in "+dir, ne);
+		}
+		return ret;
+	}
+
+	/**
+	 * @param executable
+	 * @return the major version of the jre next to the executable, or -1 if it is not known.
+	 */
+	private static int getJavaVersion(String executable) {
+		if (executable==null) return -1;
+		final File release = new File(new File(executable).getAbsoluteFile().getParentFile(), "jre/release");
+		if (!release.isFile()) return -1;
+		try {
+			final Properties props = new Properties();
+			final InputStream in = new FileInputStream(release);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+			String version = props.getProperty("JAVA_VERSION");
+			if (version==null) return -1;
+			version = version.replace("\"", "").trim();
+			if (version.startsWith("1.")) version = version.substring(2); // 1.8.0_292 is 8
+			int end = 0;
+			while(end<version.length() && Character.isDigit(version.charAt(end))) end++; // 17.0.2 or 13-ea
+			return Integer.parseInt(version.substring(0, end));
+		} catch (Exception ne) {
+			logger.debug("Cannot read the java version from "+release, ne);
+			return -1;
+		}
+	}
+
+	private static File getDirectory(Map<String, String> sysProps) {
+		String dir = sysProps!=null ? sysProps.get("cdsDirectory") : null;
+		if (dir==null) dir = System.getProperty("org.dawnsci.commandserver.core.cdsDirectory");
+		return dir!=null && dir.trim().length()>0 ? new File(dir.trim()) : null;
+	}
+}
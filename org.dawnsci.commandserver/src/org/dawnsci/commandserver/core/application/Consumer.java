@@ -28,6 +28,7 @@ import org.osgi.framework.Bundle;
  * Arguments:
  * 
  * -uri       activemq URI, e.g. tcp://sci-serv5.diamond.ac.uk:61616 
+ *            or vm://localhost?broker.persistent=false for a broker in the consumer's JVM
  * -submit    queue to submit e.g. scisoft.xia2.SUBMISSION_QUEUE 
  * -topic     topic to notify e.g. scisoft.xia2.STATUS_TOPIC 
  * -status    queue for status e.g. scisoft.xia2.STATUS_QUEUE 
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.application;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs in an application started by a WorkerPool. It connects to the pool
+ * and runs the jobs that it is sent until it is told to stop.
+ *
+ * The pool and the worker send lines of text to each other:
+ *
+ *   worker: HELLO token pid
+ *   pool:   RUN job               worker: DONE heap  or  FAILED heap message
+ *   pool:   PING                  worker: PONG
+ *   pool:   EXIT
+ *
+ * where heap is the bytes of heap which the worker uses after the job.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class PoolWorker {
+
+	private static final Logger logger = LoggerFactory.getLogger(PoolWorker.class);
+
+	static final String HELLO  = "HELLO";
+	static final String RUN    = "RUN";
+	static final String DONE   = "DONE";
+	static final String FAILED = "FAILED";
+	static final String PING   = "PING";
+	static final String PONG   = "PONG";
+	static final String EXIT   = "EXIT";
+
+	/**
+	 * Runs a job in the worker.
+	 */
+	public interface IJobRunner {
+		/**
+		 * @param job e.g. the path to the bean of the job
+		 * @throws Exception if the job failed
+		 */
+		void run(String job) throws Exception;
+	}
+
+	/**
+	 * @param args of the application
+	 * @return true if the application was started by a WorkerPool and should run a PoolWorker
+	 */
+	public static boolean isWorker(Map<String, String> args) {
+		return args.containsKey("workerPort") && args.containsKey("workerToken");
+	}
+
+	/**
+	 * Connects to the pool given by the application arguments and runs the
+	 * jobs it sends until the pool stops the worker.
+	 *
+	 * @param args of the application, with workerPort and workerToken
+	 * @param runner
+	 * @throws IOException if the pool cannot be reached
+	 */
+	public static void serve(Map<String, String> args, IJobRunner runner) throws IOException {
+		serve(Integer.parseInt(args.get("workerPort")), args.get("workerToken"), runner);
+	}
+
+	/**
+	 * @param port of the pool on the loopback interface
+	 * @param token of the pool
+	 * @param runner
+	 * @throws IOException if the pool cannot be reached
+	 */
+	public static void serve(int port, String token, IJobRunner runner) throws IOException {
+
+		final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			final BufferedReader in  = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			final Writer         out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+			send(out, HELLO+" "+token+" "+getPid());
+
+			String line;
+			while((line = in.readLine())!=null) {
+				if (line.equals(EXIT)) return;
+				if (line.equals(PING)) {
+					send(out, PONG);
+					continue;
+				}
+				if (!line.startsWith(RUN+" ")) {
+					logger.warn("Unknown request from the pool '"+line+"'");
+					continue;
+				}
+				final String job = line.substring(RUN.length()+1);
+				try {
+					logger.info("Running "+job);
+					runner.run(job);
+					send(out, DONE+" "+getHeap());
+				} catch (Throwable ne) {
+					logger.error("Job "+job+" failed", ne);
+					String message = ne.getMessage()!=null ? ne.getMessage() : ne.getClass().getSimpleName();
+					send(out, FAILED+" "+getHeap()+" "+message.replace('\n', ' ').replace('\r', ' '));
+				}
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void send(Writer out, String line) throws IOException {
+		out.write(line+"\n");
+		out.flush();
+	}
+
+	private static long getHeap() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static int getPid() {
+		// Of the form pid@host
+		final String name = ManagementFactory.getRuntimeMXBean().getName();
+		try {
+			return Integer.parseInt(name.substring(0, name.indexOf('@')));
+		} catch (Exception ne) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.application;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dawnsci.commandserver.core.process.JobThreads;
+import org.dawnsci.commandserver.core.process.ProcessControl;
+import org.dawnsci.commandserver.core.process.ProcessLauncher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of DAWN applications which have already started, so that a job
+ * does not wait for OSGi to start, the classes to load and the JIT to warm
+ * up before it runs. The application must run a PoolWorker, which connects
+ * back to the pool on the loopback interface and runs the jobs which it is
+ * sent one at a time.
+ *
+ * A worker is replaced by a new one after it has run a number of jobs or
+ * when its heap is larger than the limit after a job, so that leaks in the
+ * code run by the jobs do not build up.
+ *
+ * Consumer arguments:
+ *
+ * -workerPool  number of workers to keep started
+ * -workerJobs  jobs after which a worker is replaced, default 50
+ * -workerHeap  MB of heap used after a job above which the worker is replaced, default 0 for no limit
+ * -workerXmx   -Xmx of the workers, e.g. 4g
+ * -workerWait  ms to wait for an idle worker, default 60000, after which the job should start DAWN itself
+ *
+ * The workers are started with ApplicationProcess so 'execLocation' must
+ * be set as it is for the application run per job. A worker which ends
+ * before it has connected to the pool is replaced, unless the workers
+ * before it ended in the same way, when the pool gives up and take()
+ * returns null at once.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class WorkerPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(WorkerPool.class);
+
+	/**
+	 * Workers in a row which end before they connect after which no more are started.
+	 */
+	private static final int MAX_FAILURES = 3;
+
+	/**
+	 * Creates a pool from the consumer arguments.
+	 *
+	 * @param config the consumer arguments
+	 * @param applicationName the application which runs a PoolWorker
+	 * @return the pool or null if -workerPool is not set.
+	 * @throws IOException if the pool cannot listen for its workers
+	 */
+	public static WorkerPool create(Map<String, String> config, String applicationName) throws IOException {
+
+		if (config==null || config.get("workerPool")==null) return null;
+		final int  size    = Integer.parseInt(config.get("workerPool").trim());
+		final int  jobs    = config.get("workerJobs")!=null ? Integer.parseInt(config.get("workerJobs").trim()) : 50;
+		final long heap    = config.get("workerHeap")!=null ? Long.parseLong(config.get("workerHeap").trim())*1024*1024 : 0;
+		final WorkerPool pool = new WorkerPool(size, jobs, heap);
+		if (config.get("workerWait")!=null) pool.setWaitTime(Long.parseLong(config.get("workerWait").trim()));
+		pool.config          = config;
+		pool.applicationName = applicationName;
+		pool.start();
+		return pool;
+	}
+
+	private final int                 size;
+	private final int                 maxJobs;
+	private final long                maxHeap;
+	private final String              token;
+	private final ServerSocket        server;
+	private final BlockingQueue<Worker> idle;
+	private final AtomicInteger       count;
+	private final AtomicInteger       index;
+	private final AtomicInteger       failures; // Workers in a row which ended before they connected
+	private final Set<Integer>        starting; // Indices of the workers which have not connected
+	private volatile long             waitTime = 60000;
+	private Map<String, String>       config;
+	private String                    applicationName;
+	private volatile boolean          disposed;
+
+	/**
+	 * Call start() to start the workers.
+	 *
+	 * @param size of the pool
+	 * @param maxJobs after which a worker is replaced
+	 * @param maxHeap in bytes after a job above which a worker is replaced, 0 for no limit
+	 * @throws IOException
+	 */
+	public WorkerPool(int size, int maxJobs, long maxHeap) throws IOException {
+		this.size    = size;
+		this.maxJobs = maxJobs;
+		this.maxHeap = maxHeap;
+		this.token   = Long.toHexString(new SecureRandom().nextLong());
+		this.server  = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		this.idle    = new LinkedBlockingQueue<Worker>();
+		this.count   = new AtomicInteger(0);
+		this.index   = new AtomicInteger(0);
+		this.failures = new AtomicInteger(0);
+		this.starting = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>(7));
+	}
+
+	/**
+	 * @param waitTime ms which take() waits for an idle worker
+	 */
+	public void setWaitTime(long waitTime) {
+		this.waitTime = waitTime;
+	}
+
+	/**
+	 * Starts listening for workers and starts the workers.
+	 */
+	public void start() {
+		JobThreads.start(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "Worker pool", Thread.NORM_PRIORITY);
+		for (int i = 0; i < size; i++) startWorker();
+	}
+
+	private void accept() {
+		while(!disposed) {
+			try {
+				final Socket socket = server.accept();
+				try {
+					socket.setSoTimeout(10000); // For the hello
+					final Worker worker = new Worker(socket);
+					socket.setSoTimeout(0);
+					starting.remove(worker.index);
+					failures.set(0);
+					idle.add(worker);
+					logger.debug("Worker "+worker.pid+" is ready");
+				} catch (IOException ne) {
+					logger.warn("Refused worker connection", ne);
+					socket.close();
+				}
+			} catch (IOException ne) {
+				if (!disposed) logger.error("Cannot accept workers", ne);
+			}
+		}
+	}
+
+	private void startWorker() {
+		if (disposed) return;
+		if (failures.get()>=MAX_FAILURES) return; // take() does not wait for workers which cannot start
+		count.incrementAndGet();
+		final int i = index.incrementAndGet();
+		starting.add(i);
+		try {
+			final Process process = startWorker(server.getLocalPort(), token+"."+i, i);
+			if (process!=null) watch(process, i);
+		} catch (Exception ne) {
+			starting.remove(i);
+			count.decrementAndGet();
+			logger.error("Cannot start a worker", ne);
+		}
+	}
+
+	/**
+	 * Waits for the process of a worker so that a worker which ends before
+	 * it connects, e.g. because DAWN cannot start, is not waited for.
+	 */
+	private void watch(final Process process, final int i) {
+		JobThreads.start(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final int exit = process.waitFor();
+					if (!starting.remove(i)) return; // It connected, its socket tells the pool when it ends.
+					count.decrementAndGet();
+					if (failures.incrementAndGet()<MAX_FAILURES) {
+						logger.error("Worker "+i+" ended with "+exit+" before it connected, see worker_err.txt. It will be replaced.");
+						startWorker();
+					} else {
+						logger.error("Worker "+i+" ended with "+exit+" before it connected, see worker_err.txt. "+MAX_FAILURES+" workers in a row have failed to start, jobs will start DAWN themselves.");
+					}
+				} catch (InterruptedException ne) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "Worker "+i+" watcher", Thread.MIN_PRIORITY);
+	}
+
+	/**
+	 * Starts a worker which must connect to the port with the token. Override
+	 * to start something other than a DAWN application.
+	 *
+	 * @param port
+	 * @param token of the worker
+	 * @param index the number of the worker
+	 * @return the process of the worker, or null if it is not a process, then the pool
+	 * does not find out if it ends before it connects.
+	 * @throws Exception
+	 */
+	protected Process startWorker(int port, String token, int index) throws Exception {
+
+		final String home = System.getProperty("user.home");
+		final String name = config.get("consumerName")!=null ? config.get("consumerName").replace(' ', '_') : "consumer";
+		final File   workspace = new File(home+"/"+name+"_workers/worker_"+index);
+		workspace.mkdirs();
+
+		final Map<String, String> args = new HashMap<String, String>(7);
+		args.put("data",        workspace.getAbsolutePath());
+		args.put("workerPort",  String.valueOf(port));
+		args.put("workerToken", token);
+
+		final ApplicationProcess process = new ApplicationProcess(args, config);
+		process.setApplicationName(applicationName);
+		process.setOutFileName("worker_out.txt");
+		process.setErrFileName("worker_err.txt");
+		process.setPropagateSysProps(false);
+		if (config.get("workerXmx")!=null) process.setXmx(config.get("workerXmx"));
+		process.setProcessLauncher(ProcessLauncher.create(config));
+		return process.start();
+	}
+
+	/**
+	 * Waits for an idle worker for the wait time. The worker must be released when its job has run.
+	 *
+	 * @return the worker, or null if none was idle within the wait time or none could be started.
+	 * @throws InterruptedException
+	 */
+	public Worker take() throws InterruptedException {
+		return take(waitTime, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Waits for an idle worker. The worker must be released when its job has run.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return the worker, or null if none was idle within the timeout or none could be started.
+	 * @throws InterruptedException
+	 */
+	public Worker take(long timeout, TimeUnit unit) throws InterruptedException {
+		final long end = System.nanoTime()+unit.toNanos(timeout);
+		while(true) {
+			final long wait = end-System.nanoTime();
+			if (wait<=0 || count.get()<1 || disposed) return null;
+			final Worker worker = idle.poll(Math.min(wait, TimeUnit.SECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
+			if (worker==null) continue; // Checks that there are still workers
+			if (worker.ping()) return worker;
+			logger.warn("Worker "+worker.pid+" has ended, it will be replaced");
+			replace(worker);
+		}
+	}
+
+	/**
+	 * Gives back a worker which has run a job. The worker is replaced if it
+	 * has ended or has run too many jobs or has too large a heap.
+	 *
+	 * @param worker
+	 */
+	public void release(Worker worker) {
+		if (disposed) {
+			worker.exit();
+		} else if (!worker.isAlive()) {
+			replace(worker);
+		} else if (worker.jobs>=maxJobs || (maxHeap>0 && worker.heap>maxHeap)) {
+			logger.info("Replacing worker "+worker.pid+" after "+worker.jobs+" jobs with "+worker.heap/(1024*1024)+"MB of heap");
+			worker.exit();
+			replace(worker);
+		} else {
+			idle.add(worker);
+		}
+	}
+
+	private void replace(Worker worker) {
+		worker.close();
+		count.decrementAndGet();
+		startWorker();
+	}
+
+	/**
+	 * @return the number of workers which are started or starting
+	 */
+	public int getWorkerCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the number of workers which are waiting for a job
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Stops the idle workers, the others stop when they are released.
+	 */
+	public void dispose() {
+		disposed = true;
+		try {
+			server.close();
+		} catch (IOException ne) {
+			logger.debug("Cannot close worker pool socket", ne);
+		}
+		Worker worker;
+		while((worker = idle.poll())!=null) worker.exit();
+	}
+
+	/**
+	 * A started worker, which runs one job at a time.
+	 */
+	public final class Worker {
+
+		private final Socket         socket;
+		private final BufferedReader in;
+		private final Writer         out;
+		private final int            pid;
+		private final int            index;
+		private int                  jobs;
+		private long                 heap;
+		private volatile boolean     closed;
+
+		private Worker(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in     = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			this.out    = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+			String hello;
+			try {
+				hello = in.readLine();
+			} catch (SocketTimeoutException ne) {
+				hello = null;
+			}
+			final String[] words = hello!=null ? hello.split(" ") : new String[0];
+			if (words.length<3 || !PoolWorker.HELLO.equals(words[0]) || !words[1].startsWith(token+".")) {
+				throw new IOException("Worker did not give the token of the pool");
+			}
+			this.index = Integer.parseInt(words[1].substring(token.length()+1));
+			this.pid   = Integer.parseInt(words[2]);
+		}
+
+		/**
+		 * Runs a job in the worker and waits for it to finish.
+		 *
+		 * @param job e.g. the path to the bean of the job
+		 * @throws Exception if the job fails or the worker ends while it runs
+		 */
+		public void run(String job) throws Exception {
+			out.write(PoolWorker.RUN+" "+job+"\n");
+			out.flush();
+			final String reply = in.readLine();
+			++jobs;
+			if (reply==null) {
+				close();
+				throw new Exception("Worker "+pid+" ended while running "+job);
+			}
+			final String[] words = reply.split(" ", 3);
+			heap = Long.parseLong(words[1]);
+			if (PoolWorker.FAILED.equals(words[0])) throw new Exception(words.length>2 ? words[2] : "Job failed in worker "+pid);
+		}
+
+		/**
+		 * @return true if the worker answers
+		 */
+		private boolean ping() {
+			if (!isAlive()) return false;
+			try {
+				socket.setSoTimeout(5000);
+				out.write(PoolWorker.PING+"\n");
+				out.flush();
+				final boolean ok = PoolWorker.PONG.equals(in.readLine());
+				socket.setSoTimeout(0);
+				return ok;
+			} catch (IOException ne) {
+				return false;
+			}
+		}
+
+		/**
+		 * Kills the worker and anything it started, e.g. to terminate its job.
+		 */
+		public void kill() {
+			close();
+			if (pid<1) return; // The worker will end when it finds the socket closed
+			try {
+				ProcessControl.terminate(pid);
+			} catch (Exception ne) {
+				logger.error("Cannot kill worker "+pid, ne);
+			}
+		}
+
+		/**
+		 * Asks the worker to end.
+		 */
+		private void exit() {
+			try {
+				out.write(PoolWorker.EXIT+"\n");
+				out.flush();
+			} catch (IOException ne) {
+				logger.debug("Cannot stop worker "+pid, ne);
+			}
+			close();
+		}
+
+		private void close() {
+			if (closed) return;
+			closed = true;
+			try {
+				socket.close();
+			} catch (IOException ne) {
+				logger.trace("Cannot close worker socket", ne);
+			}
+		}
+
+		private boolean isAlive() {
+			return !closed && !socket.isClosed();
+		}
+
+		public int getPid() {
+			return pid;
+		}
+
+		/**
+		 * @return the number of jobs which the worker has run
+		 */
+		public int getJobCount() {
+			return jobs;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count which only goes up, for instance the number of jobs run.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class Counter extends Metric {
+
+	private final AtomicLong count = new AtomicLong();
+
+	Counter(String name, String help, String labels) {
+		super(name, help, labels);
+	}
+
+	public void inc() {
+		count.incrementAndGet();
+	}
+
+	public void add(long amount) {
+		count.addAndGet(amount);
+	}
+
+	public long get() {
+		return count.get();
+	}
+
+	@Override
+	protected String getType() {
+		return "counter";
+	}
+
+	@Override
+	protected void write(StringBuilder buf) {
+		buf.append(getName()).append(getLabels()).append(' ').append(count.get()).append('\n');
+	}
+}
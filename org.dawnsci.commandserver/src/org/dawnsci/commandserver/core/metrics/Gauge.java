@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.metrics;
+
+/**
+ * A value which is read when the metrics are exported,
+ * for instance the number of jobs running in a pool.
+ *
+ * Extend and implement getValue(), it may be called
+ * from any thread.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public abstract class Gauge {
+
+	/**
+	 * @return the current value
+	 */
+	public abstract double getValue();
+
+	/**
+	 * The registered form of a Gauge.
+	 */
+	static class Registered extends Metric {
+
+		private final Gauge gauge;
+
+		Registered(String name, String help, String labels, Gauge gauge) {
+			super(name, help, labels);
+			this.gauge = gauge;
+		}
+
+		@Override
+		protected String getType() {
+			return "gauge";
+		}
+
+		@Override
+		protected void write(StringBuilder buf) {
+			buf.append(getName()).append(getLabels()).append(' ');
+			double value;
+			try {
+				value = gauge.getValue();
+			} catch (RuntimeException ne) {
+				value = Double.NaN;
+			}
+			appendValue(buf, value);
+			buf.append('\n');
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of times in nanoseconds, from which
+ * quantiles such as the median and the 99th percentile are read.
+ *
+ * The buckets are log-linear, in the same way as HdrHistogram: each
+ * power of two is split into 16 equal buckets, so a value is known to
+ * within 1/16 (about 6%) wherever it is between 1ns and hundreds of years.
+ * Recording is an index calculation and an atomic increment, there are
+ * no locks and nothing is allocated.
+ *
+ * Exported as a Prometheus summary in seconds.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class Histogram extends Metric {
+
+	private static final int    SUB_BITS    = 4;
+	private static final int    SUB_BUCKETS = 1<<SUB_BITS;
+	private static final int    BUCKETS     = (64-SUB_BITS)*SUB_BUCKETS;
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private final AtomicLongArray counts;
+	private final AtomicLong      count;
+	private final AtomicLong      sum;
+	private final AtomicLong      max;
+
+	Histogram(String name, String help, String labels) {
+		super(name, help, labels);
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.count  = new AtomicLong();
+		this.sum    = new AtomicLong();
+		this.max    = new AtomicLong();
+	}
+
+	/**
+	 * @param nanos a time in nanoseconds, negative times are recorded as 0.
+	 */
+	public void record(long nanos) {
+		if (nanos<0) nanos = 0;
+		counts.incrementAndGet(index(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long current;
+		while (nanos>(current = max.get())) {
+			if (max.compareAndSet(current, nanos)) break;
+		}
+	}
+
+	/**
+	 * @param time
+	 * @param unit
+	 */
+	public void record(long time, TimeUnit unit) {
+		record(unit.toNanos(time));
+	}
+
+	/**
+	 * Records the time since start, where start was from System.nanoTime()
+	 * @param start
+	 */
+	public void recordSince(long start) {
+		record(System.nanoTime()-start);
+	}
+
+	/**
+	 * @return the number of values recorded.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the sum of the values recorded in nanoseconds.
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * @return the largest value recorded in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param quantile between 0 and 1, e.g. 0.99
+	 * @return the value in nanoseconds which the fraction 'quantile' of the recorded values are less than or equal to,
+	 *         to within the width of a bucket, or 0 if nothing has been recorded.
+	 */
+	public long getValueAtQuantile(double quantile) {
+
+		// The counts are read one by one while others record, so use their total.
+		final long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total      += snapshot[i];
+		}
+		if (total<1) return 0;
+
+		final long target = Math.max(1, (long)Math.ceil(quantile*total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen>=target) return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * @param value
+	 * @return the bucket of the value.
+	 */
+	static int index(long value) {
+		if (value<SUB_BUCKETS) return (int)value;
+		final int exponent = 63-Long.numberOfLeadingZeros(value); // >= SUB_BITS
+		final int sub      = (int)(value>>>(exponent-SUB_BITS)) & (SUB_BUCKETS-1);
+		return (exponent-SUB_BITS+1)*SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @param index
+	 * @return the lowest value which is put in the bucket.
+	 */
+	static long lowestValue(int index) {
+		if (index<SUB_BUCKETS) return index;
+		final int exponent = index/SUB_BUCKETS + SUB_BITS - 1;
+		final int sub      = index%SUB_BUCKETS;
+		return ((long)(SUB_BUCKETS+sub))<<(exponent-SUB_BITS);
+	}
+
+	/**
+	 * @param index
+	 * @return the highest value which is put in the bucket.
+	 */
+	static long highestValue(int index) {
+		if (index>=BUCKETS-1) return Long.MAX_VALUE;
+		return lowestValue(index+1)-1;
+	}
+
+	@Override
+	protected String getType() {
+		return "summary";
+	}
+
+	@Override
+	protected void write(StringBuilder buf) {
+		for (double q : QUANTILES) {
+			buf.append(getName()).append(getLabels("quantile=\""+q+"\"")).append(' ');
+			appendValue(buf, getValueAtQuantile(q)/1e9);
+			buf.append('\n');
+		}
+		buf.append(getName()).append("_sum").append(getLabels()).append(' ');
+		appendValue(buf, getSum()/1e9);
+		buf.append('\n');
+		buf.append(getName()).append("_count").append(getLabels()).append(' ').append(getCount()).append('\n');
+	}
+}
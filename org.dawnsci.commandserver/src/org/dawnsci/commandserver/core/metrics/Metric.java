@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.metrics;
+
+/**
+ * A named value which is exported by the MetricsRegistry in
+ * the Prometheus text format.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public abstract class Metric {
+
+	private final String name;
+	private final String help;
+	private final String labels;
+
+	protected Metric(String name, String help, String labels) {
+		this.name   = name;
+		this.help   = help;
+		this.labels = labels;
+	}
+
+	/**
+	 * @return the type as written in the # TYPE line, e.g. counter
+	 */
+	protected abstract String getType();
+
+	/**
+	 * Append the sample lines of this metric.
+	 * @param buf
+	 */
+	protected abstract void write(StringBuilder buf);
+
+	public String getName() {
+		return name;
+	}
+
+	public String getHelp() {
+		return help;
+	}
+
+	/**
+	 * @return the labels in the form {a="b",c="d"} or an empty string.
+	 */
+	public String getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @param extra another label, e.g. quantile="0.5"
+	 * @return the labels of this metric with another one added.
+	 */
+	protected String getLabels(String extra) {
+		if (labels.length()<1) return "{"+extra+"}";
+		return labels.substring(0, labels.length()-1)+","+extra+"}";
+	}
+
+	protected static void appendValue(StringBuilder buf, double value) {
+		if (Double.isNaN(value)) {
+			buf.append("NaN");
+		} else if (Double.isInfinite(value)) {
+			buf.append(value>0 ? "+Inf" : "-Inf");
+		} else if (value==Math.rint(value) && Math.abs(value)<1e15) {
+			buf.append((long)value);
+		} else {
+			buf.append(value);
+		}
+	}
+}
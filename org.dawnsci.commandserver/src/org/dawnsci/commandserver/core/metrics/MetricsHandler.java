@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+class MetricsHandler extends AbstractHandler {
+
+	private final MetricsRegistry registry;
+
+	MetricsHandler(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+			           HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+
+		baseRequest.setHandled(true);
+		if (!"/metrics".equals(target) && !"/".equals(target)) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		response.setContentType("text/plain;version=0.0.4;charset=utf-8");
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.getWriter().write(registry.scrape());
+	}
+}
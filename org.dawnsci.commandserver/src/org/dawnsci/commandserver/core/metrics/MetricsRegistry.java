@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the metrics of the command server so that they can be exported,
+ * normally by a MetricsServer.
+ *
+ * Metrics are identified by their name and labels. Asking for a metric
+ * which already exists returns the existing one, so callers may either
+ * keep the metric or ask for it each time. Labels are given as pairs,
+ * for instance:
+ *
+ *   MetricsRegistry.getDefault().counter("commandserver_jobs_total", "Jobs run", "process", "Xia2Process").inc();
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class MetricsRegistry {
+
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+	/**
+	 * @return the registry used by the command server.
+	 */
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	private final ConcurrentMap<String, Metric> metrics;
+
+	public MetricsRegistry() {
+		this.metrics = new ConcurrentHashMap<String, Metric>(31);
+	}
+
+	/**
+	 * @param name
+	 * @param help
+	 * @param labels pairs of label name and value
+	 * @return the counter with this name and labels, which is created if it does not exist.
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		final String lbls = createLabels(labels);
+		Metric metric = metrics.get(name+lbls);
+		if (metric==null) metric = register(new Counter(name, help, lbls));
+		return cast(metric, Counter.class);
+	}
+
+	/**
+	 * @param name
+	 * @param help
+	 * @param labels pairs of label name and value
+	 * @return the histogram with this name and labels, which is created if it does not exist.
+	 */
+	public Histogram histogram(String name, String help, String... labels) {
+		final String lbls = createLabels(labels);
+		Metric metric = metrics.get(name+lbls);
+		if (metric==null) metric = register(new Histogram(name, help, lbls));
+		return cast(metric, Histogram.class);
+	}
+
+	/**
+	 * Adds a gauge, replacing any gauge with the same name and labels.
+	 *
+	 * @param name
+	 * @param help
+	 * @param gauge
+	 * @param labels pairs of label name and value
+	 */
+	public void gauge(String name, String help, Gauge gauge, String... labels) {
+		final String lbls = createLabels(labels);
+		metrics.put(name+lbls, new Gauge.Registered(name, help, lbls, gauge));
+	}
+
+	/**
+	 * Removes the metric with this name and labels, for instance the
+	 * gauges of a consumer which has stopped.
+	 * @param name
+	 * @param labels
+	 */
+	public void remove(String name, String... labels) {
+		metrics.remove(name+createLabels(labels));
+	}
+
+	/**
+	 * @return all of the metrics in the Prometheus text exposition format.
+	 */
+	public String scrape() {
+
+		final List<Metric> sorted = new ArrayList<Metric>(metrics.values());
+		Collections.sort(sorted, new Comparator<Metric>() {
+			@Override
+			public int compare(Metric o1, Metric o2) {
+				final int ret = o1.getName().compareTo(o2.getName());
+				return ret!=0 ? ret : o1.getLabels().compareTo(o2.getLabels());
+			}
+		});
+
+		final StringBuilder buf = new StringBuilder(sorted.size()*128);
+		String lastName = null;
+		for (Metric metric : sorted) {
+			if (!metric.getName().equals(lastName)) {
+				buf.append("# HELP ").append(metric.getName()).append(' ').append(escapeHelp(metric.getHelp())).append('\n');
+				buf.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+				lastName = metric.getName();
+			}
+			metric.write(buf);
+		}
+		return buf.toString();
+	}
+
+	private Metric register(Metric metric) {
+		final Metric existing = metrics.putIfAbsent(metric.getName()+metric.getLabels(), metric);
+		return existing!=null ? existing : metric;
+	}
+
+	private static <M extends Metric> M cast(Metric metric, Class<M> clazz) {
+		if (!clazz.isInstance(metric)) throw new IllegalArgumentException("The metric "+metric.getName()+" is a "+metric.getType()+" not a "+clazz.getSimpleName());
+		return clazz.cast(metric);
+	}
+
+	private static String createLabels(String... labels) {
+		if (labels==null || labels.length<1) return "";
+		if (labels.length%2!=0) throw new IllegalArgumentException("Labels must be pairs of name and value!");
+		final StringBuilder buf = new StringBuilder("{");
+		for (int i = 0; i < labels.length; i+=2) {
+			if (i>0) buf.append(',');
+			buf.append(labels[i]).append("=\"").append(escapeLabel(labels[i+1])).append('"');
+		}
+		return buf.append('}').toString();
+	}
+
+	private static String escapeLabel(String value) {
+		if (value==null) return "";
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String escapeHelp(String value) {
+		if (value==null) return "";
+		return value.replace("\\", "\\\\").replace("\n", "\\n");
+	}
+}
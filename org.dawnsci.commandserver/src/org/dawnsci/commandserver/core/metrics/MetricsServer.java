@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.metrics;
+
+import org.eclipse.jetty.server.Server;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the metrics of the command server on http://host:port/metrics
+ * in the Prometheus text format.
+ *
+ * A consumer starts one if it has the argument -metricsport
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class MetricsServer {
+
+	private static final Logger logger = LoggerFactory.getLogger(MetricsServer.class);
+
+	private int             port = 8620;
+	private MetricsRegistry registry = MetricsRegistry.getDefault();
+
+	private Server server;
+
+	public void start() throws Exception{
+
+		this.server = new Server(port);
+		server.setHandler(new MetricsHandler(registry));
+		server.start();
+
+		logger.info("Started "+getClass().getSimpleName()+" on port "+port);
+	}
+
+	public void stop() throws Exception {
+		if (server!=null) server.stop();
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public MetricsRegistry getRegistry() {
+		return registry;
+	}
+
+	public void setRegistry(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops a consumer starting more jobs than its host can run.
+ *
+ * Each job says which resources it needs (see ProgressableProcess.getResources())
+ * and waits in start() until they are free. As start() is called by the consumer,
+ * the following jobs stay in the submission queue while it waits. The resources
+ * are given back when the job has run.
+ *
+ * The capacity of the host is read from /proc/meminfo and the JVM and may be
+ * reduced with the consumer arguments:
+ *
+ * -admissionControl true  switches admission control on
+ * -maxCores         cores which jobs may use, default is all the cores of the host
+ * -maxMemory        memory which jobs may use, e.g. 64g, default is MemTotal less 10%
+ * -scratchDir       directory where jobs write their scratch files, default java.io.tmpdir
+ *
+ * A job which needs more than the whole capacity is given the whole capacity,
+ * so it runs on its own rather than never running. If nothing is running a
+ * job is always started.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class AdmissionController {
+
+	private static final Logger logger = LoggerFactory.getLogger(AdmissionController.class);
+
+	private static final long RECHECK_TIME = 5000; // ms, the free memory and disk change without jobs finishing.
+
+	private final ProcessResources capacity;
+	private final File             scratchDir;
+
+	private int  usedCores;
+	private long usedMemory;
+	private long usedScratch;
+	private int  running;
+	private int  waiting;
+
+	/**
+	 * Creates an AdmissionController from the consumer arguments.
+	 *
+	 * @param config
+	 * @return the controller or null if -admissionControl is not true.
+	 */
+	public static AdmissionController create(Map<String, String> config) {
+
+		if (config==null || !Boolean.parseBoolean(config.get("admissionControl"))) return null;
+
+		final int  cores   = config.get("maxCores")!=null
+				           ? Integer.parseInt(config.get("maxCores").trim())
+				           : Runtime.getRuntime().availableProcessors();
+
+		long memory = config.get("maxMemory")!=null
+				           ? ProcessResources.parseMemory(config.get("maxMemory"))
+				           : readMeminfo("MemTotal")/10*9;
+		if (memory<=0) memory = Long.MAX_VALUE; // No /proc, memory is not limited
+
+		final File scratch = new File(config.get("scratchDir")!=null
+				                      ? config.get("scratchDir")
+				                      : System.getProperty("java.io.tmpdir"));
+
+		return new AdmissionController(new ProcessResources(cores, memory, Long.MAX_VALUE), scratch);
+	}
+
+	/**
+	 *
+	 * @param capacity the resources which jobs may use
+	 * @param scratchDir may be null if scratch space is not checked.
+	 */
+	public AdmissionController(ProcessResources capacity, File scratchDir) {
+		this.capacity   = capacity;
+		this.scratchDir = scratchDir;
+		logger.info("Admission control with capacity "+capacity+(scratchDir!=null?" and scratch directory "+scratchDir:""));
+	}
+
+	/**
+	 * Waits until the resources are free and then takes them.
+	 *
+	 * @param request
+	 * @return the resources taken, which must be given to release(...)
+	 * @throws InterruptedException
+	 */
+	public synchronized ProcessResources acquire(ProcessResources request) throws InterruptedException {
+
+		final ProcessResources req = request.clamp(capacity);
+		if (req!=request) logger.warn("Job needs "+request+" which is more than the capacity "+capacity+", it will run with "+req);
+
+		++waiting;
+		try {
+			boolean logged = false;
+			while (!isFree(req)) {
+				if (!logged) {
+					logger.info("Job needing "+req+" waits for resources, "+running+" job(s) using "+getUsed());
+					logged = true;
+				}
+				wait(RECHECK_TIME);
+			}
+		} finally {
+			--waiting;
+		}
+
+		usedCores   += req.getCores();
+		usedMemory  += req.getMemory();
+		usedScratch += req.getScratch();
+		++running;
+		return req;
+	}
+
+	/**
+	 * Gives back resources from acquire(...)
+	 * @param resources
+	 */
+	public synchronized void release(ProcessResources resources) {
+		usedCores   -= resources.getCores();
+		usedMemory  -= resources.getMemory();
+		usedScratch -= resources.getScratch();
+		--running;
+		notifyAll();
+	}
+
+	private boolean isFree(ProcessResources req) {
+
+		if (running<1) return true;
+		if (usedCores+req.getCores() > capacity.getCores())     return false;
+		if (usedMemory+req.getMemory() > capacity.getMemory())  return false;
+
+		// Other programs on the host use memory and disk too.
+		if (req.getMemory()>0) {
+			final long available = readMeminfo("MemAvailable");
+			if (available>0 && req.getMemory()>available) return false;
+		}
+		if (req.getScratch()>0 && scratchDir!=null) {
+			final long usable = scratchDir.getUsableSpace();
+			if (usable>0 && usedScratch+req.getScratch()>usable) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the resources being used by running jobs.
+	 */
+	public synchronized ProcessResources getUsed() {
+		return new ProcessResources(usedCores, usedMemory, usedScratch);
+	}
+
+	public ProcessResources getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of jobs holding resources.
+	 */
+	public synchronized int getRunningCount() {
+		return running;
+	}
+
+	/**
+	 * @return the number of jobs waiting for resources.
+	 */
+	public synchronized int getWaitingCount() {
+		return waiting;
+	}
+
+	/**
+	 * Reads a value from /proc/meminfo
+	 * @param name e.g. MemTotal
+	 * @return the value in bytes or -1 if it cannot be read.
+	 */
+	static long readMeminfo(String name) {
+		final File meminfo = new File("/proc/meminfo");
+		if (!meminfo.exists()) return -1;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(meminfo));
+			String line;
+			while((line = reader.readLine())!=null) {
+				if (!line.startsWith(name+":")) continue;
+				final String[] split = line.substring(name.length()+1).trim().split("\\s+");
+				long value = Long.parseLong(split[0]);
+				if (split.length>1 && "kB".equalsIgnoreCase(split[1])) value = value*1024;
+				return value;
+			}
+		} catch (Exception ne) {
+			logger.debug("Cannot read "+name+" from "+meminfo, ne);
+		} finally {
+			try {
+				if (reader!=null) reader.close();
+			} catch (IOException e) {
+				logger.debug("Cannot close "+meminfo, e);
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.dawnsci.commandserver.core.ActiveMQServiceHolder;
+import org.dawnsci.commandserver.core.metrics.Histogram;
+import org.dawnsci.commandserver.core.metrics.MetricsRegistry;
+import org.eclipse.scanning.api.event.IEventConnectorService;
+import org.eclipse.scanning.api.event.core.IPublisher;
+import org.eclipse.scanning.api.event.status.Status;
+import org.eclipse.scanning.api.event.status.StatusBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the status of one job from the broadcast thread of
+ * a BroadcastDispatcher.
+ *
+ * Each call to broadcast takes a copy of the bean so that the job
+ * may carry on changing it. If the status has changed the copy is
+ * sent straight away, otherwise only the latest copy within the
+ * window is sent.
+ *
+ * The copy is made by marshalling the bean with the event connector,
+ * which keeps every field that clients are sent. Without a connector
+ * merge() is used, and a bean whose own class does not declare it is
+ * sent directly, because the copy would lose the fields of the class.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class BroadcastChannel<T extends StatusBean> {
+
+	private static final Logger logger = LoggerFactory.getLogger(BroadcastChannel.class);
+
+	/**
+	 * Time taken by the publisher to send a status update.
+	 */
+	static final Histogram BROADCAST_TIME = MetricsRegistry.getDefault().histogram("commandserver_broadcast_seconds", "Time taken to publish a status update");
+
+	private final IPublisher<T>            publisher;
+	private final ScheduledExecutorService executor;
+	private final long                     window;
+
+	private final AtomicReference<T> pending;
+	private Status                   lastStatus;
+	private boolean                  flushScheduled;
+
+	BroadcastChannel(IPublisher<T> publisher, ScheduledExecutorService executor, long window) {
+		this.publisher = publisher;
+		this.executor  = executor;
+		this.window    = window;
+		this.pending   = new AtomicReference<T>();
+	}
+
+	/**
+	 * Called from the thread running the job.
+	 * @param bean
+	 */
+	public synchronized void broadcast(T bean) {
+
+		final T copy = copy(bean);
+		if (copy==null || executor.isShutdown()) { // Cannot copy this bean, send it directly.
+			publish(bean);
+			return;
+		}
+
+		final boolean transition = bean.getStatus()!=lastStatus;
+		lastStatus = bean.getStatus();
+
+		if (transition) {
+			// Any pending update is older than this one, discard it.
+			pending.set(null);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					publish(copy);
+				}
+			});
+
+		} else {
+			pending.set(copy);
+			if (!flushScheduled) {
+				flushScheduled = true;
+				executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush();
+					}
+				}, window, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private void flush() {
+		synchronized (this) {
+			flushScheduled = false;
+		}
+		final T latest = pending.getAndSet(null);
+		if (latest!=null) publish(latest);
+	}
+
+	private void publish(T bean) {
+		try {
+			final long start = System.nanoTime();
+			publisher.broadcast(bean);
+			BROADCAST_TIME.recordSince(start);
+		} catch (Exception e) {
+			logger.error("Cannot broadcast", e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private T copy(T bean) {
+		try {
+			final IEventConnectorService service = ActiveMQServiceHolder.getEventConnectorService();
+			if (service!=null) return (T)service.unmarshal(service.marshal(bean), bean.getClass());
+
+			if (bean.getClass().getMethod("merge", StatusBean.class).getDeclaringClass()!=bean.getClass()) return null;
+			final T copy = (T)bean.getClass().newInstance();
+			copy.merge(bean);
+
+			// Not every merge() copies the fields which clients use to identify
+			// the bean, we make sure that they are in the copy.
+			copy.setUniqueId(bean.getUniqueId());
+			copy.setStatus(bean.getStatus());
+			copy.setPreviousStatus(bean.getPreviousStatus());
+			copy.setPercentComplete(bean.getPercentComplete());
+			copy.setMessage(bean.getMessage());
+			if (bean.getProperties()!=null) copy.setProperties((Properties)bean.getProperties().clone());
+			return copy;
+
+		} catch (Exception ne) {
+			logger.debug("Cannot copy "+bean.getClass().getSimpleName()+", it will be broadcast directly.", ne);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.scanning.api.event.core.IPublisher;
+import org.eclipse.scanning.api.event.status.StatusBean;
+
+/**
+ * Sends the status updates of all the jobs of a consumer from a single
+ * thread so that the threads running the jobs do not wait for the broker.
+ *
+ * Each job gets a BroadcastChannel which coalesces updates to percent complete
+ * and message within the broadcast window. Changes of status are always sent.
+ *
+ * The window is set with the consumer argument -broadcastWindow in ms,
+ * the default is 500. A window of 0 sends every update from the calling
+ * thread as before.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class BroadcastDispatcher {
+
+	public static final long DEFAULT_WINDOW = 500; // ms
+
+	private final ScheduledThreadPoolExecutor executor;
+	private final long                        window;
+
+	public BroadcastDispatcher(final String name, Map<String, String> config) {
+		this(name, config!=null && config.get("broadcastWindow")!=null
+				   ? Long.parseLong(config.get("broadcastWindow").trim())
+				   : DEFAULT_WINDOW);
+	}
+
+	/**
+	 *
+	 * @param name used to name the broadcast thread
+	 * @param window in ms within which percent and message updates are coalesced.
+	 */
+	public BroadcastDispatcher(final String name, long window) {
+		this.window   = window;
+		this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, name+" status broadcast");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Create a channel to publish the status of one job.
+	 *
+	 * @param publisher
+	 * @return the channel or null if updates should be sent directly.
+	 */
+	public <T extends StatusBean> BroadcastChannel<T> createChannel(IPublisher<T> publisher) {
+		if (window<=0) return null;
+		return new BroadcastChannel<T>(publisher, executor, window);
+	}
+
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * Sends any pending updates and then stops the broadcast thread.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
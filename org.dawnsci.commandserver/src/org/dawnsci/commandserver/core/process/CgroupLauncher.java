@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs each job in a cgroup (version 2) of its own, so that a job which
+ * uses more cores or memory than it said it would cannot starve the
+ * other jobs on the host, and so that what the job used can be measured.
+ *
+ * The consumer is given a cgroup in which it may create cgroups, for
+ * instance by systemd with Delegate=yes. The consumer's JVM must not
+ * itself be in that cgroup, because a cgroup with controllers enabled for
+ * its children cannot also hold processes.
+ *
+ * Consumer arguments:
+ *
+ * -cgroup          path of the delegated cgroup e.g. /sys/fs/cgroup/system.slice/xia2consumer.service/jobs
+ * -cgroupCpuWeight cpu.weight of each job, default 100. May be set for a job with the bean property 'cpuWeight'
+ * -cgroupCpuLimit  true (default) to limit a job to the cores of its ProcessResources with cpu.max
+ * -cgroupMemoryHeadroom  factor by which memory.max is above the memory of the job's ProcessResources,
+ *                  e.g. 1.5, default 0 for no memory.max. May be set for a job with the bean property 'memoryLimit'
+ *
+ * The memory of ProcessResources is what admission expects the job to use,
+ * for a JVM its -Xmx, and a process uses more than that (a JVM also has
+ * metaspace, code cache, thread stacks and native buffers). It is not a
+ * limit at which to kill the job, so memory.max is only set from it with
+ * the headroom given. The bean property 'memoryLimit', e.g. 8g, is the
+ * memory.max of that job whatever its ProcessResources.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class CgroupLauncher {
+
+	private static final Logger logger = LoggerFactory.getLogger(CgroupLauncher.class);
+
+	static final long CPU_PERIOD = 100000; // us, the kernel default
+
+	private final File    parent;
+	private final int     cpuWeight;
+	private final boolean cpuLimit;
+	private final double  memoryHeadroom;
+
+	/**
+	 * Creates a CgroupLauncher from the consumer arguments.
+	 *
+	 * @param config
+	 * @return the launcher or null if there is no -cgroup or it cannot be used.
+	 */
+	public static CgroupLauncher create(Map<String, String> config) {
+
+		if (config==null || config.get("cgroup")==null) return null;
+
+		final File parent = new File(config.get("cgroup"));
+		if (!new File(parent, "cgroup.controllers").exists()) {
+			logger.error("Jobs will not be run in cgroups, "+parent+" is not a version 2 cgroup");
+			return null;
+		}
+		if (!parent.canWrite()) {
+			logger.error("Jobs will not be run in cgroups, "+parent+" has not been delegated to "+System.getProperty("user.name"));
+			return null;
+		}
+		final int     weight = config.get("cgroupCpuWeight")!=null ? Integer.parseInt(config.get("cgroupCpuWeight").trim()) : 100;
+		final boolean limit  = config.get("cgroupCpuLimit")==null || Boolean.parseBoolean(config.get("cgroupCpuLimit"));
+		final double  room   = config.get("cgroupMemoryHeadroom")!=null ? Double.parseDouble(config.get("cgroupMemoryHeadroom").trim()) : 0;
+		return new CgroupLauncher(parent, weight, limit, room);
+	}
+
+	/**
+	 * @param parent  the delegated cgroup in which the cgroups of the jobs are made
+	 * @param cpuWeight between 1 and 10000
+	 * @param cpuLimit true to set cpu.max from the cores of the job
+	 */
+	public CgroupLauncher(File parent, int cpuWeight, boolean cpuLimit) {
+		this(parent, cpuWeight, cpuLimit, 0);
+	}
+
+	/**
+	 * @param parent  the delegated cgroup in which the cgroups of the jobs are made
+	 * @param cpuWeight between 1 and 10000
+	 * @param cpuLimit true to set cpu.max from the cores of the job
+	 * @param memoryHeadroom factor of the memory of the job which is its memory.max, 0 for none
+	 */
+	public CgroupLauncher(File parent, int cpuWeight, boolean cpuLimit, double memoryHeadroom) {
+		if (memoryHeadroom>0 && memoryHeadroom<1) throw new IllegalArgumentException("The memory headroom must be 1 or more, not "+memoryHeadroom);
+		this.parent         = parent;
+		this.cpuWeight      = cpuWeight;
+		this.cpuLimit       = cpuLimit;
+		this.memoryHeadroom = memoryHeadroom;
+		try {
+			// Fails if they are already enabled or are not available, the limits will then say what is wrong.
+			JobCgroup.write(new File(parent, "cgroup.subtree_control"), "+cpu +memory +io");
+		} catch (IOException ne) {
+			logger.debug("Cannot enable the controllers of "+parent, ne);
+		}
+		logger.info("Jobs will be run in cgroups of "+parent);
+	}
+
+	/**
+	 * Makes the cgroup of a job and sets its limits. The job's processes
+	 * are put in it by the command from JobCgroup.wrap(...)
+	 *
+	 * @param name of the job e.g. its unique id
+	 * @param resources which the job needs
+	 * @param props the bean properties, may be null
+	 * @return the cgroup
+	 * @throws IOException if the cgroup cannot be made
+	 */
+	public JobCgroup create(String name, ProcessResources resources, Properties props) throws IOException {
+
+		final String base = "job-"+name.replaceAll("[^A-Za-z0-9_.-]", "_");
+		File dir = new File(parent, base);
+		for (int i = 1; dir.exists(); i++) dir = new File(parent, base+"_"+i);
+		if (!dir.mkdir()) throw new IOException("Cannot make cgroup "+dir);
+
+		final JobCgroup cgroup = new JobCgroup(dir);
+		final String weight = props!=null && props.getProperty("cpuWeight")!=null ? props.getProperty("cpuWeight").trim() : String.valueOf(cpuWeight);
+		cgroup.set("cpu.weight", weight);
+		if (cpuLimit && resources.getCores()>0) {
+			cgroup.set("cpu.max", (resources.getCores()*CPU_PERIOD)+" "+CPU_PERIOD);
+		}
+		final long memory = getMemoryLimit(resources, props);
+		if (memory>0) cgroup.set("memory.max", String.valueOf(memory));
+		return cgroup;
+	}
+
+	/**
+	 * @return the memory.max of the job or 0 for none
+	 */
+	private long getMemoryLimit(ProcessResources resources, Properties props) {
+		if (props!=null && props.getProperty("memoryLimit")!=null) return ProcessResources.parseMemory(props.getProperty("memoryLimit"));
+		if (memoryHeadroom>0) return (long)(resources.getMemory()*memoryHeadroom);
+		return 0;
+	}
+
+	public File getParent() {
+		return parent;
+	}
+}
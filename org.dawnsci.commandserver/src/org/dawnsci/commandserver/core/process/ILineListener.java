@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.File;
+import java.util.EventListener;
+
+/**
+ * Notified of the lines written to a file which is tailed by the LogTailService.
+ * 
+ * @author Matthew Gerring
+ *
+ */
+public interface ILineListener extends EventListener {
+
+	/**
+	 * Called from the thread of the LogTailService for each complete line, in
+	 * the order they were written. Please return quickly, all of the files
+	 * are tailed by the same thread.
+	 * 
+	 * @param file
+	 * @param line without the line terminator
+	 */
+	void lineRead(File file, String line);
+}
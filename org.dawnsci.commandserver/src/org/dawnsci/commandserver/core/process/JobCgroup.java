@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.scanning.api.event.status.StatusBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The cgroup of one job, made by the CgroupLauncher.
+ *
+ * The process of the job is put in the cgroup before it runs the job's
+ * command, so everything it starts is in the cgroup as well. What the
+ * job used is added to the bean properties when it has finished:
+ *
+ *   cpuSeconds    CPU time of all of the processes of the job, user and system
+ *   peakMemory    largest memory used in bytes (linux 5.19 and later)
+ *   ioReadBytes   bytes read from block devices
+ *   ioWriteBytes  bytes written to block devices
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class JobCgroup {
+
+	private static final Logger logger = LoggerFactory.getLogger(JobCgroup.class);
+
+	/**
+	 * Writes the pid of the shell to cgroup.procs then runs the command in
+	 * its place, so the pid of the job is that of the shell.
+	 */
+	private static final String ENTER = "echo $$ > \"$0\" && exec \"$@\"";
+
+	private final File dir;
+
+	JobCgroup(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * @param command of the job
+	 * @return the command which runs the job in this cgroup
+	 */
+	public List<String> wrap(List<String> command) {
+		final List<String> ret = new ArrayList<String>(command.size()+4);
+		ret.add("/bin/sh");
+		ret.add("-c");
+		ret.add(ENTER);
+		ret.add(new File(dir, "cgroup.procs").getAbsolutePath());
+		ret.addAll(command);
+		return ret;
+	}
+
+	/**
+	 * Changes the command of the builder to run the job in this cgroup.
+	 * Call after ProcessControl.setSession(...) if the job has its own session.
+	 * @param pb
+	 */
+	public void wrap(ProcessBuilder pb) {
+		pb.command(wrap(pb.command()));
+	}
+
+	/**
+	 * Moves a process which is already running into this cgroup, for instance
+	 * a pool worker which is to run the job. Only what the process does from
+	 * now on is limited and accounted, memory which it has already used stays
+	 * charged to the cgroup it was in. The process must be moved back with
+	 * leave(...) before the cgroup is deleted, which would kill it.
+	 *
+	 * @param pid
+	 * @return the cgroup.procs of the cgroup which the process was in
+	 * @throws IOException if the process cannot be moved, e.g. it is not in the delegated cgroup
+	 */
+	public File enter(int pid) throws IOException {
+		final File from = new File(getMount(), ProcFS.getCgroup(pid)+"/cgroup.procs");
+		if (!from.exists()) throw new IOException("Cannot find the cgroup of "+pid);
+		write(new File(dir, "cgroup.procs"), String.valueOf(pid));
+		return from;
+	}
+
+	/**
+	 * Moves a process which entered this cgroup back to where it was.
+	 *
+	 * @param pid
+	 * @param procs returned by enter(pid)
+	 * @throws IOException
+	 */
+	public void leave(int pid, File procs) throws IOException {
+		write(procs, String.valueOf(pid));
+	}
+
+	/**
+	 * @return the directory on which the cgroup file system is mounted, the
+	 * last directory above this one which is a cgroup.
+	 */
+	private File getMount() {
+		File mount = dir;
+		while(mount.getParentFile()!=null && new File(mount.getParentFile(), "cgroup.procs").exists()) {
+			mount = mount.getParentFile();
+		}
+		return mount;
+	}
+
+	/**
+	 * Adds what the job used to the bean properties. Anything which the
+	 * kernel does not report is left out.
+	 *
+	 * @param bean
+	 */
+	public void account(StatusBean bean) {
+		try {
+			final String usage = readKey(new File(dir, "cpu.stat"), "usage_usec");
+			if (usage!=null) bean.setProperty("cpuSeconds", String.valueOf(Long.parseLong(usage)/1e6));
+
+			final File peak = new File(dir, "memory.peak");
+			if (peak.exists()) bean.setProperty("peakMemory", read(peak).trim());
+
+			final long[] io = readIO(new File(dir, "io.stat"));
+			if (io!=null) {
+				bean.setProperty("ioReadBytes",  String.valueOf(io[0]));
+				bean.setProperty("ioWriteBytes", String.valueOf(io[1]));
+			}
+		} catch (Exception ne) {
+			logger.warn("Cannot read the resources used from "+dir, ne);
+		}
+	}
+
+	/**
+	 * Kills anything left in the cgroup and removes it.
+	 * @return true if the cgroup was removed.
+	 */
+	public boolean delete() {
+		try {
+			for (int i = 0; i < 20 && hasProcesses(); i++) {
+				kill();
+				Thread.sleep(50);
+			}
+		} catch (InterruptedException ne) {
+			Thread.currentThread().interrupt();
+		} catch (IOException ne) {
+			logger.warn("Cannot kill the processes of "+dir, ne);
+		}
+		// The files of a cgroup go with it, it may be removed once it has no processes.
+		if (dir.delete()) return true;
+		logger.warn("Cannot remove cgroup "+dir);
+		return false;
+	}
+
+	/**
+	 * Sends SIGKILL to every process in the cgroup.
+	 * @throws IOException
+	 */
+	public void kill() throws IOException {
+		final File cgroupKill = new File(dir, "cgroup.kill");
+		if (cgroupKill.exists()) { // linux 5.14 and later
+			write(cgroupKill, "1");
+			return;
+		}
+		for (Integer pid : getProcesses()) POSIX.INSTANCE.kill(pid, 9);
+	}
+
+	/**
+	 * @return the pids in the cgroup
+	 * @throws IOException
+	 */
+	public List<Integer> getProcesses() throws IOException {
+		final List<Integer> pids  = new ArrayList<Integer>(7);
+		final File          procs = new File(dir, "cgroup.procs");
+		if (!procs.exists()) return pids;
+		for (String line : read(procs).split("\n")) {
+			if (line.trim().length()>0) pids.add(Integer.parseInt(line.trim()));
+		}
+		return pids;
+	}
+
+	private boolean hasProcesses() throws IOException {
+		return !getProcesses().isEmpty();
+	}
+
+	void set(String name, String value) throws IOException {
+		try {
+			write(new File(dir, name), value);
+		} catch (IOException ne) {
+			throw new IOException("Cannot set "+name+" to "+value+" in "+dir+", is the controller enabled?", ne);
+		}
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * @param ioStat
+	 * @return the bytes read and written by all the devices in io.stat or null if there is no io.stat
+	 * @throws IOException
+	 */
+	private static long[] readIO(File ioStat) throws IOException {
+		if (!ioStat.exists()) return null;
+		final long[] ret = new long[2];
+		for (String line : read(ioStat).split("\n")) {
+			for (String field : line.trim().split("\\s+")) {
+				if (field.startsWith("rbytes=")) ret[0] += Long.parseLong(field.substring(7));
+				if (field.startsWith("wbytes=")) ret[1] += Long.parseLong(field.substring(7));
+			}
+		}
+		return ret;
+	}
+
+	private static String readKey(File file, String key) throws IOException {
+		if (!file.exists()) return null;
+		for (String line : read(file).split("\n")) {
+			final String[] pair = line.trim().split("\\s+");
+			if (pair.length==2 && pair[0].equals(key)) return pair[1];
+		}
+		return null;
+	}
+
+	static void write(File file, String value) throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(value.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		final BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			final StringBuilder buf = new StringBuilder();
+			String line;
+			while((line = reader.readLine())!=null) buf.append(line).append('\n');
+			return buf.toString();
+		} finally {
+			reader.close();
+		}
+	}
+}
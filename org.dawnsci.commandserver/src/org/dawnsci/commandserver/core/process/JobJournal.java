@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dawnsci.commandserver.core.ActiveMQServiceHolder;
+import org.eclipse.scanning.api.event.IEventConnectorService;
+import org.eclipse.scanning.api.event.status.Status;
+import org.eclipse.scanning.api.event.status.StatusBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append only file on the local disk recording the state of the jobs
+ * of a consumer, so that when the consumer is restarted it can find the
+ * jobs which were running and carry on monitoring them.
+ *
+ * Each line is one update of a job, separated by tabs:
+ *
+ * time uniqueId status percent pid pidStart runDirectory bean(json)
+ *
+ * Changes of status are written to disk (fsync) before returning. Updates
+ * which only change the percent complete are written at most every
+ * -journalInterval ms (default 10000) for each job.
+ *
+ * The journal is switched on with the consumer argument -journal /path/to/file
+ * When it is opened, only the last line of each unfinished job is kept.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class JobJournal {
+
+	private static final Logger logger = LoggerFactory.getLogger(JobJournal.class);
+
+	public static final long DEFAULT_INTERVAL = 10000; // ms
+
+	private final File file;
+	private final long interval;
+
+	private FileOutputStream   stream;
+	private Map<String, Entry> last;
+
+	/**
+	 * Creates the journal from the consumer arguments.
+	 * @param config
+	 * @return journal or null if -journal is not set.
+	 */
+	public static JobJournal create(Map<String, String> config) {
+		if (config==null || config.get("journal")==null) return null;
+		final long interval = config.get("journalInterval")!=null
+				            ? Long.parseLong(config.get("journalInterval").trim())
+				            : DEFAULT_INTERVAL;
+		return new JobJournal(new File(config.get("journal")), interval);
+	}
+
+	public JobJournal(File file, long interval) {
+		this.file     = file;
+		this.interval = interval;
+		this.last     = new HashMap<String, Entry>(31);
+	}
+
+	/**
+	 * Reads the journal, rewrites it with only the jobs which had not finished
+	 * and opens it for appending.
+	 *
+	 * @param beanClass
+	 * @return the last entry of each job which had not finished, in the order they were written.
+	 * @throws IOException
+	 */
+	public synchronized <T extends StatusBean> List<Entry> open(Class<T> beanClass) throws IOException {
+
+		final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(31);
+		if (file.exists()) {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while((line = reader.readLine())!=null) {
+					final Entry entry = Entry.parse(line);
+					if (entry==null) continue; // Partly written line, the consumer stopped while writing it.
+					entries.remove(entry.uniqueId);
+					if (!entry.status.isFinal()) entries.put(entry.uniqueId, entry);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		// Rewrite the journal with only the unfinished jobs, then swap it in.
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		final File tmp = new File(file.getAbsolutePath()+".tmp");
+		final FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			for (Entry entry : entries.values()) out.write(entry.line.concat("\n").getBytes("UTF-8"));
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) throw new IOException("Cannot replace "+file+" with "+tmp);
+		}
+
+		this.stream = new FileOutputStream(file, true);
+		this.last   = new HashMap<String, Entry>(entries);
+
+		final List<Entry> ret = new ArrayList<Entry>(entries.values());
+		final IEventConnectorService service = ActiveMQServiceHolder.getEventConnectorService();
+		for (Entry entry : ret) {
+			try {
+				entry.bean = service.unmarshal(entry.json, beanClass);
+			} catch (Exception ne) {
+				logger.error("Cannot read bean of job "+entry.uniqueId+" from "+file, ne);
+			}
+		}
+		logger.info("Opened job journal "+file+" with "+ret.size()+" unfinished job(s)");
+		return ret;
+	}
+
+	/**
+	 * Records the state of a job. If the status has not changed since the last
+	 * record of this job and it was recorded less than the interval ago, nothing
+	 * is written.
+	 *
+	 * @param bean
+	 * @param pid of the process running the job or -1
+	 * @param pidStart start time of the process, see ProcFS
+	 */
+	public synchronized void record(StatusBean bean, int pid, long pidStart) {
+
+		if (stream==null || bean.getUniqueId()==null) return; // Not open
+
+		final Entry   previous   = last.get(bean.getUniqueId());
+		final long    time       = System.currentTimeMillis();
+		final boolean transition = previous==null || previous.status!=bean.getStatus() || previous.pid!=pid;
+		if (!transition && time-previous.time<interval) return;
+
+		try {
+			final String json = ActiveMQServiceHolder.getEventConnectorService().marshal(bean);
+			final Entry  entry = new Entry(time, bean.getUniqueId(), bean.getStatus(), bean.getPercentComplete(),
+					                       pid, pidStart, bean.getRunDirectory(), json);
+			stream.write(entry.line.concat("\n").getBytes("UTF-8"));
+			if (transition) stream.getChannel().force(false);
+
+			if (bean.getStatus().isFinal()) {
+				last.remove(bean.getUniqueId());
+			} else {
+				last.put(bean.getUniqueId(), entry);
+			}
+		} catch (Exception ne) {
+			logger.error("Cannot write job "+bean.getUniqueId()+" to journal "+file, ne);
+		}
+	}
+
+	public synchronized void close() {
+		try {
+			if (stream!=null) stream.close();
+		} catch (IOException ne) {
+			logger.error("Cannot close journal "+file, ne);
+		}
+		stream = null;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * One line of the journal.
+	 */
+	public static final class Entry {
+
+		private final long   time;
+		private final String uniqueId;
+		private final Status status;
+		private final double percent;
+		private final int    pid;
+		private final long   pidStart;
+		private final String runDirectory;
+		private final String json;
+		private final String line;
+		private StatusBean   bean;
+
+		Entry(long time, String uniqueId, Status status, double percent, int pid, long pidStart, String runDirectory, String json) {
+			this.time         = time;
+			this.uniqueId     = uniqueId;
+			this.status       = status;
+			this.percent      = percent;
+			this.pid          = pid;
+			this.pidStart     = pidStart;
+			this.runDirectory = runDirectory;
+			this.json         = json;
+
+			// JSON strings cannot contain a raw tab or new line, but a run directory could.
+			final String dir = runDirectory!=null ? runDirectory.replace('\t', ' ').replace('\n', ' ') : "";
+			this.line = time+"\t"+uniqueId+"\t"+status+"\t"+percent+"\t"+pid+"\t"+pidStart+"\t"+dir+"\t"+json;
+		}
+
+		static Entry parse(String line) {
+			final String[] split = line.split("\t", 8);
+			if (split.length<8) return null;
+			try {
+				return new Entry(Long.parseLong(split[0]), split[1], Status.valueOf(split[2]), Double.parseDouble(split[3]),
+						         Integer.parseInt(split[4]), Long.parseLong(split[5]), split[6].length()>0?split[6]:null, split[7]);
+			} catch (IllegalArgumentException ne) {
+				return null;
+			}
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public String getUniqueId() {
+			return uniqueId;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		public double getPercent() {
+			return percent;
+		}
+
+		public int getPid() {
+			return pid;
+		}
+
+		public long getPidStart() {
+			return pidStart;
+		}
+
+		public String getRunDirectory() {
+			return runDirectory;
+		}
+
+		/**
+		 * @return the bean as it was last written or null if it could not be read.
+		 */
+		public StatusBean getBean() {
+			return bean;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the threads which run jobs and the threads which watch them,
+ * for instance the threads reading the output of a process or polling
+ * a log file.
+ *
+ * These threads spend almost all of their time sleeping or blocked
+ * reading a stream. When virtual threads are switched on and the JVM
+ * supports them (Java 21 or later) they are created as virtual threads,
+ * which cost very little memory while they wait. Otherwise normal daemon
+ * threads are used, as before.
+ *
+ * Virtual threads are switched on for the jobs of a consumer with the
+ * consumer argument -virtualThreads true, which is read by the consumer's
+ * ProcessPool and processes. The threads shared by the JVM, for instance
+ * those of PipeDrainer and LogTailService, and consumers without the
+ * argument use the system property
+ * org.dawnsci.commandserver.core.virtualThreads=true
+ *
+ * Virtual threads are always daemon threads and ignore the thread
+ * priority.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public final class JobThreads {
+
+	private static final Logger logger = LoggerFactory.getLogger(JobThreads.class);
+
+	private static final boolean VIRTUAL = Boolean.getBoolean("org.dawnsci.commandserver.core.virtualThreads");
+
+	// Thread.ofVirtual() and Thread.Builder, looked up once as we compile for an older JVM.
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method NUMBERED_NAME;
+	private static final Method FACTORY;
+	static {
+		Method ofVirtual = null, name = null, numbered = null, factory = null;
+		try {
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name      = builder.getMethod("name", String.class);
+			numbered  = builder.getMethod("name", String.class, long.class);
+			factory   = builder.getMethod("factory");
+		} catch (Exception ne) {
+			ofVirtual = null; // Virtual threads are not supported by this JVM.
+		}
+		OF_VIRTUAL    = ofVirtual;
+		NAME          = name;
+		NUMBERED_NAME = numbered;
+		FACTORY       = factory;
+	}
+
+	private JobThreads() {
+
+	}
+
+	/**
+	 * @param config consumer arguments, may be null
+	 * @return true if the consumer asks for virtual threads with -virtualThreads,
+	 * or the system property does if the argument is not there.
+	 */
+	public static boolean isVirtual(Map<String, String> config) {
+		if (config!=null && config.get("virtualThreads")!=null) {
+			return Boolean.parseBoolean(config.get("virtualThreads").trim());
+		}
+		return VIRTUAL;
+	}
+
+	/**
+	 * @return true if virtual threads are supported by this JVM.
+	 */
+	public static boolean isVirtualSupported() {
+		return OF_VIRTUAL!=null;
+	}
+
+	/**
+	 * @return true if the threads shared by the JVM are virtual threads.
+	 */
+	public static boolean isVirtual() {
+		return VIRTUAL && isVirtualSupported();
+	}
+
+	/**
+	 * Creates a factory for threads called '<prefix> N'
+	 *
+	 * @param prefix
+	 * @param priority used if the threads are not virtual
+	 * @return factory
+	 */
+	public static ThreadFactory createFactory(String prefix, int priority) {
+		return createFactory(prefix, priority, VIRTUAL);
+	}
+
+	/**
+	 * Creates a factory for threads called '<prefix> N'
+	 *
+	 * @param prefix
+	 * @param priority used if the threads are not virtual
+	 * @param virtual true for virtual threads, if the JVM supports them
+	 * @return factory
+	 */
+	public static ThreadFactory createFactory(final String prefix, final int priority, boolean virtual) {
+
+		if (virtual && !isVirtualSupported()) {
+			logger.warn("Virtual threads were requested but are not supported by Java "+System.getProperty("java.version")+", normal threads will be used.");
+		}
+		if (virtual && isVirtualSupported()) {
+			final ThreadFactory factory = createVirtualFactory(prefix+" ", 1);
+			if (factory!=null) return factory;
+		}
+
+		final AtomicInteger count = new AtomicInteger(0);
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, prefix+" "+count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(priority);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Creates and starts a daemon thread, or a virtual thread if the system property switches them on.
+	 *
+	 * @param runner
+	 * @param name
+	 * @param priority used if the thread is not virtual
+	 * @return the started thread
+	 */
+	public static Thread start(Runnable runner, String name, int priority) {
+		return start(runner, name, priority, VIRTUAL);
+	}
+
+	/**
+	 * Creates and starts a daemon thread, or a virtual thread.
+	 *
+	 * @param runner
+	 * @param name
+	 * @param priority used if the thread is not virtual
+	 * @param virtual true for a virtual thread, if the JVM supports them
+	 * @return the started thread
+	 */
+	public static Thread start(Runnable runner, String name, int priority, boolean virtual) {
+
+		Thread thread = null;
+		if (virtual && isVirtualSupported()) {
+			final ThreadFactory factory = createVirtualFactory(name, -1);
+			if (factory!=null) thread = factory.newThread(runner);
+		}
+		if (thread==null) {
+			thread = new Thread(runner, name);
+			thread.setDaemon(true);
+			thread.setPriority(priority);
+		}
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 *
+	 * @param name
+	 * @param start the first number to append to the name, or <0 to use the name as it is.
+	 * @return factory or null if it cannot be created
+	 */
+	private static ThreadFactory createVirtualFactory(String name, long start) {
+		try {
+			Object builder = OF_VIRTUAL.invoke(null);
+			builder = start>=0 ? NUMBERED_NAME.invoke(builder, name, start) : NAME.invoke(builder, name);
+			return (ThreadFactory)FACTORY.invoke(builder);
+		} catch (Exception ne) {
+			logger.warn("Cannot create virtual threads, normal threads will be used.", ne);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.ProcessBuilder.Redirect;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small JVM which starts processes for the consumer, see ProcessLauncher.
+ *
+ * Forking the consumer, which may have a heap of many GB, costs more the
+ * larger the consumer is. This JVM has a small heap, so starting a process
+ * from it costs little and always the same.
+ *
+ * The server reads the token which clients must give from stdin, listens on
+ * the loopback interface and writes its port to stdout. It exits when stdin
+ * is closed, e.g. because the consumer has ended; the processes which it
+ * started keep running.
+ *
+ * Each process is started on a connection of its own. The client sends the
+ * token, the directory, the environment, the command and the redirects, the
+ * server replies with the pid, or -1 and a message, and later the exit code.
+ * The client may send TERMINATE while the process runs to destroy it.
+ * Strings are sent as their length and UTF-8 bytes, so that an environment
+ * or argument of any size can be sent.
+ *
+ * Only the JDK is used, because nothing else is on the class path of the server.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class LaunchServer {
+
+	static final byte   TERMINATE = 'T';
+
+	// How a stream is redirected
+	static final String WRITE   = "write";
+	static final String APPEND  = "append";
+	static final String READ    = "read";
+	static final String DISCARD = "discard";
+
+	private static final String NULL_FILE = "/dev/null";
+
+	// Longer than any environment or command which exec accepts
+	private static final int MAX_STRING = 1<<24;
+
+	private final String token;
+
+	private LaunchServer(String token) {
+		this.token = token;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		final BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+		final String token = stdin.readLine();
+		if (token==null) return;
+
+		final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		System.out.println(server.getLocalPort());
+		System.out.flush();
+
+		// Ends when the consumer does
+		final Thread watcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(stdin.readLine()!=null);
+				} catch (IOException ignored) {
+					// Ended
+				}
+				System.exit(0);
+			}
+		}, "Launch server stdin");
+		watcher.setDaemon(true);
+		watcher.start();
+
+		new LaunchServer(token).serve(server);
+	}
+
+	private void serve(ServerSocket server) throws IOException {
+		while(true) {
+			final Socket socket = server.accept();
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						launch(socket);
+					} catch (Exception ne) {
+						System.err.println("Launch server cannot start process: "+ne);
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException ignored) {
+							// Gone
+						}
+					}
+				}
+			}, "Launch "+socket.getPort());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void launch(Socket socket) throws Exception {
+
+		final DataInputStream  in  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+		if (!token.equals(readString(in))) return;
+
+		final ProcessBuilder pb  = new ProcessBuilder();
+		final String         dir = readString(in);
+		if (dir.length()>0) pb.directory(new File(dir));
+
+		final Map<String, String> env = pb.environment();
+		env.clear();
+		for (int i = in.readInt(); i>0; i--) env.put(readString(in), readString(in));
+
+		final List<String> command = new ArrayList<String>(7);
+		for (int i = in.readInt(); i>0; i--) command.add(readString(in));
+		pb.command(command);
+
+		final String inType = readString(in), inPath = readString(in);
+		pb.redirectInput(Redirect.from(new File(READ.equals(inType) ? inPath : NULL_FILE))); // Nothing is written to the input
+		pb.redirectOutput(getRedirect(readString(in), readString(in)));
+		pb.redirectError(getRedirect(readString(in), readString(in)));
+		pb.redirectErrorStream(in.readBoolean());
+
+		final Process process;
+		try {
+			process = pb.start();
+		} catch (IOException ne) {
+			out.writeInt(-1);
+			writeString(out, String.valueOf(ne.getMessage()));
+			out.flush();
+			return;
+		}
+		out.writeInt(getPid(process));
+		out.flush();
+
+		// Anything the client sends is a request to terminate
+		final Thread requests = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(in.read()==TERMINATE) process.destroy();
+				} catch (IOException ignored) {
+					// The client has gone, the process keeps running.
+				}
+			}
+		}, "Requests "+socket.getPort());
+		requests.setDaemon(true);
+		requests.start();
+
+		final int exit = process.waitFor();
+		out.writeInt(exit);
+		out.flush();
+	}
+
+	/**
+	 * Writes the string as its length and UTF-8 bytes, unlike writeUTF this
+	 * is not limited to 64KB.
+	 */
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		final byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by writeString
+	 */
+	static String readString(DataInputStream in) throws IOException {
+		final int length = in.readInt();
+		if (length<0 || length>MAX_STRING) throw new IOException("Invalid string length "+length);
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static Redirect getRedirect(String type, String path) {
+		if (WRITE.equals(type))   return Redirect.to(new File(path));
+		if (APPEND.equals(type))  return Redirect.appendTo(new File(path));
+		return Redirect.to(new File(NULL_FILE));
+	}
+
+	private static int getPid(Process p) throws Exception {
+		try {
+			final Method pid = Process.class.getMethod("pid");
+			return ((Long)pid.invoke(p)).intValue();
+		} catch (NoSuchMethodException ignored) {
+			final Field f = p.getClass().getDeclaredField("pid");
+			f.setAccessible(true);
+			return (Integer)f.get(p);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits the bytes read from a file or pipe into lines for a listener,
+ * used by LogTailService, LogScanner and PipeDrainer.
+ *
+ * A line without its end is kept until the rest of it is written, or until
+ * finish() is called because nothing more will be. A line longer than
+ * MAX_LINE is given in parts, so that output without line ends does not
+ * fill the heap. Lines are decoded as UTF-8 and given without the \n or
+ * \r\n which ends them. An exception thrown by the listener is logged and
+ * the next line is still given to it.
+ *
+ * A splitter is not thread safe.
+ *
+ * @author Matthew Gerring
+ *
+ */
+final class LineSplitter {
+
+	private static final Logger logger = LoggerFactory.getLogger(LineSplitter.class);
+
+	/**
+	 * The most bytes of a line which are kept before it is given to the listener.
+	 */
+	static final int MAX_LINE = 64*1024;
+
+	private final File                  file;
+	private final ByteArrayOutputStream partial;
+
+	/**
+	 * @param file given to the listener with each line
+	 */
+	LineSplitter(File file) {
+		this.file    = file;
+		this.partial = new ByteArrayOutputStream(256);
+	}
+
+	/**
+	 * Gives the listener each line which the bytes end.
+	 *
+	 * @param bytes
+	 * @param len of the bytes which were read
+	 * @param listener
+	 */
+	void write(byte[] bytes, int len, ILineListener listener) {
+		int start = 0;
+		for (int i = 0; i < len; i++) {
+			if (bytes[i]!='\n') continue;
+			partial.write(bytes, start, i-start);
+			deliver(listener);
+			start = i+1;
+		}
+		partial.write(bytes, start, len-start);
+		if (partial.size()>=MAX_LINE) deliver(listener);
+	}
+
+	/**
+	 * Gives the listener the last line if it has no end.
+	 *
+	 * @param listener
+	 */
+	void finish(ILineListener listener) {
+		if (partial.size()>0) deliver(listener);
+	}
+
+	/**
+	 * Forgets a line without its end, e.g. when the file has been truncated.
+	 */
+	void reset() {
+		partial.reset();
+	}
+
+	private void deliver(ILineListener listener) {
+		String line;
+		try {
+			line = partial.toString("UTF-8");
+		} catch (IOException ne) {
+			line = partial.toString();
+		}
+		partial.reset();
+		if (line.endsWith("\r")) line = line.substring(0, line.length()-1);
+		try {
+			listener.lineRead(file, line);
+		} catch (Exception ne) {
+			logger.error("Problem with line of "+file, ne);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds which of a set of literal strings occur in a line by reading the
+ * line once, however many literals there are (Aho-Corasick).
+ *
+ * @author Matthew Gerring
+ *
+ */
+class LiteralMatcher {
+
+	// For each state, the characters with a transition in order and the state they go to.
+	private final char[][] chars;
+	private final int[][]  next;
+	private final int[]    fail;
+	private final int[][]  outputs;
+
+	/**
+	 * @param literals which must not be empty
+	 */
+	LiteralMatcher(List<String> literals) {
+
+		final List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+		final List<List<Integer>>                out  = new ArrayList<List<Integer>>();
+		trie.add(new TreeMap<Character, Integer>());
+		out.add(new ArrayList<Integer>(1));
+
+		for (int i = 0; i < literals.size(); i++) {
+			int state = 0;
+			for (char c : literals.get(i).toCharArray()) {
+				Integer to = trie.get(state).get(c);
+				if (to==null) {
+					to = trie.size();
+					trie.add(new TreeMap<Character, Integer>());
+					out.add(new ArrayList<Integer>(1));
+					trie.get(state).put(c, to);
+				}
+				state = to;
+			}
+			out.get(state).add(i);
+		}
+
+		// Breadth first so that the failure of the parent is known.
+		final int size = trie.size();
+		this.fail = new int[size];
+		final LinkedList<Integer> todo = new LinkedList<Integer>(trie.get(0).values());
+		while(!todo.isEmpty()) {
+			final int state = todo.removeFirst();
+			for (Map.Entry<Character, Integer> entry : trie.get(state).entrySet()) {
+				final int child = entry.getValue();
+				int f = fail[state];
+				while (f>0 && !trie.get(f).containsKey(entry.getKey())) f = fail[f];
+				final Integer to = trie.get(f).get(entry.getKey());
+				fail[child] = to!=null && to!=child ? to : 0;
+				out.get(child).addAll(out.get(fail[child]));
+				todo.add(child);
+			}
+		}
+
+		this.chars   = new char[size][];
+		this.next    = new int[size][];
+		this.outputs = new int[size][];
+		for (int s = 0; s < size; s++) {
+			final TreeMap<Character, Integer> map = trie.get(s);
+			chars[s] = new char[map.size()];
+			next[s]  = new int[map.size()];
+			int i = 0;
+			for (Map.Entry<Character, Integer> entry : map.entrySet()) {
+				chars[s][i] = entry.getKey();
+				next[s][i]  = entry.getValue();
+				++i;
+			}
+			outputs[s] = new int[out.get(s).size()];
+			for (int j = 0; j < outputs[s].length; j++) outputs[s][j] = out.get(s).get(j);
+		}
+	}
+
+	/**
+	 * @param line
+	 * @return the indices of the literals which are in the line
+	 */
+	BitSet match(CharSequence line) {
+		final BitSet found = new BitSet();
+		int state = 0;
+		for (int i = 0; i < line.length(); i++) {
+			final char c = line.charAt(i);
+			int to;
+			while ((to = transition(state, c))<0 && state>0) state = fail[state];
+			state = to<0 ? 0 : to;
+			for (int o : outputs[state]) found.set(o);
+		}
+		return found;
+	}
+
+	private int transition(int state, char c) {
+		final int i = Arrays.binarySearch(chars[state], c);
+		return i<0 ? -1 : next[state][i];
+	}
+
+	/**
+	 * Finds the longest run of characters which any match of the regular
+	 * expression must contain, so that lines without it need not be matched.
+	 * Only runs outside of groups and classes are used and nothing is found
+	 * if the expression has alternatives or flags, so this may miss a literal
+	 * but does not return one which is not needed.
+	 *
+	 * @param regex
+	 * @return the literal or null
+	 */
+	static String findLiteral(String regex) {
+
+		if (regex.indexOf('|')>-1 || regex.contains("(?") || regex.contains("\\Q")) return null;
+
+		final Map<String, Boolean> runs = new HashMap<String, Boolean>(7);
+		StringBuilder run   = new StringBuilder();
+		int           depth = 0;
+		for (int i = 0; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+			boolean literal = false;
+			if (c=='\\' && i+1<regex.length()) {
+				c = regex.charAt(++i);
+				literal = !Character.isLetterOrDigit(c); // \d \w \1 etc. are not literals
+			} else if (c=='[') { // A class, skip to its end
+				if (i+1<regex.length() && regex.charAt(i+1)==']') ++i; // []] has ] in the class
+				while (i+1<regex.length() && regex.charAt(i+1)!=']') {
+					if (regex.charAt(i+1)=='\\') ++i;
+					++i;
+				}
+				++i;
+			} else if (c=='{') { // A count, skip to its end
+				while (i+1<regex.length() && regex.charAt(i)!='}') ++i;
+			} else if (c=='(') {
+				++depth;
+			} else if (c==')') {
+				--depth;
+			} else {
+				literal = ".^$*+?{}".indexOf(c)<0;
+			}
+
+			final char quantifier = i+1<regex.length() ? regex.charAt(i+1) : 0;
+			if (literal && depth==0 && quantifier!='?' && quantifier!='*' && quantifier!='{') {
+				run.append(c);
+				if (quantifier!='+') continue; // Required, and at least once with +
+			}
+			if (run.length()>0) runs.put(run.toString(), Boolean.TRUE);
+			run = new StringBuilder();
+		}
+		if (run.length()>0) runs.put(run.toString(), Boolean.TRUE);
+
+		String longest = null;
+		for (String r : runs.keySet()) if (longest==null || r.length()>longest.length()) longest = r;
+		return longest;
+	}
+}
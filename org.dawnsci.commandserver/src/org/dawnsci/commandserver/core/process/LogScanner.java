@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads log files a bit at a time, each scan gives the listener only the
+ * lines written since the last scan of the file. Use it to look for errors
+ * in files which are checked more than once, so that a large log on a
+ * shared file system is not read again from the start each time.
+ *
+ * Files are read with a buffer unless there is more than the map threshold
+ * to read, which is memory mapped instead. The threshold may be set with
+ * org.dawnsci.commandserver.core.scanMapThreshold in bytes, default 4MB.
+ *
+ * A scanner is not thread safe, it is meant to be used by one job.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class LogScanner {
+
+	private static final int MAX_MAP = 64*1024*1024;
+
+	private final long                  mapThreshold;
+	private final Map<File, Position>   positions;
+
+	public LogScanner() {
+		this(Long.getLong("org.dawnsci.commandserver.core.scanMapThreshold", 4*1024*1024));
+	}
+
+	/**
+	 * @param mapThreshold in bytes, files with more than this to read are memory mapped.
+	 */
+	public LogScanner(long mapThreshold) {
+		this.mapThreshold = mapThreshold;
+		this.positions    = new HashMap<File, Position>(7);
+	}
+
+	/**
+	 * Gives the listener the lines which have been written since the last
+	 * scan of the file. A line without its end is kept until it has been
+	 * written. If the file is shorter than when it was last scanned it is
+	 * read again from the start.
+	 *
+	 * @param file which need not exist
+	 * @param listener
+	 * @throws IOException
+	 */
+	public void scan(File file, ILineListener listener) throws IOException {
+		scan(file, listener, false);
+	}
+
+	/**
+	 * @param file which need not exist
+	 * @param listener
+	 * @param finished true if nothing else will be written to the file, so
+	 *        that a last line without an end is given to the listener.
+	 * @throws IOException
+	 */
+	public void scan(File file, ILineListener listener, boolean finished) throws IOException {
+
+		if (!file.exists()) return;
+		final File key = file.getAbsoluteFile();
+		Position pos = positions.get(key);
+		if (pos==null) positions.put(key, pos = new Position(file));
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final long length = raf.length();
+			if (length<pos.offset) { // Truncated or replaced
+				pos.offset = 0;
+				pos.lines.reset();
+			}
+			if (length>pos.offset) {
+				final FileChannel channel = raf.getChannel();
+				if (length-pos.offset>mapThreshold) {
+					while (pos.offset<length) {
+						final long size = Math.min(MAX_MAP, length-pos.offset);
+						final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, pos.offset, size);
+						pos.read(map, listener);
+						pos.offset += size;
+					}
+				} else {
+					final ByteBuffer buffer = ByteBuffer.allocate(8192);
+					channel.position(pos.offset);
+					int len;
+					while((len = channel.read(buffer))>0) {
+						buffer.flip();
+						pos.read(buffer, listener);
+						buffer.clear();
+						pos.offset += len;
+					}
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		if (finished) pos.lines.finish(listener);
+	}
+
+	/**
+	 * @param file
+	 * @return the number of bytes of the file which have been scanned.
+	 */
+	public long getOffset(File file) {
+		final Position pos = positions.get(file.getAbsoluteFile());
+		return pos!=null ? pos.offset : 0;
+	}
+
+	/**
+	 * Forgets a file, so that it is read from the start the next time it is scanned.
+	 * @param file
+	 */
+	public void reset(File file) {
+		positions.remove(file.getAbsoluteFile());
+	}
+
+	private static final class Position {
+
+		private long               offset;
+		private final LineSplitter lines;
+
+		Position(File file) {
+			this.lines = new LineSplitter(file);
+		}
+
+		void read(ByteBuffer buffer, ILineListener listener) {
+			final byte[] bytes = new byte[(int)Math.min(8192, buffer.remaining())];
+			while (buffer.hasRemaining()) {
+				final int len = Math.min(bytes.length, buffer.remaining());
+				buffer.get(bytes, 0, len);
+				lines.write(bytes, len, listener);
+			}
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tails the log files of all of the running jobs from one thread.
+ *
+ * The directories of the files are watched with a WatchService (inotify on
+ * linux) so that new lines are read as soon as they are written. As the
+ * WatchService does not see files written by other hosts over NFS, every
+ * file is also checked each poll interval, set with
+ * org.dawnsci.commandserver.core.tailPollInterval in ms, default 1000.
+ *
+ * Each file is read from where the last read stopped. Only complete lines
+ * are given to the listener, a partly written line is kept until the rest
+ * of it has been written or the tail is closed. If a file gets shorter it
+ * is read again from the start. Files which do not exist yet are tailed
+ * once they are created.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class LogTailService implements Runnable {
+
+	private static final Logger logger = LoggerFactory.getLogger(LogTailService.class);
+
+	private static LogTailService defaultService;
+
+	/**
+	 * @return the service used by the jobs of this consumer, its thread is started the first time it is used.
+	 */
+	public static synchronized LogTailService getDefault() {
+		if (defaultService==null) defaultService = new LogTailService(Long.getLong("org.dawnsci.commandserver.core.tailPollInterval", 1000));
+		return defaultService;
+	}
+
+	private final long             pollInterval;
+	private final List<Tail>       tails;
+	private final Map<Path, WatchKey> keys;
+	private WatchService           watcher;
+	private volatile boolean       started;
+
+	/**
+	 * @param pollInterval in ms
+	 */
+	public LogTailService(long pollInterval) {
+		this.pollInterval = pollInterval;
+		this.tails        = new CopyOnWriteArrayList<Tail>();
+		this.keys         = new HashMap<Path, WatchKey>(7);
+	}
+
+	/**
+	 * Starts tailing a file from its start.
+	 *
+	 * @param file which may not exist yet
+	 * @param listener
+	 * @return the tail, which must be closed when the file is no longer needed.
+	 */
+	public Tail tail(File file, ILineListener listener) {
+
+		final Tail tail = new Tail(file, listener);
+		synchronized (this) {
+			if (!started) start();
+			watch(file.getAbsoluteFile().getParentFile());
+			tails.add(tail);
+		}
+		return tail;
+	}
+
+	private void start() {
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+		} catch (IOException ne) {
+			logger.warn("Cannot watch the log files, they will be polled", ne);
+		}
+		JobThreads.start(this, "Log tail", Thread.MIN_PRIORITY);
+		started = true;
+	}
+
+	private void watch(File dir) {
+		if (watcher==null || dir==null || !dir.isDirectory()) return;
+		final Path path = dir.toPath();
+		if (keys.containsKey(path)) return;
+		try {
+			keys.put(path, path.register(watcher, ENTRY_CREATE, ENTRY_MODIFY));
+		} catch (IOException ne) {
+			logger.debug("Cannot watch "+dir+", it will be polled", ne);
+		}
+	}
+
+	private synchronized void unwatch(File dir) {
+		if (dir==null) return;
+		for (Tail tail : tails) {
+			if (dir.equals(tail.file.getAbsoluteFile().getParentFile())) return;
+		}
+		final WatchKey key = keys.remove(dir.toPath());
+		if (key!=null) key.cancel();
+	}
+
+	@Override
+	public void run() {
+
+		long lastPoll = 0;
+		while(true) {
+			try {
+				final WatchKey key = watcher!=null ? watcher.poll(pollInterval, TimeUnit.MILLISECONDS) : null;
+				if (key==null) {
+					if (watcher==null) Thread.sleep(pollInterval);
+				} else {
+					final Path dir = (Path)key.watchable();
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind()!=ENTRY_CREATE && event.kind()!=ENTRY_MODIFY) continue; // Overflow, the poll reads them
+						final Path changed = dir.resolve((Path)event.context());
+						for (Tail tail : tails) {
+							if (tail.path.equals(changed)) tail.read();
+						}
+					}
+					key.reset();
+				}
+
+				// Anything written on another host or missed
+				if (System.currentTimeMillis()-lastPoll>=pollInterval) {
+					for (Tail tail : tails) {
+						if (watcher!=null) synchronized (this) { // The directory may have been made since
+							watch(tail.file.getAbsoluteFile().getParentFile());
+						}
+						tail.read();
+					}
+					lastPoll = System.currentTimeMillis();
+				}
+
+			} catch (ClosedWatchServiceException ne) {
+				watcher = null;
+			} catch (InterruptedException ne) {
+				logger.info("Log tail thread interrupted, the log files are no longer tailed");
+				return;
+			} catch (Throwable ne) {
+				logger.error("Problem tailing log files", ne);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of files being tailed.
+	 */
+	public int getTailCount() {
+		return tails.size();
+	}
+
+	/**
+	 * A file being tailed, close it to stop.
+	 */
+	public final class Tail {
+
+		private final File                  file;
+		private final Path                  path;
+		private final ILineListener         listener;
+		private final LineSplitter          lines;
+		private final byte[]                buffer;
+		private long                        position;
+		private volatile boolean            closed;
+
+		private Tail(File file, ILineListener listener) {
+			this.file     = file;
+			this.path     = file.getAbsoluteFile().toPath();
+			this.listener = listener;
+			this.lines    = new LineSplitter(file);
+			this.buffer   = new byte[8192];
+		}
+
+		/**
+		 * Reads what has been written since the last read, on the service
+		 * thread or when the tail is closed.
+		 */
+		private synchronized void read() {
+			if (closed || !file.exists()) return;
+			try {
+				final RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					final long length = raf.length();
+					if (length<position) { // Truncated or replaced
+						position = 0;
+						lines.reset();
+					}
+					if (length==position) return;
+					raf.seek(position);
+					int len;
+					while((len = raf.read(buffer))>0) {
+						position += len;
+						lines.write(buffer, len, listener);
+					}
+				} finally {
+					raf.close();
+				}
+			} catch (IOException ne) {
+				logger.debug("Cannot read "+file, ne);
+			}
+		}
+
+		/**
+		 * Stops tailing the file. What was written before it is called is
+		 * given to the listener first, including a last line without an end.
+		 */
+		public void close() {
+			synchronized (this) {
+				if (closed) return;
+				read();
+				lines.finish(listener);
+				closed = true;
+			}
+			tails.remove(this);
+			unwatch(file.getAbsoluteFile().getParentFile());
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+	}
+}
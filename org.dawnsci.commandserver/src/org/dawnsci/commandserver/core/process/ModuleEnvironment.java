@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the environment made by a setup command such as 'module load xia2'
+ * so that the program of a job can be run directly in that environment,
+ * rather than in a shell which evaluates the module system each time.
+ *
+ * The setup command is run once by bash and the environment after it is
+ * kept. It is run again when the environment is older than the cache time
+ * or when one of the modulefiles loaded, from _LMFILES_, has changed.
+ *
+ * A command without shell syntax is started directly, with its program
+ * found on the PATH of the environment. Other commands are run by bash
+ * in the environment, without the setup command. If the setup command
+ * fails the caller runs the setup command and the command in a shell as
+ * before.
+ *
+ * The cache time is set with org.dawnsci.commandserver.core.moduleCacheTime
+ * in ms, default one hour. 0 switches the cache off.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class ModuleEnvironment {
+
+	private static final Logger logger = LoggerFactory.getLogger(ModuleEnvironment.class);
+
+	// Anything which a shell would interpret, so the command cannot be split on spaces.
+	private static final Pattern SHELL_SYNTAX = Pattern.compile("[|&;<>()$`\\\\\"'*?\\[\\]#~=%{}!\\n]");
+
+	// Set by the shell rather than by the setup command.
+	private static final List<String> SHELL_VARIABLES = Arrays.asList("_", "PWD", "OLDPWD", "SHLVL");
+
+	private static ModuleEnvironment defaultEnvironment;
+
+	/**
+	 * @return the environments shared by the consumer.
+	 */
+	public static synchronized ModuleEnvironment getDefault() {
+		if (defaultEnvironment==null) {
+			defaultEnvironment = new ModuleEnvironment(Long.getLong("org.dawnsci.commandserver.core.moduleCacheTime", 60*60*1000));
+		}
+		return defaultEnvironment;
+	}
+
+	private final long                     cacheTime;
+	private final Map<String, Environment> environments;
+
+	public ModuleEnvironment(long cacheTime) {
+		this.cacheTime    = cacheTime;
+		this.environments = new HashMap<String, Environment>(7);
+	}
+
+	/**
+	 * Sets the command and environment of the builder to run command in the
+	 * environment of setupCommand.
+	 *
+	 * @param pb
+	 * @param setupCommand e.g. module load xia2
+	 * @param command e.g. xia2 -xinfo automatic.xinfo
+	 * @return false if the environment cannot be made, in which case the builder is not changed.
+	 */
+	public boolean apply(ProcessBuilder pb, String setupCommand, String command) {
+
+		final Map<String, String> env = getEnvironment(setupCommand);
+		if (env==null) return false;
+
+		List<String> args = null;
+		if (!SHELL_SYNTAX.matcher(command).find()) {
+			args = new ArrayList<String>(Arrays.asList(command.trim().split("\\s+")));
+			final String program = findProgram(args.get(0), env.get("PATH"));
+			if (program!=null) {
+				args.set(0, program);
+			} else {
+				args = null; // Let the shell report it
+			}
+		}
+		if (args==null) args = Arrays.asList("bash", "-c", command);
+
+		pb.environment().clear();
+		pb.environment().putAll(env);
+		pb.command(args);
+		return true;
+	}
+
+	/**
+	 * @param setupCommand
+	 * @return the environment after running setupCommand in bash, or null if it failed.
+	 */
+	public Map<String, String> getEnvironment(String setupCommand) {
+
+		final Environment cached;
+		synchronized (environments) {
+			cached = environments.get(setupCommand);
+		}
+		if (cached!=null && cached.isValid()) return cached.env;
+
+		// The same command run twice at once is harmless, and rare.
+		final Environment created = create(setupCommand);
+		if (created!=null && cacheTime>0) {
+			synchronized (environments) {
+				environments.put(setupCommand, created);
+			}
+		}
+		return created!=null ? created.env : null;
+	}
+
+	/**
+	 * Forgets the environments so that the setup commands are run again.
+	 */
+	public void clear() {
+		synchronized (environments) {
+			environments.clear();
+		}
+	}
+
+	private Environment create(String setupCommand) {
+
+		final long start = System.currentTimeMillis();
+		try {
+			final ProcessBuilder pb = new ProcessBuilder("bash", "-c", setupCommand+" 1>&2 && env -0");
+			pb.redirectError(Redirect.to(new File("/dev/null")));
+			final Process process = pb.start();
+			final byte[] output = readAll(process.getInputStream());
+			final int exit = process.waitFor();
+			if (exit!=0) {
+				logger.warn("'"+setupCommand+"' exited with "+exit+", it will be run with each job");
+				return null;
+			}
+
+			final Map<String, String> env = new HashMap<String, String>(89);
+			for (String entry : new String(output, "UTF-8").split("\0")) {
+				final int eq = entry.indexOf('=');
+				if (eq<1) continue;
+				final String name = entry.substring(0, eq);
+				if (SHELL_VARIABLES.contains(name)) continue;
+				env.put(name, entry.substring(eq+1));
+			}
+			logger.debug("Environment of '"+setupCommand+"' made in "+(System.currentTimeMillis()-start)+"ms");
+			return new Environment(Collections.unmodifiableMap(env), start);
+
+		} catch (InterruptedException ne) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (IOException ne) {
+			logger.warn("Cannot run '"+setupCommand+"', it will be run with each job", ne);
+			return null;
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+			final byte[] buf = new byte[8192];
+			int read;
+			while((read = in.read(buf))>-1) bytes.write(buf, 0, read);
+			return bytes.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The JVM looks for a program on its own PATH rather than that of the
+	 * process, so the program is found here.
+	 *
+	 * @param program
+	 * @param path
+	 * @return the absolute path of the program, or null if it is not on the path.
+	 */
+	static String findProgram(String program, String path) {
+		if (program.indexOf('/')>-1) return program;
+		if (path==null) return null;
+		for (String dir : path.split(File.pathSeparator)) {
+			if (dir.length()<1) dir = ".";
+			final File file = new File(dir, program);
+			if (file.isFile() && file.canExecute()) return file.getAbsolutePath();
+		}
+		return null;
+	}
+
+	private class Environment {
+
+		private final Map<String, String> env;
+		private final long                time;
+		private final File[]              moduleFiles;
+		private final long[]              modified;
+
+		Environment(Map<String, String> env, long time) {
+			this.env  = env;
+			this.time = time;
+
+			final String lmfiles = env.get("_LMFILES_");
+			final String[] paths = lmfiles!=null && lmfiles.length()>0 ? lmfiles.split(":") : new String[0];
+			this.moduleFiles = new File[paths.length];
+			this.modified    = new long[paths.length];
+			for (int i = 0; i < paths.length; i++) {
+				moduleFiles[i] = new File(paths[i]);
+				modified[i]    = moduleFiles[i].lastModified();
+			}
+		}
+
+		boolean isValid() {
+			if (System.currentTimeMillis()-time>cacheTime) return false;
+			for (int i = 0; i < moduleFiles.length; i++) {
+				if (moduleFiles[i].lastModified()!=modified[i]) return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the stdout and stderr of child processes into their log files
+ * with a few threads, rather than a thread for each stream.
+ *
+ * The streams of a Process cannot be selected, so each thread goes round
+ * its pipes reading only what is available, which does not block. When
+ * none of them has anything it sleeps, for longer the longer they stay
+ * quiet, up to the poll interval. The files are written through a buffer
+ * which is flushed every flush interval, not on every line.
+ *
+ * The output is not kept in memory, only the line being read, so however
+ * much a process writes the consumer's heap does not grow. The whole of it
+ * is in the file and Pipe.getByteCount() gives how much was read.
+ *
+ * If nothing needs to see the output, start the process with
+ * ProcessBuilder.redirectOutput(Redirect.appendTo(file)) instead so that
+ * the child writes to the file itself.
+ *
+ * System properties:
+ *
+ *   org.dawnsci.commandserver.core.drainThreads       threads, default 2
+ *   org.dawnsci.commandserver.core.drainPollInterval  longest sleep in ms, default 50
+ *   org.dawnsci.commandserver.core.drainFlushInterval ms between flushes, default 1000
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class PipeDrainer {
+
+	private static final Logger logger = LoggerFactory.getLogger(PipeDrainer.class);
+
+	/**
+	 * How long a pipe of a process which has ended is read after it is empty,
+	 * in case something the process started still has it open.
+	 */
+	private static final long CLOSE_WAIT = 2000;
+
+	private static PipeDrainer defaultDrainer;
+
+	/**
+	 * @return the drainer used by this consumer, its threads are started the first time it is used.
+	 */
+	public static synchronized PipeDrainer getDefault() {
+		if (defaultDrainer==null) defaultDrainer = new PipeDrainer(Integer.getInteger("org.dawnsci.commandserver.core.drainThreads", 2),
+				                                                   Long.getLong("org.dawnsci.commandserver.core.drainPollInterval", 50),
+				                                                   Long.getLong("org.dawnsci.commandserver.core.drainFlushInterval", 1000));
+		return defaultDrainer;
+	}
+
+	private final Worker[] workers;
+	private final long     pollInterval;
+	private final long     flushInterval;
+	private int            next;
+
+	/**
+	 * @param threads
+	 * @param pollInterval in ms
+	 * @param flushInterval in ms
+	 */
+	public PipeDrainer(int threads, long pollInterval, long flushInterval) {
+		this.workers       = new Worker[Math.max(1, threads)];
+		this.pollInterval  = pollInterval;
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * Starts reading a stream of a process into a file.
+	 *
+	 * @param process whose stream it is
+	 * @param in the stream e.g. process.getInputStream()
+	 * @param file to which the stream is appended, may be null to discard it
+	 * @param listener given each line, may be null if the lines are not needed
+	 * @return the pipe
+	 * @throws IOException if the file cannot be opened
+	 */
+	public Pipe drain(Process process, InputStream in, File file, ILineListener listener) throws IOException {
+
+		final OutputStream out = file!=null ? new BufferedOutputStream(new FileOutputStream(file, true), 65536) : null;
+		final Pipe pipe = new Pipe(process, in, file, out, listener);
+		synchronized (this) {
+			final int i = next++ % workers.length;
+			if (workers[i]==null) {
+				workers[i] = new Worker();
+				JobThreads.start(workers[i], "Pipe drainer "+i, Thread.NORM_PRIORITY);
+			}
+			workers[i].pipes.add(pipe);
+		}
+		return pipe;
+	}
+
+	/**
+	 * @return the number of pipes being read.
+	 */
+	public synchronized int getPipeCount() {
+		int count = 0;
+		for (Worker worker : workers) if (worker!=null) count+=worker.pipes.size();
+		return count;
+	}
+
+	private final class Worker implements Runnable {
+
+		private final List<Pipe> pipes = new CopyOnWriteArrayList<Pipe>();
+
+		@Override
+		public void run() {
+			final byte[] buffer = new byte[8192];
+			long sleep = 1;
+			while(true) {
+				try {
+					boolean read = false;
+					final long now = System.currentTimeMillis();
+					for (Pipe pipe : pipes) {
+						if (pipe.pump(buffer, now)) read = true;
+						if (pipe.closed) {
+							pipes.remove(pipe);
+						} else if (now-pipe.lastFlush>=flushInterval) {
+							pipe.flush(now);
+						}
+					}
+					if (read) {
+						sleep = 1;
+					} else {
+						Thread.sleep(sleep);
+						sleep = Math.min(sleep*2, pollInterval);
+					}
+				} catch (InterruptedException ne) {
+					logger.info("Pipe drainer interrupted, the output of processes is no longer read");
+					return;
+				} catch (Throwable ne) {
+					logger.error("Problem reading the output of processes", ne);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A stream being read, which is closed when the process has ended and
+	 * everything it wrote has been read.
+	 */
+	public static final class Pipe {
+
+		private final Process               process;
+		private final InputStream           in;
+		private final File                  file;
+		private final OutputStream          out;
+		private final ILineListener         listener;
+		private final LineSplitter          lines;
+		private long                        emptySince = -1;
+		private long                        lastFlush;
+		private volatile long               bytes;
+		private volatile boolean            closed;
+
+		private Pipe(Process process, InputStream in, File file, OutputStream out, ILineListener listener) {
+			this.process  = process;
+			this.in       = in;
+			this.file     = file;
+			this.out      = out;
+			this.listener = listener;
+			this.lines    = listener!=null ? new LineSplitter(file) : null;
+			this.lastFlush = System.currentTimeMillis();
+		}
+
+		/**
+		 * Reads what is available without blocking.
+		 * @return true if anything was read
+		 */
+		private synchronized boolean pump(byte[] buffer, long now) {
+			if (closed) return false;
+			try {
+				boolean read = false;
+				int available;
+				for (int n = 0; n < 8 && (available = in.available())>0; n++) { // At most 64KB so the other pipes are not held up
+					final int len = in.read(buffer, 0, Math.min(available, buffer.length));
+					if (len<0) {
+						close();
+						return read;
+					}
+					write(buffer, len);
+					read = true;
+				}
+				if (read) {
+					emptySince = -1;
+				} else if (!isAlive(process)) {
+					// Nothing left and nothing more to come, unless a child of the process has the pipe.
+					if (emptySince<0) emptySince = now;
+					if (now-emptySince>=CLOSE_WAIT) close();
+				}
+				return read;
+			} catch (IOException ne) {
+				// The stream is closed when the process is destroyed.
+				close();
+				return false;
+			}
+		}
+
+		private void write(byte[] buffer, int len) throws IOException {
+			bytes += len;
+			if (out!=null) out.write(buffer, 0, len);
+			if (lines!=null) lines.write(buffer, len, listener);
+		}
+
+		private synchronized void flush(long now) {
+			lastFlush = now;
+			if (out==null) return;
+			try {
+				out.flush();
+			} catch (IOException ne) {
+				logger.debug("Cannot write to "+file, ne);
+			}
+		}
+
+		/**
+		 * Stops reading the stream, writes what has been read and closes the file.
+		 */
+		public synchronized void close() {
+			if (closed) return;
+			closed = true;
+			if (lines!=null) lines.finish(listener);
+			try {
+				if (out!=null) out.close();
+			} catch (IOException ne) {
+				logger.debug("Cannot close "+file, ne);
+			}
+			try {
+				in.close();
+			} catch (IOException ne) {
+				logger.trace("Cannot close stream of "+file, ne);
+			}
+		}
+
+		/**
+		 * @return the number of bytes read
+		 */
+		public long getByteCount() {
+			return bytes;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+	}
+
+	private static boolean isAlive(Process process) {
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException ne) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads information about processes from /proc on linux.
+ *
+ * A pid is reused by the kernel once its process has exited, so
+ * a process is identified by its pid and its start time, which
+ * is field 22 of /proc/[pid]/stat in clock ticks since boot.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public final class ProcFS {
+
+	private ProcFS() {
+
+	}
+
+	/**
+	 * @return true if /proc can be read on this host.
+	 */
+	public static boolean isAvailable() {
+		return new File("/proc/self/stat").exists();
+	}
+
+	/**
+	 * @param pid
+	 * @return the start time of the process or -1 if there is no process with this pid.
+	 */
+	public static long getStartTime(int pid) {
+		final String[] stat = readStat(pid);
+		if (stat==null || stat.length<20) return -1;
+		try {
+			return Long.parseLong(stat[19]); // Field 22, the first two are taken off by readStat(...)
+		} catch (NumberFormatException ne) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param pid
+	 * @param startTime from getStartTime(...) or -1 to check the pid only.
+	 * @return true if the process with this pid is running and it was started at startTime.
+	 */
+	public static boolean isAlive(int pid, long startTime) {
+		if (pid<=0) return false;
+		final String[] stat = readStat(pid);
+		if (stat==null) return false;
+		if ("Z".equals(stat[0])) return false; // Zombie, it has exited.
+		if (startTime<0) return true;
+		return startTime==getStartTime(pid);
+	}
+
+	/**
+	 * @param pid
+	 * @return the path of the version 2 cgroup of the process, from /proc/[pid]/cgroup, e.g. /user.slice/consumer
+	 * @throws IOException if the process has no version 2 cgroup
+	 */
+	public static String getCgroup(int pid) throws IOException {
+		for (String line : read(new File("/proc/"+pid+"/cgroup")).split("\n")) {
+			if (line.startsWith("0::")) return line.substring(3).trim();
+		}
+		throw new IOException("Process "+pid+" is not in a version 2 cgroup");
+	}
+
+	/**
+	 * @param pid
+	 * @return the fields of /proc/[pid]/stat after the command name, so index 0 is field 3 (state), or null
+	 */
+	static String[] readStat(int pid) {
+		final File stat = new File("/proc/"+pid+"/stat");
+		if (!stat.exists()) return null;
+		try {
+			final String line = read(stat);
+			// The command name is in brackets and may contain spaces or brackets.
+			final int end = line.lastIndexOf(')');
+			if (end<0) return null;
+			return line.substring(end+1).trim().split("\\s+");
+		} catch (IOException ne) {
+			return null; // Exited while we were reading it.
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			final StringBuilder buf = new StringBuilder();
+			final byte[] bytes = new byte[512];
+			int len;
+			while((len = in.read(bytes))>-1) buf.append(new String(bytes, 0, len, "UTF-8"));
+			return buf.toString();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -10,17 +10,25 @@ package org.dawnsci.commandserver.core.process;
 
 import java.net.URI;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.dawnsci.commandserver.core.ActiveMQServiceHolder;
+import org.dawnsci.commandserver.core.EmbeddedBroker;
 import org.dawnsci.commandserver.core.application.IConsumerExtension;
+import org.dawnsci.commandserver.core.metrics.Gauge;
+import org.dawnsci.commandserver.core.metrics.MetricsRegistry;
+import org.dawnsci.commandserver.core.metrics.MetricsServer;
 import org.eclipse.scanning.api.event.EventException;
 import org.eclipse.scanning.api.event.IEventService;
 import org.eclipse.scanning.api.event.core.IConsumer;
 import org.eclipse.scanning.api.event.core.IConsumerProcess;
 import org.eclipse.scanning.api.event.core.IProcessCreator;
 import org.eclipse.scanning.api.event.core.IPublisher;
+import org.eclipse.scanning.api.event.status.Status;
 import org.eclipse.scanning.api.event.status.StatusBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This consumer monitors a queue and starts runs based
@@ -36,6 +44,8 @@ import org.eclipse.scanning.api.event.status.StatusBean;
  */
 public abstract class ProcessConsumer<T extends StatusBean> implements IConsumerExtension {
 
+	private static final Logger logger = LoggerFactory.getLogger(ProcessConsumer.class);
+
 	private String submitQName, statusTName, statusQName;
 	protected Map<String, String> config;
 
@@ -44,6 +54,15 @@ public abstract class ProcessConsumer<T extends StatusBean> implements IConsumer
 	
 	private IConsumer<T> consumer;
 	protected String             consumerVersion;
+	private ProcessPool          pool;
+	private BroadcastDispatcher  dispatcher;
+	private AdmissionController  admission;
+	private JobJournal           journal;
+	private CgroupLauncher       cgroups;
+	private ProcessLauncher      launcher;
+	private IPublisher<T>        resumePublisher;
+	private MetricsServer        metricsServer;
+	private boolean              embedded; // This consumer uses the embedded broker
 	
 	public ProcessConsumer() {
 		this.consumerVersion = "1.0";
@@ -52,10 +71,27 @@ public abstract class ProcessConsumer<T extends StatusBean> implements IConsumer
 	/**
 	 * Method which configures the submission consumer for the queues and topics required.
 	 * 
-     * uri       activemq URI, e.g. tcp://sci-serv5.diamond.ac.uk:61616 
+     * uri       activemq URI, e.g. tcp://sci-serv5.diamond.ac.uk:61616 or vm://localhost?broker.persistent=false
+     *           to run a broker in this JVM (see EmbeddedBroker)
      * submit    queue to submit e.g. scisoft.xia2.SUBMISSION_QUEUE 
      * topic     topic to notify e.g. scisoft.xia2.STATUS_TOPIC 
      * status    queue for status e.g. scisoft.xia2.STATUS_QUEUE 
+     * 
+     * Optional:
+     * maxConcurrent  maximum number of jobs to run at once, e.g. 4
+     * queueLength    maximum number of jobs waiting for a free worker
+     * threadPriority priority of the threads running the jobs
+     * broadcastWindow time in ms within which percent complete updates are coalesced
+     * virtualThreads  true to run jobs on virtual threads (Java 21+), see JobThreads
+     * launchServer    true to start the processes of jobs from a small JVM, see ProcessLauncher
+     * admissionControl true to start jobs only when the host has the cores and memory they need,
+     *                  see AdmissionController for maxCores, maxMemory and scratchDir
+     * journal         path to a local file recording running jobs so that they are resumed
+     *                 if the consumer is restarted, see JobJournal
+     * cgroup          delegated cgroup (version 2) in which each job is run in a cgroup of its own,
+     *                 see CgroupLauncher for cgroupCpuWeight, cgroupCpuLimit and cgroupMemoryHeadroom
+     * brokerConnector if the uri is vm://, uri on which other clients may connect to the embedded broker
+     * metricsport     port on which to serve metrics in the Prometheus format, see MetricsServer
 	 * 
 	 * @param configuration
 	 * @throws Exception
@@ -67,6 +103,55 @@ public abstract class ProcessConsumer<T extends StatusBean> implements IConsumer
 		this.submitQName = config.get("submit");
 		this.statusTName = config.get("topic");
 		this.statusQName = config.get("status");
+		this.launcher    = ProcessLauncher.create(config);
+		this.pool        = new ProcessPool(getClass().getSimpleName(), config);
+		this.dispatcher  = new BroadcastDispatcher(getClass().getSimpleName(), config);
+		this.admission   = AdmissionController.create(config);
+		this.journal     = JobJournal.create(config);
+		this.cgroups     = CgroupLauncher.create(config);
+		registerGauges();
+	}
+	
+	private static final String[] GAUGES = {"commandserver_pool_active_jobs", "commandserver_pool_queued_jobs",
+		                                    "commandserver_admission_running_jobs", "commandserver_admission_waiting_jobs",
+		                                    "commandserver_admission_used_cores", "commandserver_admission_used_memory_bytes"};
+
+	private void registerGauges() {
+		
+		final MetricsRegistry metrics = MetricsRegistry.getDefault();
+		final String          name    = getClass().getSimpleName();
+		metrics.gauge(GAUGES[0], "Jobs running in the pool of a consumer", new Gauge() {
+			public double getValue() {
+				return pool.getActiveCount();
+			}
+		}, "consumer", name);
+		metrics.gauge(GAUGES[1], "Jobs waiting for a worker in the pool of a consumer", new Gauge() {
+			public double getValue() {
+				return pool.getQueuedCount();
+			}
+		}, "consumer", name);
+		
+		if (admission==null) return;
+		metrics.gauge(GAUGES[2], "Jobs holding resources", new Gauge() {
+			public double getValue() {
+				return admission.getRunningCount();
+			}
+		}, "consumer", name);
+		metrics.gauge(GAUGES[3], "Jobs waiting for resources", new Gauge() {
+			public double getValue() {
+				return admission.getWaitingCount();
+			}
+		}, "consumer", name);
+		metrics.gauge(GAUGES[4], "Cores held by running jobs", new Gauge() {
+			public double getValue() {
+				return admission.getUsed().getCores();
+			}
+		}, "consumer", name);
+		metrics.gauge(GAUGES[5], "Memory held by running jobs", new Gauge() {
+			public double getValue() {
+				return admission.getUsed().getMemory();
+			}
+		}, "consumer", name);
 	}
 
 	/**
@@ -75,6 +160,14 @@ public abstract class ProcessConsumer<T extends StatusBean> implements IConsumer
 	 */
 	public void start() throws Exception {
 		
+		if (config.containsKey("metricsport")) {
+			this.metricsServer = new MetricsServer();
+			metricsServer.setPort(Integer.parseInt(config.get("metricsport")));
+			metricsServer.start();
+		}
+		
+		this.embedded = EmbeddedBroker.startIfEmbedded(uri, config.get("brokerConnector"));
+		
 		IEventService service = ActiveMQServiceHolder.getEventService();
 		this.consumer = service.createConsumer(uri, submitQName, statusQName, statusTName, IEventService.HEARTBEAT_TOPIC, IEventService.KILL_TOPIC);
 		consumer.setRunner(new IProcessCreator<T>() {
@@ -82,7 +175,9 @@ public abstract class ProcessConsumer<T extends StatusBean> implements IConsumer
 			public IConsumerProcess<T> createProcess(T bean, IPublisher<T> publisher) throws EventException {
 				try {
 					ProgressableProcess<T> process = ProcessConsumer.this.createProcess(bean, publisher);
-					process.setArguments(config);
+					MetricsRegistry.getDefault().counter("commandserver_jobs_consumed_total", "Jobs taken from the submission queue", "consumer", ProcessConsumer.this.getClass().getSimpleName()).inc();
+					if (process==null) return null;
+					configure(process, publisher);
 					return process;
 				} catch (Exception ne) {
 					throw new EventException("Problem creating process!", ne);
@@ -92,10 +187,84 @@ public abstract class ProcessConsumer<T extends StatusBean> implements IConsumer
 		consumer.setName(getName());
 		consumer.cleanQueue(statusQName);
 		
+		if (journal!=null) resume(service);
+		
 		// This is the blocker
 		consumer.run();
 	}
 	
+	private void configure(ProgressableProcess<T> process, IPublisher<T> publisher) {
+		process.setArguments(config);
+		process.setPool(pool);
+		process.setBroadcastChannel(dispatcher.createChannel(publisher));
+		process.setAdmissionController(admission);
+		process.setJournal(journal);
+		process.setCgroupLauncher(cgroups);
+		process.setProcessLauncher(launcher);
+	}
+	
+	/**
+	 * Reads the jobs which were running when the consumer last stopped from the
+	 * journal. Jobs whose process is still alive are re-attached, the others are
+	 * marked as failed so that they are not left running for ever.
+	 * 
+	 * @param service
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	private void resume(IEventService service) throws Exception {
+		
+		final List<JobJournal.Entry> entries = journal.open(getBeanClass());
+		if (entries.isEmpty()) return;
+		
+		this.resumePublisher = service.createPublisher(uri, statusTName);
+		resumePublisher.setQueueName(statusQName);
+		
+		for (JobJournal.Entry entry : entries) {
+			
+			final T bean = (T)entry.getBean();
+			if (bean==null) continue;
+			
+			try {
+				if (ProcFS.isAlive(entry.getPid(), entry.getPidStart())) {
+					final ProgressableProcess<T> process = reattachProcess(bean, resumePublisher, entry.getPid());
+					if (process!=null) {
+						logger.info("Re-attached to job "+bean.getName()+" running as pid "+entry.getPid()+" in "+entry.getRunDirectory());
+						configure(process, resumePublisher);
+						process.start();
+						continue;
+					}
+				}
+			} catch (Exception ne) {
+				logger.error("Cannot re-attach to job "+bean.getName(), ne);
+			}
+			
+			logger.info("Job "+bean.getName()+" was running when the consumer stopped and cannot be resumed.");
+			bean.setPreviousStatus(bean.getStatus());
+			bean.setStatus(Status.FAILED);
+			bean.setMessage("The consumer was restarted and the job could not be resumed.");
+			journal.record(bean, entry.getPid(), entry.getPidStart());
+			resumePublisher.broadcast(bean);
+		}
+	}
+	
+	/**
+	 * Override to carry on monitoring a job which was running when the consumer
+	 * was restarted. The process is still running as pid. The returned process
+	 * should not start anything new, only watch the job until pid has ended.
+	 * 
+	 * Used if the consumer has a -journal.
+	 * 
+	 * @param bean as it was last recorded in the journal
+	 * @param publisher
+	 * @param pid of the process running the job
+	 * @return process or null if the job cannot be re-attached, it is then marked as failed.
+	 * @throws Exception
+	 */
+	protected ProgressableProcess<T> reattachProcess(T bean, IPublisher<T> publisher, int pid) throws Exception {
+		return null;
+	}
+
 	/**
 	 * You may override this method to stop the consumer cleanly. Please
 	 * call super.stop() if you do.
@@ -104,6 +273,16 @@ public abstract class ProcessConsumer<T extends StatusBean> implements IConsumer
 	public void stop() throws Exception {
 		consumer.stop();
 		consumer.disconnect();
+		if (pool!=null) pool.shutdown();
+		if (dispatcher!=null) dispatcher.shutdown();
+		if (resumePublisher!=null) resumePublisher.disconnect();
+		if (journal!=null) journal.close();
+		if (metricsServer!=null) metricsServer.stop();
+		for (String gauge : GAUGES) MetricsRegistry.getDefault().remove(gauge, "consumer", getClass().getSimpleName());
+		if (embedded) {
+			embedded = false;
+			EmbeddedBroker.release();
+		}
 	}
 
 	/**
@@ -193,6 +372,22 @@ public abstract class ProcessConsumer<T extends StatusBean> implements IConsumer
 		this.uri = uri;
 	}
 
+	/**
+	 * 
+	 * @return the pool running the jobs of this consumer, may be null before init.
+	 */
+	public ProcessPool getPool() {
+		return pool;
+	}
+
+	/**
+	 *
+	 * @return the admission controller of this consumer, null if admission control is off.
+	 */
+	public AdmissionController getAdmissionController() {
+		return admission;
+	}
+
 	public String getConsumerVersion() {
 		return consumerVersion;
 	}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Platform;
+
+/**
+ * Starts external processes in a session of their own and terminates
+ * them with all of the processes which they started.
+ *
+ * On linux a job is started with setsid so that its pid is also its
+ * session and process group id. Everything it starts, for instance the
+ * XDS processes started by xia2, stays in the session even if its parent
+ * exits and it is re-parented to init. To terminate the job, the session
+ * and any descendants found from /proc are sent SIGTERM and, if they have
+ * not exited after a grace period, SIGKILL. No shells are forked to do this.
+ *
+ * The grace period is set with org.dawnsci.commandserver.core.killGracePeriod
+ * in ms, default 5000.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public final class ProcessControl {
+
+	private static final Logger logger = LoggerFactory.getLogger(ProcessControl.class);
+
+	private static final int SIGKILL = 9;
+	private static final int SIGTERM = 15;
+
+	private static final String[] SETSID_PATHS = {"/usr/bin/setsid", "/bin/setsid"};
+	private static final String   SETSID       = findSetsid();
+
+	private ProcessControl() {
+
+	}
+
+	private static String findSetsid() {
+		if (!Platform.isLinux()) return null;
+		for (String path : SETSID_PATHS) {
+			if (new File(path).canExecute()) return path;
+		}
+		return null;
+	}
+
+	/**
+	 * Changes the command of the builder so that the process is started in a
+	 * new session, if this is possible on this host. Call before start().
+	 *
+	 * setsid only forks if it is a process group leader, which a child of the
+	 * JVM is not, so the pid of the process started is still that of the job.
+	 *
+	 * @param pb
+	 * @return true if the process will have its own session.
+	 */
+	public static boolean setSession(ProcessBuilder pb) {
+		if (SETSID==null) return false;
+		final List<String> command = pb.command();
+		if (command.isEmpty() || SETSID.equals(command.get(0))) return true;
+		final List<String> withSession = new ArrayList<String>(command.size()+1);
+		withSession.add(SETSID);
+		withSession.addAll(command);
+		pb.command(withSession);
+		return true;
+	}
+
+	/**
+	 * @param p
+	 * @return the pid of the process
+	 * @throws Exception if the pid cannot be read on this platform.
+	 */
+	public static int getPid(Process p) throws Exception {
+
+		if (p instanceof RemoteProcess) return ((RemoteProcess)p).getPid();
+
+		// Java 9 and later, which no longer allow the field to be read.
+		try {
+			final Method pid = Process.class.getMethod("pid");
+			return ((Long)pid.invoke(p)).intValue();
+		} catch (NoSuchMethodException ignored) {
+			// Java 8 or earlier
+		}
+
+		if (Platform.isWindows()) {
+			Field f = p.getClass().getDeclaredField("handle");
+			f.setAccessible(true);
+			return Kernel32.INSTANCE.GetProcessId((Long) f.get(p));
+
+		} else if (Platform.isLinux() || Platform.isMac()) {
+			Field f = p.getClass().getDeclaredField("pid");
+			f.setAccessible(true);
+			return (Integer) f.get(p);
+
+		} else {
+			throw new Exception("Cannot currently process pid for "+System.getProperty("os.name"));
+		}
+	}
+
+	/**
+	 * @param pid
+	 * @return the processes in the session of pid and all of the descendants of pid, including pid.
+	 */
+	public static Set<Integer> getTree(int pid) {
+
+		final Set<Integer> tree = new HashSet<Integer>(7);
+		tree.add(pid);
+		if (!ProcFS.isAvailable()) return tree;
+
+		final Map<Integer, List<Integer>> children = new HashMap<Integer, List<Integer>>(256);
+		final File[] procs = new File("/proc").listFiles();
+		if (procs==null) return tree;
+		for (File proc : procs) {
+			final int child = parsePid(proc.getName());
+			if (child<0) continue;
+			final String[] stat = ProcFS.readStat(child);
+			if (stat==null || stat.length<4) continue;
+			try {
+				final int ppid    = Integer.parseInt(stat[1]);
+				final int session = Integer.parseInt(stat[3]);
+				if (session==pid) tree.add(child);
+				List<Integer> siblings = children.get(ppid);
+				if (siblings==null) {
+					siblings = new ArrayList<Integer>(4);
+					children.put(ppid, siblings);
+				}
+				siblings.add(child);
+			} catch (NumberFormatException ne) {
+				continue;
+			}
+		}
+
+		// Descendants which have left the session, e.g. with their own setsid.
+		final LinkedList<Integer> todo = new LinkedList<Integer>(tree);
+		while(!todo.isEmpty()) {
+			final List<Integer> kids = children.get(todo.removeFirst());
+			if (kids==null) continue;
+			for (Integer kid : kids) if (tree.add(kid)) todo.add(kid);
+		}
+		return tree;
+	}
+
+	/**
+	 * Terminates the process and everything it started, waiting for the
+	 * grace period set by org.dawnsci.commandserver.core.killGracePeriod.
+	 *
+	 * @param pid
+	 * @return true if all of the processes have exited.
+	 */
+	public static boolean terminate(int pid) {
+		return terminate(pid, Long.getLong("org.dawnsci.commandserver.core.killGracePeriod", 5000));
+	}
+
+	/**
+	 * Sends SIGTERM to the process and everything it started then SIGKILL
+	 * to whatever has not exited after the grace period.
+	 *
+	 * @param pid
+	 * @param grace time in ms to wait after SIGTERM, 0 to send SIGKILL straight away.
+	 * @return true if all of the processes have exited.
+	 */
+	public static boolean terminate(int pid, long grace) {
+
+		if (pid<=0) return true;
+		if (Platform.isWindows()) throw new IllegalArgumentException("Processes can only be terminated by pid on linux and mac!");
+
+		final Set<Integer> tree = getTree(pid);
+		if (grace>0) {
+			signal(pid, tree, SIGTERM);
+			final long end = System.currentTimeMillis()+grace;
+			while(System.currentTimeMillis()<end) {
+				if (ProcFS.isAvailable() && !isAnyAlive(tree)) return true;
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ne) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+
+		// Anything started during the grace period as well.
+		tree.addAll(getTree(pid));
+		signal(pid, tree, SIGKILL);
+		for (int i = 0; i < 20 && isAnyAlive(tree); i++) {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException ne) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		final boolean alive = isAnyAlive(tree);
+		if (alive) logger.warn("Processes of "+pid+" are still alive after SIGKILL");
+		return !alive;
+	}
+
+	/**
+	 * Terminates the process and everything it started. If the pid cannot be
+	 * read the process alone is destroyed.
+	 *
+	 * @param p
+	 * @return true if all of the processes have exited.
+	 */
+	public static boolean terminate(Process p) {
+		try {
+			if (!Platform.isWindows()) return terminate(getPid(p));
+		} catch (Exception ne) {
+			logger.warn("Cannot read the pid of "+p+", only it will be terminated.", ne);
+		}
+		p.destroy();
+		return true;
+	}
+
+	private static void signal(int pid, Set<Integer> tree, int signal) {
+		// The process group of a job started with setsid, there is
+		// no such group if it was not and the signal is not sent.
+		POSIX.INSTANCE.kill(-pid, signal);
+		for (Integer proc : tree) POSIX.INSTANCE.kill(proc, signal);
+	}
+
+	private static boolean isAnyAlive(Set<Integer> tree) {
+		if (!ProcFS.isAvailable()) return false;
+		for (Integer proc : tree) if (ProcFS.isAlive(proc, -1)) return true;
+		return false;
+	}
+
+	private static int parsePid(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (!Character.isDigit(name.charAt(i))) return -1;
+		}
+		try {
+			return Integer.parseInt(name);
+		} catch (NumberFormatException ne) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.CodeSource;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Platform;
+
+/**
+ * Starts the processes of jobs, either directly or from a LaunchServer.
+ *
+ * Each fork of the consumer's JVM copies its page tables, which takes
+ * longer and uses more memory the larger the consumer's heap is. With the
+ * launch server switched on, the consumer starts one small JVM when it is
+ * first needed and that JVM starts the processes of the jobs. The processes
+ * returned are RemoteProcesses and are used as before.
+ *
+ * Only processes whose output is redirected to files, or discarded, are
+ * started by the server. The others, and all processes if the server
+ * cannot be reached or fails to reply, are started directly.
+ *
+ * The launch server is switched on for the jobs of a consumer with the
+ * consumer argument -launchServer true, or for consumers without the
+ * argument with the system property org.dawnsci.commandserver.core.launchServer=true.
+ * One server is shared by the consumers of the JVM. Its class path is
+ * that of this bundle, or org.dawnsci.commandserver.core.launchServerClasspath
+ * if that is set.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public final class ProcessLauncher {
+
+	private static final Logger logger = LoggerFactory.getLogger(ProcessLauncher.class);
+
+	private static final ProcessLauncher DEFAULT = new ProcessLauncher(Boolean.getBoolean("org.dawnsci.commandserver.core.launchServer"));
+
+	private static Process server;
+	private static int     port;
+	private static String  token;
+
+	/**
+	 * @return the launcher of the system property, used by processes which are not given one.
+	 */
+	public static ProcessLauncher getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @param config consumer arguments, may be null
+	 * @return a launcher using the server if the arguments contain -launchServer true,
+	 * or the default launcher if the argument is not there.
+	 */
+	public static ProcessLauncher create(Map<String, String> config) {
+		if (config!=null && config.get("launchServer")!=null) {
+			return new ProcessLauncher(Boolean.parseBoolean(config.get("launchServer").trim()));
+		}
+		return DEFAULT;
+	}
+
+	private final boolean useServer;
+
+	/**
+	 * @param useServer true to start the processes which can be by the launch server.
+	 */
+	public ProcessLauncher(boolean useServer) {
+		this.useServer = useServer;
+	}
+
+	/**
+	 * @return true if processes which can be are started by the launch server.
+	 */
+	public boolean isUseServer() {
+		return useServer && !Platform.isWindows();
+	}
+
+	/**
+	 * Starts the process of the builder, like pb.start()
+	 *
+	 * @param pb
+	 * @return the process
+	 * @throws IOException if the process cannot be started
+	 */
+	public Process start(ProcessBuilder pb) throws IOException {
+
+		if (!isUseServer() || !isRemote(pb)) return pb.start();
+
+		final Socket socket;
+		try {
+			socket = connect();
+		} catch (IOException ne) {
+			logger.warn("Cannot reach the launch server, "+pb.command()+" is started directly", ne);
+			return pb.start();
+		}
+
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			final DataInputStream  in  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			writeRequest(out, pb);
+
+			final int pid = in.readInt();
+			if (pid>=0) return new RemoteProcess(socket, in, out, pid);
+
+			// The local start fails too and throws the error of the program.
+			logger.warn("The launch server cannot run "+pb.command()+": "+LaunchServer.readString(in));
+
+		} catch (IOException ne) {
+			logger.warn("The launch server failed to start "+pb.command()+", it is started directly", ne);
+		} catch (RuntimeException ne) {
+			logger.warn("The launch server failed to start "+pb.command()+", it is started directly", ne);
+		}
+		close(socket);
+		return pb.start();
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+			// Nothing more to do with it
+		}
+	}
+
+	/**
+	 * @param pb
+	 * @return true if the server can start the process of this builder, so
+	 * that the process does not need pipes to the consumer.
+	 */
+	private static boolean isRemote(ProcessBuilder pb) {
+		final Redirect.Type in = pb.redirectInput().type();
+		if (in!=Redirect.Type.PIPE && in!=Redirect.Type.READ) return false;
+		if (!isFile(pb.redirectOutput())) return false;
+		return pb.redirectErrorStream() || isFile(pb.redirectError());
+	}
+
+	private static boolean isFile(Redirect redirect) {
+		return redirect.type()==Redirect.Type.WRITE || redirect.type()==Redirect.Type.APPEND;
+	}
+
+	private static void writeRequest(DataOutputStream out, ProcessBuilder pb) throws IOException {
+
+		LaunchServer.writeString(out, token);
+		LaunchServer.writeString(out, pb.directory()!=null ? pb.directory().getAbsolutePath() : "");
+
+		final Map<String, String> env = pb.environment();
+		out.writeInt(env.size());
+		for (Map.Entry<String, String> entry : env.entrySet()) {
+			LaunchServer.writeString(out, entry.getKey());
+			LaunchServer.writeString(out, entry.getValue());
+		}
+
+		final List<String> command = pb.command();
+		out.writeInt(command.size());
+		for (String arg : command) LaunchServer.writeString(out, arg);
+
+		// The input of the process is /dev/null unless it is read from a file.
+		writeRedirect(out, pb.redirectInput());
+		writeRedirect(out, pb.redirectOutput());
+		writeRedirect(out, pb.redirectError());
+		out.writeBoolean(pb.redirectErrorStream());
+		out.flush();
+	}
+
+	private static void writeRedirect(DataOutputStream out, Redirect redirect) throws IOException {
+		switch(redirect.type()) {
+		case READ:
+			LaunchServer.writeString(out, LaunchServer.READ);
+			break;
+		case WRITE:
+			LaunchServer.writeString(out, LaunchServer.WRITE);
+			break;
+		case APPEND:
+			LaunchServer.writeString(out, LaunchServer.APPEND);
+			break;
+		default:
+			LaunchServer.writeString(out, LaunchServer.DISCARD);
+			break;
+		}
+		LaunchServer.writeString(out, redirect.file()!=null ? redirect.file().getAbsolutePath() : "");
+	}
+
+	private static synchronized Socket connect() throws IOException {
+		if (server==null || !isAlive(server)) startServer();
+		return new Socket(InetAddress.getLoopbackAddress(), port);
+	}
+
+	private static void startServer() throws IOException {
+
+		final String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+		final ProcessBuilder pb = new ProcessBuilder(java, "-Xmx32m", "-XX:+UseSerialGC", "-cp", getClasspath(), LaunchServer.class.getName());
+		pb.redirectError(Redirect.INHERIT);
+
+		final String  secret  = new BigInteger(130, new SecureRandom()).toString(32);
+		final Process started = pb.start(); // The only fork of the consumer
+		try {
+			// stdin is kept open, the server exits when it is closed.
+			final OutputStream stdin = started.getOutputStream();
+			stdin.write((secret+"\n").getBytes("UTF-8"));
+			stdin.flush();
+
+			final BufferedReader stdout = new BufferedReader(new InputStreamReader(started.getInputStream(), "UTF-8"));
+			final String line = stdout.readLine();
+			if (line==null) throw new IOException("The launch server ended before it started, see the consumer's error output");
+			port  = Integer.parseInt(line.trim());
+			token = secret;
+			server = started;
+			logger.info("Started launch server "+ProcessControl.getPid(started)+" on port "+port);
+
+		} catch (IOException ne) {
+			started.destroy();
+			throw ne;
+		} catch (Exception ne) {
+			started.destroy();
+			throw new IOException("Cannot start the launch server", ne);
+		}
+	}
+
+	private static String getClasspath() throws IOException {
+
+		final String cp = System.getProperty("org.dawnsci.commandserver.core.launchServerClasspath");
+		if (cp!=null) return cp;
+
+		final CodeSource source = LaunchServer.class.getProtectionDomain().getCodeSource();
+		if (source==null || source.getLocation()==null) throw new IOException("Cannot find the classes of the launch server, set org.dawnsci.commandserver.core.launchServerClasspath");
+		final File location;
+		try {
+			location = new File(source.getLocation().toURI());
+		} catch (Exception ne) {
+			throw new IOException("Cannot find the classes of the launch server in "+source.getLocation(), ne);
+		}
+
+		// A bundle which is a directory, e.g. when run from the workspace, has its classes in bin
+		final File bin = new File(location, "bin");
+		final String name = LaunchServer.class.getName().replace('.', '/')+".class";
+		if (!new File(location, name).exists() && new File(bin, name).exists()) return bin.getAbsolutePath();
+		return location.getAbsolutePath();
+	}
+
+	private static boolean isAlive(Process process) {
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException running) {
+			return true;
+		}
+	}
+}
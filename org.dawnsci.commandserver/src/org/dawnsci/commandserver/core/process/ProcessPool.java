@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of worker threads which run the non-blocking
+ * ProgressableProcesses of a single consumer.
+ *
+ * The pool is configured from the consumer arguments:
+ *
+ * -maxConcurrent  maximum number of jobs which may run at the same time, e.g. 4
+ *                 (if not set the number of jobs is not limited)
+ * -queueLength    number of jobs which may wait for a free worker, e.g. 16
+ *                 (if not set jobs wait without limit)
+ * -threadPriority priority of the worker threads, default is Thread.MAX_PRIORITY
+ * -virtualThreads true to run the jobs on virtual threads, see JobThreads
+ *
+ * When the pool and its queue are full, submit blocks the calling thread. As
+ * the caller is normally the consumer, further jobs then stay in the
+ * submission queue until a worker is free.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class ProcessPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(ProcessPool.class);
+
+	private final ThreadPoolExecutor executor;
+	private final int                maxConcurrent;
+
+	/**
+	 * Creates a pool from the consumer arguments.
+	 *
+	 * @param name used for the worker thread names
+	 * @param config
+	 */
+	public ProcessPool(String name, Map<String, String> config) {
+		this(name,
+			 getInt(config, "maxConcurrent",  -1),
+			 getInt(config, "queueLength",    -1),
+			 getInt(config, "threadPriority", Thread.MAX_PRIORITY),
+			 JobThreads.isVirtual(config));
+	}
+
+	/**
+	 *
+	 * @param name used for the worker thread names
+	 * @param maxConcurrent the maximum number of running jobs or <=0 for no limit
+	 * @param queueLength the maximum number of waiting jobs or <0 for no limit
+	 * @param priority the priority of the worker threads
+	 */
+	public ProcessPool(String name, int maxConcurrent, int queueLength, int priority) {
+		this(name, maxConcurrent, queueLength, priority, JobThreads.isVirtual());
+	}
+
+	/**
+	 *
+	 * @param name used for the worker thread names
+	 * @param maxConcurrent the maximum number of running jobs or <=0 for no limit
+	 * @param queueLength the maximum number of waiting jobs or <0 for no limit
+	 * @param priority the priority of the worker threads
+	 * @param virtual true to run the jobs on virtual threads, if the JVM supports them
+	 */
+	public ProcessPool(String name, int maxConcurrent, int queueLength, int priority, boolean virtual) {
+
+		this.maxConcurrent = maxConcurrent;
+
+		final BlockingQueue<Runnable> queue;
+		final int core, max;
+		if (maxConcurrent<=0) {
+			// Same as before there was a pool, a thread for every job.
+			core  = 0;
+			max   = Integer.MAX_VALUE;
+			queue = new SynchronousQueue<Runnable>();
+		} else {
+			core  = maxConcurrent;
+			max   = maxConcurrent;
+			queue = queueLength>0 ? new ArrayBlockingQueue<Runnable>(queueLength) : new LinkedBlockingQueue<Runnable>();
+		}
+
+		this.executor = new ThreadPoolExecutor(core, max, 60L, TimeUnit.SECONDS, queue,
+				                               JobThreads.createFactory(name+" worker", priority, virtual),
+				                               new BlockWhenFull());
+
+		logger.info("Created process pool for '"+name+"' with maxConcurrent="+(maxConcurrent>0?maxConcurrent:"unlimited")
+				   +", queueLength="+(queueLength>0?queueLength:"unlimited"));
+	}
+
+	/**
+	 * Runs the process on a worker thread. Blocks if the
+	 * pool and its queue are full.
+	 *
+	 * @param process
+	 */
+	public void submit(Runnable process) {
+		executor.execute(process);
+	}
+
+	/**
+	 * @return the number of jobs being run at the moment.
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * @return the number of jobs waiting for a free worker.
+	 */
+	public int getQueuedCount() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return the maximum number of jobs which may run at once or <=0 if not limited.
+	 */
+	public int getMaximumConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * @return the total number of jobs which have finished running in this pool.
+	 */
+	public long getCompletedCount() {
+		return executor.getCompletedTaskCount();
+	}
+
+	/**
+	 * Stops accepting new jobs. Running jobs are left to finish.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	/**
+	 * Puts the job in the queue, waiting for space if necessary.
+	 */
+	private static class BlockWhenFull implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) throw new RejectedExecutionException("The process pool has been shutdown!");
+			try {
+				executor.getQueue().put(r);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted waiting for a free worker!", e);
+			}
+		}
+	}
+
+	private static int getInt(Map<String, String> config, String key, int defaultValue) {
+		if (config==null || config.get(key)==null) return defaultValue;
+		return Integer.parseInt(config.get(key).trim());
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.util.Properties;
+
+/**
+ * The resources of the host which a job needs while it runs,
+ * used by the AdmissionController to decide when the job may start.
+ *
+ * Memory and scratch space are in bytes.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public final class ProcessResources {
+
+	/**
+	 * Used for jobs which do not say what they need.
+	 */
+	public static final ProcessResources DEFAULT = new ProcessResources(1, 0, 0);
+
+	private final int  cores;
+	private final long memory;
+	private final long scratch;
+
+	public ProcessResources(int cores, long memory, long scratch) {
+		this.cores   = Math.max(0, cores);
+		this.memory  = Math.max(0, memory);
+		this.scratch = Math.max(0, scratch);
+	}
+
+	/**
+	 * Reads the properties 'cores', 'memory' and 'scratch' which may be set on the
+	 * bean by the client, e.g. memory=4g. Any which are not set are taken from
+	 * the defaults.
+	 *
+	 * @param props may be null
+	 * @param defaults
+	 * @return resources
+	 */
+	public static ProcessResources fromProperties(Properties props, ProcessResources defaults) {
+		if (props==null) return defaults;
+		int  cores   = defaults.cores;
+		long memory  = defaults.memory;
+		long scratch = defaults.scratch;
+		if (props.getProperty("cores")!=null)   cores   = Integer.parseInt(props.getProperty("cores").trim());
+		if (props.getProperty("memory")!=null)  memory  = parseMemory(props.getProperty("memory"));
+		if (props.getProperty("scratch")!=null) scratch = parseMemory(props.getProperty("scratch"));
+		return new ProcessResources(cores, memory, scratch);
+	}
+
+	/**
+	 * Parses a size in the form used by -Xmx, e.g. 512m, 4G, 1024k or 1048576
+	 *
+	 * @param size
+	 * @return the size in bytes or 0 if size is null or empty
+	 * @throws NumberFormatException if the size cannot be read
+	 */
+	public static long parseMemory(String size) {
+		if (size==null) return 0;
+		size = size.trim();
+		if (size.length()<1) return 0;
+
+		final char unit = Character.toLowerCase(size.charAt(size.length()-1));
+		long multiplier = 1;
+		switch(unit) {
+		case 'k' : multiplier = 1L<<10; break;
+		case 'm' : multiplier = 1L<<20; break;
+		case 'g' : multiplier = 1L<<30; break;
+		case 't' : multiplier = 1L<<40; break;
+		}
+		if (multiplier>1) size = size.substring(0, size.length()-1).trim();
+		return Long.parseLong(size)*multiplier;
+	}
+
+	/**
+	 * @return the cores needed.
+	 */
+	public int getCores() {
+		return cores;
+	}
+
+	/**
+	 * @return the memory needed in bytes.
+	 */
+	public long getMemory() {
+		return memory;
+	}
+
+	/**
+	 * @return the scratch disk space needed in bytes.
+	 */
+	public long getScratch() {
+		return scratch;
+	}
+
+	/**
+	 * @param max
+	 * @return these resources, reduced where they are larger than max.
+	 */
+	public ProcessResources clamp(ProcessResources max) {
+		if (cores<=max.cores && memory<=max.memory && scratch<=max.scratch) return this;
+		return new ProcessResources(Math.min(cores, max.cores), Math.min(memory, max.memory), Math.min(scratch, max.scratch));
+	}
+
+	@Override
+	public String toString() {
+		return "[cores="+cores+", memory="+(memory>>20)+"MB, scratch="+(scratch>>20)+"MB]";
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + cores;
+		result = prime * result + (int) (memory ^ (memory >>> 32));
+		result = prime * result + (int) (scratch ^ (scratch >>> 32));
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		ProcessResources other = (ProcessResources) obj;
+		if (cores != other.cores)
+			return false;
+		if (memory != other.memory)
+			return false;
+		if (scratch != other.scratch)
+			return false;
+		return true;
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.util.BitSet;
+
+/**
+ * The percent complete of a progress rule, for instance
+ *
+ *   distinct($1)/sweeps*50
+ *
+ * Numbers, + - * / and brackets may be used with:
+ *
+ *   $n           group n of the line, which must be a number
+ *   count        the number of lines which the rule has matched
+ *   distinct($n) the number of different values of group n which the rule has matched
+ *   name         a variable which the process has set, e.g. sweeps
+ *
+ * The expression is parsed once when the rules are loaded.
+ *
+ * @author Matthew Gerring
+ *
+ */
+abstract class ProgressExpression {
+
+	/**
+	 * @param groups of the line, 0 is the whole line
+	 * @param state of the job
+	 * @param rule index of the rule
+	 * @return the value or NaN if it cannot be worked out, e.g. a variable is not set.
+	 */
+	abstract double evaluate(String[] groups, ProgressRules.State state, int rule);
+
+	/**
+	 * @param expression
+	 * @param distinct set to the groups used with distinct(...)
+	 * @return the expression
+	 * @throws IllegalArgumentException if it cannot be parsed
+	 */
+	static ProgressExpression parse(String expression, BitSet distinct) {
+		final Parser parser = new Parser(expression, distinct);
+		final ProgressExpression ret = parser.sum();
+		parser.skip();
+		if (parser.pos<expression.length()) throw parser.error();
+		return ret;
+	}
+
+	private static final class Parser {
+
+		private final String text;
+		private final BitSet distinct;
+		private int          pos;
+
+		Parser(String text, BitSet distinct) {
+			this.text     = text;
+			this.distinct = distinct;
+		}
+
+		ProgressExpression sum() {
+			ProgressExpression left = product();
+			while(true) {
+				final char op = peek();
+				if (op!='+' && op!='-') return left;
+				++pos;
+				left = new Operation(op, left, product());
+			}
+		}
+
+		ProgressExpression product() {
+			ProgressExpression left = factor();
+			while(true) {
+				final char op = peek();
+				if (op!='*' && op!='/') return left;
+				++pos;
+				left = new Operation(op, left, factor());
+			}
+		}
+
+		ProgressExpression factor() {
+			final char c = peek();
+			if (c=='-') {
+				++pos;
+				return new Operation('-', new Constant(0), factor());
+			}
+			if (c=='(') {
+				++pos;
+				final ProgressExpression ret = sum();
+				expect(')');
+				return ret;
+			}
+			if (c=='$') {
+				++pos;
+				return new Group(number(), false);
+			}
+			if (Character.isDigit(c) || c=='.') {
+				final int start = pos;
+				while (pos<text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos)=='.')) ++pos;
+				return new Constant(Double.parseDouble(text.substring(start, pos)));
+			}
+			if (Character.isLetter(c)) {
+				final int start = pos;
+				while (pos<text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos)=='_')) ++pos;
+				final String name = text.substring(start, pos);
+				if ("distinct".equals(name)) {
+					expect('(');
+					expect('$');
+					final int group = number();
+					expect(')');
+					distinct.set(group);
+					return new Group(group, true);
+				}
+				if ("count".equals(name)) return new Count();
+				return new Variable(name);
+			}
+			throw error();
+		}
+
+		private int number() {
+			final int start = pos;
+			while (pos<text.length() && Character.isDigit(text.charAt(pos))) ++pos;
+			if (start==pos) throw error();
+			return Integer.parseInt(text.substring(start, pos));
+		}
+
+		private void expect(char c) {
+			if (peek()!=c) throw error();
+			++pos;
+		}
+
+		private char peek() {
+			skip();
+			return pos<text.length() ? text.charAt(pos) : 0;
+		}
+
+		void skip() {
+			while (pos<text.length() && Character.isWhitespace(text.charAt(pos))) ++pos;
+		}
+
+		IllegalArgumentException error() {
+			return new IllegalArgumentException("Cannot parse '"+text+"' at character "+(pos+1));
+		}
+	}
+
+	private static final class Constant extends ProgressExpression {
+		private final double value;
+		Constant(double value) {
+			this.value = value;
+		}
+		@Override
+		double evaluate(String[] groups, ProgressRules.State state, int rule) {
+			return value;
+		}
+	}
+
+	private static final class Variable extends ProgressExpression {
+		private final String name;
+		Variable(String name) {
+			this.name = name;
+		}
+		@Override
+		double evaluate(String[] groups, ProgressRules.State state, int rule) {
+			return state.getVariable(name);
+		}
+	}
+
+	private static final class Count extends ProgressExpression {
+		@Override
+		double evaluate(String[] groups, ProgressRules.State state, int rule) {
+			return state.getCount(rule);
+		}
+	}
+
+	private static final class Group extends ProgressExpression {
+		private final int     group;
+		private final boolean distinct;
+		Group(int group, boolean distinct) {
+			this.group    = group;
+			this.distinct = distinct;
+		}
+		@Override
+		double evaluate(String[] groups, ProgressRules.State state, int rule) {
+			if (group>=groups.length || groups[group]==null) return Double.NaN;
+			if (distinct) return state.getDistinct(rule, group);
+			try {
+				return Double.parseDouble(groups[group].trim());
+			} catch (NumberFormatException ne) {
+				return Double.NaN;
+			}
+		}
+	}
+
+	private static final class Operation extends ProgressExpression {
+		private final char               op;
+		private final ProgressExpression left, right;
+		Operation(char op, ProgressExpression left, ProgressExpression right) {
+			this.op    = op;
+			this.left  = left;
+			this.right = right;
+		}
+		@Override
+		double evaluate(String[] groups, ProgressRules.State state, int rule) {
+			final double l = left.evaluate(groups, state, rule);
+			final double r = right.evaluate(groups, state, rule);
+			switch(op) {
+			case '+' : return l+r;
+			case '-' : return l-r;
+			case '*' : return l*r;
+			default  : return l/r;
+			}
+		}
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.scanning.api.event.status.Status;
+import org.eclipse.scanning.api.event.status.StatusBean;
+
+/**
+ * Reads the progress of a job from the lines which its program writes,
+ * using rules from a properties file rather than code, for instance:
+ *
+ *   rules=noimages, integrating, section
+ *
+ *   noimages.match=No images assigned for crystal test
+ *   noimages.status=FAILED
+ *   noimages.message=$0
+ *   noimages.percent=0
+ *
+ *   integrating.match=regex:^-+ Integrating ([a-zA-Z0-9_]+) -+$
+ *   integrating.message=Integrating $1
+ *   integrating.percent=distinct($1)/sweeps*50
+ *
+ *   section.match=regex:^-{20}(.*)
+ *   section.literal=--------------------
+ *   section.status=RUNNING
+ *   section.message=$1
+ *
+ * The rules are tried in the order of 'rules' and the first one which
+ * matches a line is applied. 'match' is text which the line contains or,
+ * after regex:, a regular expression which is found in the line. The
+ * optional keys of a rule are:
+ *
+ *   status   the Status to set, FAILED for a failure
+ *   message  the message to set, $0 is the line and $1, $2... the groups
+ *   percent  the percent complete to set, see ProgressExpression
+ *   literal  text which any line matched by the regex contains, worked
+ *            out from the regex if it is not set
+ *
+ * All of the literals are found in a line with one pass over it, only the
+ * rules whose literal is in the line (or which have none) are then tried,
+ * so most lines cost one pass however many rules there are.
+ *
+ * The rules may be shared, what is counted for a job is in its State.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class ProgressRules {
+
+	private static final Map<File, Object[]> cache = new HashMap<File, Object[]>(7);
+
+	/**
+	 * Loads the rules from a file. The rules are read again only if the file has changed.
+	 *
+	 * @param file
+	 * @return the rules
+	 * @throws IOException if it cannot be read
+	 * @throws IllegalArgumentException if a rule is wrong
+	 */
+	public static ProgressRules load(File file) throws IOException {
+		final File key = file.getAbsoluteFile();
+		synchronized (cache) {
+			final Object[] cached = cache.get(key);
+			if (cached!=null && (Long)cached[0]==file.lastModified()) return (ProgressRules)cached[1];
+		}
+		final long          modified = file.lastModified();
+		final ProgressRules rules    = load(new FileInputStream(file));
+		synchronized (cache) {
+			cache.put(key, new Object[]{modified, rules});
+		}
+		return rules;
+	}
+
+	/**
+	 * @param in which is closed
+	 * @return the rules
+	 * @throws IOException if it cannot be read
+	 * @throws IllegalArgumentException if a rule is wrong
+	 */
+	public static ProgressRules load(InputStream in) throws IOException {
+		try {
+			final Properties props = new Properties();
+			props.load(in);
+			return new ProgressRules(props);
+		} finally {
+			in.close();
+		}
+	}
+
+	private final Rule[]         rules;
+	private final LiteralMatcher literals;
+
+	/**
+	 * @param props the rules
+	 * @throws IllegalArgumentException if a rule is wrong
+	 */
+	public ProgressRules(Properties props) {
+
+		final String names = props.getProperty("rules");
+		if (names==null) throw new IllegalArgumentException("The rules must be listed in order with 'rules'");
+
+		final List<Rule>   rules    = new ArrayList<Rule>(7);
+		final List<String> literals = new ArrayList<String>(7);
+		for (String name : names.split(",")) {
+			name = name.trim();
+			if (name.length()<1) continue;
+			final Rule rule = new Rule(name, props);
+			if (rule.literal!=null) {
+				if (!literals.contains(rule.literal)) literals.add(rule.literal);
+				rule.literalIndex = literals.indexOf(rule.literal);
+			}
+			rules.add(rule);
+		}
+		this.rules    = rules.toArray(new Rule[rules.size()]);
+		this.literals = literals.isEmpty() ? null : new LiteralMatcher(literals);
+	}
+
+	/**
+	 * @return the state for one job, in which variables such as the number of sweeps may be set.
+	 */
+	public State createState() {
+		return new State(rules.length);
+	}
+
+	/**
+	 * Applies the first rule which matches the line to the bean. Nothing is
+	 * changed once the bean has a final status.
+	 *
+	 * @param line
+	 * @param bean
+	 * @param state of the job
+	 * @return true if the bean was changed and should be broadcast
+	 */
+	public boolean apply(String line, StatusBean bean, State state) {
+
+		if (bean.getStatus()!=null && bean.getStatus().isFinal()) return false;
+
+		final BitSet found = literals!=null ? literals.match(line) : null;
+		for (int i = 0; i < rules.length; i++) {
+			final Rule rule = rules[i];
+			if (rule.literalIndex>-1 && !found.get(rule.literalIndex)) continue;
+
+			final String[] groups = rule.match(line);
+			if (groups==null) continue;
+
+			synchronized (state) {
+				state.matched(i, groups, rule.distinct);
+				rule.apply(groups, bean, state, i);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of rules
+	 */
+	public int size() {
+		return rules.length;
+	}
+
+	private static final class Rule {
+
+		private final String             name;
+		private final Pattern            pattern; // null if it is a literal
+		private final String             literal;
+		private final Status             status;
+		private final String             message;
+		private final ProgressExpression percent;
+		private final BitSet             distinct;
+		private int                      literalIndex = -1;
+
+		Rule(String name, Properties props) {
+			this.name = name;
+			String match = props.getProperty(name+".match");
+			if (match==null || match.length()<1) throw new IllegalArgumentException("Progress rule '"+name+"' has no "+name+".match");
+
+			if (match.startsWith("regex:")) {
+				this.pattern = Pattern.compile(match.substring("regex:".length()));
+				final String literal = props.getProperty(name+".literal");
+				this.literal = literal!=null && literal.length()>0 ? literal : LiteralMatcher.findLiteral(pattern.pattern());
+			} else {
+				this.pattern = null;
+				this.literal = match;
+			}
+
+			final String status = props.getProperty(name+".status");
+			try {
+				this.status = status!=null ? Status.valueOf(status.trim()) : null;
+			} catch (IllegalArgumentException ne) {
+				throw new IllegalArgumentException("Progress rule '"+name+"' has an unknown status "+status);
+			}
+
+			this.message  = props.getProperty(name+".message");
+			this.distinct = new BitSet();
+			final String percent = props.getProperty(name+".percent");
+			try {
+				this.percent = percent!=null ? ProgressExpression.parse(percent, distinct) : null;
+			} catch (IllegalArgumentException ne) {
+				throw new IllegalArgumentException("Progress rule '"+name+"' has a bad percent. "+ne.getMessage());
+			}
+		}
+
+		/**
+		 * @param line
+		 * @return the line and the groups or null if the rule does not match.
+		 */
+		String[] match(String line) {
+			if (pattern==null) return line.contains(literal) ? new String[]{line} : null;
+
+			final Matcher matcher = pattern.matcher(line);
+			if (!matcher.find()) return null;
+			final String[] groups = new String[matcher.groupCount()+1];
+			groups[0] = line;
+			for (int g = 1; g < groups.length; g++) groups[g] = matcher.group(g);
+			return groups;
+		}
+
+		void apply(String[] groups, StatusBean bean, State state, int index) {
+
+			if (status!=null && status!=bean.getStatus()) {
+				bean.setPreviousStatus(bean.getStatus());
+				bean.setStatus(status);
+			}
+			if (message!=null) bean.setMessage(substitute(message, groups));
+			if (percent!=null) {
+				final double complete = percent.evaluate(groups, state, index);
+				if (!Double.isNaN(complete) && !Double.isInfinite(complete)) {
+					bean.setPercentComplete(Math.max(0, Math.min(100, complete)));
+				}
+			}
+		}
+
+		private static String substitute(String message, String[] groups) {
+			if (message.indexOf('$')<0) return message;
+			final StringBuilder buf = new StringBuilder(message.length()+32);
+			for (int i = 0; i < message.length(); i++) {
+				final char c = message.charAt(i);
+				if (c=='$' && i+1<message.length() && Character.isDigit(message.charAt(i+1))) {
+					int end = i+1;
+					while (end<message.length() && Character.isDigit(message.charAt(end))) ++end;
+					final int group = Integer.parseInt(message.substring(i+1, end));
+					if (group<groups.length && groups[group]!=null) buf.append(groups[group]);
+					i = end-1;
+				} else {
+					buf.append(c);
+				}
+			}
+			return buf.toString();
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * What the rules have counted for one job and the variables of the job.
+	 */
+	public static final class State {
+
+		private final int[]                 counts;
+		private final Map<String, Double>   variables;
+		private final Map<Long, Set<String>> distinct;
+
+		private State(int size) {
+			this.counts    = new int[size];
+			this.variables = new HashMap<String, Double>(7);
+			this.distinct  = new HashMap<Long, Set<String>>(7);
+		}
+
+		/**
+		 * Sets a variable which may be used in the percent of the rules.
+		 * @param name
+		 * @param value
+		 */
+		public synchronized void setVariable(String name, double value) {
+			variables.put(name, value);
+		}
+
+		synchronized double getVariable(String name) {
+			final Double value = variables.get(name);
+			return value!=null ? value : Double.NaN;
+		}
+
+		void matched(int rule, String[] groups, BitSet distinctGroups) {
+			counts[rule]++;
+			for (int g = distinctGroups.nextSetBit(0); g>-1 && g<groups.length; g = distinctGroups.nextSetBit(g+1)) {
+				if (groups[g]==null) continue;
+				final Long key = key(rule, g);
+				Set<String> values = distinct.get(key);
+				if (values==null) distinct.put(key, values = new HashSet<String>(7));
+				values.add(groups[g]);
+			}
+		}
+
+		int getCount(int rule) {
+			return counts[rule];
+		}
+
+		int getDistinct(int rule, int group) {
+			final Set<String> values = distinct.get(key(rule, group));
+			return values!=null ? values.size() : 0;
+		}
+
+		private static Long key(int rule, int group) {
+			return ((long)rule<<32) | group;
+		}
+	}
+}
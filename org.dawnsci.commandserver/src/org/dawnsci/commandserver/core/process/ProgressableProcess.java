@@ -14,13 +14,16 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.lang.ProcessBuilder.Redirect;
-import java.lang.reflect.Field;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.dawnsci.commandserver.core.ActiveMQServiceHolder;
+import org.dawnsci.commandserver.core.metrics.MetricsRegistry;
 import org.eclipse.scanning.api.event.EventException;
 import org.eclipse.scanning.api.event.IEventConnectorService;
 import org.eclipse.scanning.api.event.core.IConsumerProcess;
@@ -30,8 +33,6 @@ import org.eclipse.scanning.api.event.status.StatusBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.sun.jna.Platform;
-
 
 /**
  * Extend to provide a connection between a running process.
@@ -53,6 +54,19 @@ public abstract class ProgressableProcess<T extends StatusBean> implements Runna
 	protected T       bean;
 	private IPublisher<T> statusPublisher;
 	protected Map<String, String> arguments;
+	private ProcessPool   pool;
+	private BroadcastChannel<T> channel;
+	private AdmissionController admission;
+	private volatile ProcessResources admitted;
+	private JobJournal          journal;
+	private CgroupLauncher      cgroups;
+	private ProcessLauncher     launcher = ProcessLauncher.getDefault();
+	private JobCgroup           cgroup;
+	private boolean             accounted;
+	private final List<LogTailService.Tail> tails = new CopyOnWriteArrayList<LogTailService.Tail>();
+	private int                 pid      = -1;
+	private long                pidStart = -1;
+	private boolean             waitRecorded;
 	
 	protected PrintStream out = System.out;
 
@@ -76,6 +90,20 @@ public abstract class ProgressableProcess<T extends StatusBean> implements Runna
 		broadcast(bean);
 	}
 	
+	/**
+	 * Used to re-attach to a job which was already running when the consumer
+	 * was restarted, the status of the bean is left as it is.
+	 * 
+	 * @param bean
+	 * @param statusPublisher
+	 */
+	protected ProgressableProcess(T bean, IPublisher<T> statusPublisher) {
+		this.bean            = bean;
+		this.statusPublisher = statusPublisher;
+		this.blocking        = false;
+		this.waitRecorded    = true; // It has been running since before the restart.
+	}
+	
 
 	@Override
 	public T getBean() {
@@ -107,6 +135,7 @@ public abstract class ProgressableProcess<T extends StatusBean> implements Runna
 	
 	@Override
 	public final void run() {
+		final long start = System.nanoTime();
         try {
         	execute();
         	if (out!=System.out) {
@@ -121,9 +150,28 @@ public abstract class ProgressableProcess<T extends StatusBean> implements Runna
 			bean.setMessage(ne.getMessage());
 			bean.setPercentComplete(0);
 			broadcast(bean);
+        } finally {
+        	recordRun(start);
+        	for (LogTailService.Tail tail : tails) tail.close();
+        	tails.clear();
+        	if (cgroup!=null) {
+        		if (!accounted) cgroup.account(bean);
+        		cgroup.delete();
+        		cgroup = null;
+        	}
+        	final ProcessResources res = admitted;
+        	admitted = null;
+        	if (res!=null) admission.release(res);
         }
 	}
 	
+	private void recordRun(long start) {
+		final String          name    = getClass().getSimpleName();
+		final MetricsRegistry metrics = MetricsRegistry.getDefault();
+		metrics.histogram("commandserver_job_run_seconds", "Time taken to run a job", "process", name).recordSince(start);
+		metrics.counter("commandserver_jobs_total", "Jobs run by status at the end of the run", "process", name, "status", String.valueOf(bean.getStatus())).inc();
+	}
+	
 	/**
 	 * Execute the process, if an exception is thrown the process is set to 
 	 * failed and the message is the message of the exception.
@@ -192,70 +240,130 @@ public abstract class ProgressableProcess<T extends StatusBean> implements Runna
 	/**
 	 * Call to start the process and broadcast status
 	 * updates. Subclasses may redefine what is done
-	 * on the start method, by default a thread is started
-	 * in daemon mode to run things.
+	 * on the start method, by default the process is run
+	 * by the pool of the consumer or if there is no pool
+	 * a thread is started in daemon mode to run things.
+	 * The thread is a virtual thread if the arguments switch them on, see JobThreads.
+	 * 
+	 * If the consumer has admission control, this method first waits
+	 * until the resources from getResources() are free.
 	 */
 	public void start() {
 		
+		if (admission!=null) {
+			try {
+				admitted = admission.acquire(getResources());
+			} catch (InterruptedException ne) {
+				Thread.currentThread().interrupt();
+				bean.setStatus(Status.FAILED);
+				bean.setMessage("Interrupted waiting for resources to run "+bean.getName());
+				broadcast(bean);
+				return;
+			} catch (Exception ne) {
+				logger.error("Cannot read the resources needed by "+bean.getName()+", running without admission control.", ne);
+			}
+		}
+		
 		if (isBlocking()) {
 			run(); // Block until process has run.
+		} else if (pool!=null) {
+			try {
+				pool.submit(this); // Blocks if the pool is full
+			} catch (RejectedExecutionException ne) {
+				logger.error("Cannot run "+bean.getName(), ne);
+	        	final ProcessResources res = admitted;
+	        	admitted = null;
+	        	if (res!=null) admission.release(res);
+				bean.setStatus(Status.FAILED);
+				bean.setMessage(ne.getMessage());
+				broadcast(bean);
+			}
 		} else {
-			final Thread thread = new Thread(this);
-			thread.setDaemon(true);
-			thread.setPriority(Thread.MAX_PRIORITY);
-			thread.start();
+			JobThreads.start(this, getClass().getSimpleName()+" "+bean.getUniqueId(), Thread.MAX_PRIORITY, JobThreads.isVirtual(arguments));
 		}
 	}
 
 	/**
-	 * Notify any clients of the beans status
+	 * Notify any clients of the beans status. If the process has a
+	 * broadcast channel, updates which do not change the status
+	 * may be coalesced and are sent from another thread.
 	 * @param bean
 	 */
 	public void broadcast(StatusBean tbean) {
 		try {
 			bean.merge(tbean);
-			statusPublisher.broadcast(bean);
+			if (!waitRecorded && bean.getStatus()==Status.RUNNING) recordQueueWait();
+			if (cgroup!=null && !accounted && bean.getStatus()!=null && bean.getStatus().isFinal()) {
+				cgroup.account(bean);
+				accounted = true;
+			}
+			if (journal!=null) journal.record(bean, pid, pidStart);
+			if (channel!=null) {
+				channel.broadcast(bean);
+			} else {
+				final long start = System.nanoTime();
+			    statusPublisher.broadcast(bean);
+			    BroadcastChannel.BROADCAST_TIME.recordSince(start);
+			}
 		} catch (Exception e) {
 			logger.error("Cannot broadcast", e);
 		}
  	}
 
+	/**
+	 * Records the time from submission until the job started running.
+	 */
+	private void recordQueueWait() {
+		waitRecorded = true;
+		if (bean.getSubmissionTime()<=0) return;
+		final long wait = System.currentTimeMillis()-bean.getSubmissionTime();
+		MetricsRegistry.getDefault().histogram("commandserver_queue_wait_seconds", "Time from submission until a job is running", "process", getClass().getSimpleName())
+		                            .record(wait, TimeUnit.MILLISECONDS);
+	}
+
+    /**
+     * Terminates the process and all of the processes it started, see ProcessControl.
+     * 
+     * @param pid
+     * @param dir no longer used, nothing is written when the process is killed.
+     * @throws Exception
+     */
     protected void pkill(int pid, String dir) throws Exception {
-    	
-    	// Use pkill, seems to kill all of the tree more reliably
-    	ProcessBuilder pb = new ProcessBuilder();
-		
-		// Can adjust env if needed:
-		// Map<String, String> env = pb.environment();
-		pb.directory(new File(dir));
-		
-		File log = new File(dir, "xia2_kill.txt");
-		pb.redirectErrorStream(true);
-		pb.redirectOutput(Redirect.appendTo(log));
-		
-		pb.command("bash", "-c", "pkill -9 -s "+pid);
-		
-		Process p = pb.start();
-		p.waitFor();
+    	if (!ProcessControl.terminate(pid)) {
+    		logger.warn("Not all of the processes of "+pid+" could be killed");
+    	}
     }
 
 	protected static int getPid(Process p) throws Exception {
-		
-		if (Platform.isWindows()) {
-			Field f = p.getClass().getDeclaredField("handle");
-			f.setAccessible(true);
-			int pid = Kernel32.INSTANCE.GetProcessId((Long) f.get(p));
-			return pid;
-			
-		} else if (Platform.isLinux()) {
-			Field	f = p.getClass().getDeclaredField("pid");
-			f.setAccessible(true);
-			int pid = (Integer) f.get(p);
-			return pid;
-
-		} else{
-			throw new Exception("Cannot currently process pid for "+System.getProperty("os.name"));
-		}
+		return ProcessControl.getPid(p);
+	}
+
+
+	/**
+	 * Call when the external process running the job has been started
+	 * so that the consumer can find it again if it is restarted.
+	 * 
+	 * @param pid
+	 */
+	protected void setPid(int pid) {
+		this.pid      = pid;
+		this.pidStart = ProcFS.getStartTime(pid);
+		if (journal!=null) journal.record(bean, pid, pidStart);
+	}
+	
+	/**
+	 * @return the pid of the external process running the job or -1 if it is not known.
+	 */
+	public int getPid() {
+		return pid;
+	}
+
+	/**
+	 * @return the start time of the process set by setPid, from ProcFS.getStartTime, so
+	 * that ProcFS.isAlive can tell if the pid has been reused, or -1 if it is not known.
+	 */
+	public long getPidStart() {
+		return pidStart;
 	}
 
 
@@ -348,5 +456,170 @@ public abstract class ProgressableProcess<T extends StatusBean> implements Runna
 		this.arguments = arguments;
 	}
 
+	/**
+	 * The resources which the process needs while it runs. By default these
+	 * are read from the bean properties 'cores', 'memory' and 'scratch' or
+	 * one core if they are not set. Override to work out what a given job needs.
+	 * 
+	 * @return resources
+	 */
+	protected ProcessResources getResources() {
+		return ProcessResources.fromProperties(bean.getProperties(), ProcessResources.DEFAULT);
+	}
+
+	/**
+	 * @return true if the process holds resources from the admission controller,
+	 * execute() should not then return before the work is done or they are given
+	 * back too early.
+	 */
+	protected boolean isAdmitted() {
+		return admitted!=null;
+	}
+
+	/**
+	 * Set the admission controller which decides when the process
+	 * may start, if null it starts straight away.
+	 * @param admission
+	 */
+	public void setAdmissionController(AdmissionController admission) {
+		this.admission = admission;
+	}
+
+	public ProcessPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Set the pool which runs the process when it is not blocking.
+	 * @param pool
+	 */
+	public void setPool(ProcessPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Tails a log file of the job, for instance to read its progress. The
+	 * lines are given to the listener as they are written, from the thread
+	 * of the LogTailService. The file is no longer tailed once the job has
+	 * run or the tail is closed.
+	 * 
+	 * @param file which may not exist yet
+	 * @param listener
+	 * @return the tail
+	 */
+	protected LogTailService.Tail tail(File file, ILineListener listener) {
+		final LogTailService.Tail tail = LogTailService.getDefault().tail(file, listener);
+		tails.add(tail);
+		return tail;
+	}
+
+	/**
+	 * Tails a log file of the job and applies the progress rules to each
+	 * line, the bean is broadcast whenever a rule changes it.
+	 *
+	 * @param file which may not exist yet
+	 * @param rules
+	 * @param state of the job, from rules.createState()
+	 * @return the tail
+	 */
+	protected LogTailService.Tail tail(File file, final ProgressRules rules, final ProgressRules.State state) {
+		return tail(file, new ILineListener() {
+			@Override
+			public void lineRead(File file, String line) {
+				if (rules.apply(line, bean, state)) broadcast(bean);
+			}
+		});
+	}
+
+	/**
+	 * The progress rules of the job, from the file given by the consumer
+	 * argument -progressRules, so that the progress of a program may be
+	 * read without changing the process.
+	 *
+	 * @param defaults used if -progressRules is not set, may be null
+	 * @return the rules or the defaults if they are not set or cannot be read
+	 */
+	protected ProgressRules getProgressRules(ProgressRules defaults) {
+		final String path = arguments!=null ? arguments.get("progressRules") : null;
+		if (path==null) return defaults;
+		try {
+			return ProgressRules.load(new File(path));
+		} catch (Exception ne) {
+			logger.error("Cannot read the progress rules "+path, ne);
+			return defaults;
+		}
+	}
+
+	/**
+	 * Set the launcher which makes a cgroup for the job, may be null.
+	 * @param cgroups
+	 */
+	public void setCgroupLauncher(CgroupLauncher cgroups) {
+		this.cgroups = cgroups;
+	}
+
+	/**
+	 * The cgroup in which the external process of the job should be run, which is
+	 * made the first time that it is asked for. What the job used is added to the
+	 * bean when it reaches a final status and the cgroup is removed when it has run.
+	 * 
+	 * @return the cgroup of the job or null if the consumer does not run jobs in cgroups.
+	 */
+	protected JobCgroup getCgroup() {
+		if (cgroups==null) return null;
+		if (cgroup==null) {
+			try {
+				final String name = bean.getUniqueId()!=null ? bean.getUniqueId() : String.valueOf(System.currentTimeMillis());
+				cgroup = cgroups.create(name, getResources(), bean.getProperties());
+			} catch (Exception ne) {
+				logger.error("Cannot make a cgroup for "+bean.getName()+", it will run without limits.", ne);
+				cgroups = null;
+			}
+		}
+		return cgroup;
+	}
+
+	/**
+	 * Changes the command of the builder to run the job in its cgroup,
+	 * if the consumer runs jobs in cgroups. Call just before pb.start()
+	 * @param pb
+	 */
+	protected void confine(ProcessBuilder pb) {
+		final JobCgroup cg = getCgroup();
+		if (cg!=null) cg.wrap(pb);
+	}
+
+	/**
+	 * Set the launcher which starts the external processes of the job.
+	 * @param launcher
+	 */
+	public void setProcessLauncher(ProcessLauncher launcher) {
+		this.launcher = launcher;
+	}
+
+	/**
+	 * @return the launcher with which to start the external processes of the job, see ProcessLauncher.
+	 */
+	protected ProcessLauncher getProcessLauncher() {
+		return launcher;
+	}
+
+	/**
+	 * Set the journal in which the state of the job is recorded, may be null.
+	 * @param journal
+	 */
+	public void setJournal(JobJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Set the channel which sends status updates, if null
+	 * updates are sent directly by broadcast(...)
+	 * @param channel
+	 */
+	public void setBroadcastChannel(BroadcastChannel<T> channel) {
+		this.channel = channel;
+	}
+
 
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.process;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A process started by the LaunchServer. It is used like any other Process,
+ * except that its output is always redirected to files and nothing can be
+ * written to its input.
+ *
+ * If the connection to the server is lost the process is watched using its
+ * pid until it ends, its exit code is then -1.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class RemoteProcess extends Process {
+
+	private static final Logger logger = LoggerFactory.getLogger(RemoteProcess.class);
+
+	private final Socket           socket;
+	private final DataOutputStream out;
+	private final int              pid; // Read by name if Process.pid() does not exist
+	private final CountDownLatch   ended;
+	private volatile int           exit;
+
+	RemoteProcess(Socket socket, final DataInputStream in, DataOutputStream out, int pid) {
+		this.socket = socket;
+		this.out    = out;
+		this.pid    = pid;
+		this.ended  = new CountDownLatch(1);
+
+		JobThreads.start(new Runnable() {
+			@Override
+			public void run() {
+				readExit(in);
+			}
+		}, "Exit of "+pid, Thread.MIN_PRIORITY);
+	}
+
+	private void readExit(DataInputStream in) {
+		try {
+			exit = in.readInt();
+		} catch (IOException ne) {
+			logger.warn("Lost the launch server of process "+pid+", waiting for it to end");
+			try {
+				while(ProcFS.isAlive(pid, -1)) Thread.sleep(1000);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			exit = -1;
+		} finally {
+			ended.countDown();
+			close();
+		}
+	}
+
+	/**
+	 * @return the pid of the process
+	 */
+	public int getPid() {
+		return pid;
+	}
+
+	/**
+	 * Overrides Process.pid() of Java 9 and later.
+	 * @return the pid of the process
+	 */
+	public long pid() {
+		return pid;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("The input of process "+pid+" is not redirected to the consumer");
+			}
+		};
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+
+	@Override
+	public InputStream getErrorStream() {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+
+	@Override
+	public int waitFor() throws InterruptedException {
+		ended.await();
+		return exit;
+	}
+
+	@Override
+	public int exitValue() {
+		if (ended.getCount()>0) throw new IllegalThreadStateException("Process "+pid+" has not exited");
+		return exit;
+	}
+
+	@Override
+	public void destroy() {
+		if (ended.getCount()<1) return;
+		try {
+			synchronized (out) {
+				out.writeByte(LaunchServer.TERMINATE);
+				out.flush();
+			}
+		} catch (IOException ne) {
+			logger.warn("Cannot ask the launch server to terminate "+pid, ne);
+		}
+	}
+
+	private void close() {
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+			// Already closed
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.commandserver.core.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+
+/**
+ * An inotify instance on linux, read without blocking. Used to find out
+ * when a file written on this host has been closed, which java.nio does
+ * not report. Writes made on other hosts to a network file system are
+ * not seen.
+ *
+ * @author Matthew Gerring
+ *
+ */
+public class Inotify implements Closeable {
+
+	public static final int IN_CLOSE_WRITE = 0x00000008;
+	public static final int IN_MOVED_TO    = 0x00000080;
+	public static final int IN_Q_OVERFLOW  = 0x00004000;
+
+	private static final int IN_NONBLOCK = 04000;
+	private static final int IN_CLOEXEC  = 02000000;
+	private static final int EVENT_SIZE  = 16; // wd, mask, cookie, len
+
+	private interface LibC extends Library {
+		int inotify_init1(int flags);
+		int inotify_add_watch(int fd, String path, int mask);
+		int inotify_rm_watch(int fd, int wd);
+		NativeLong read(int fd, byte[] buf, NativeLong count);
+		int close(int fd);
+	}
+
+	private static final LibC LIBC = load();
+
+	private static LibC load() {
+		if (!Platform.isLinux()) return null;
+		try {
+			return (LibC)Native.loadLibrary("c", LibC.class);
+		} catch (Throwable ne) {
+			return null;
+		}
+	}
+
+	/**
+	 * Told about each event read.
+	 */
+	public interface IEventListener {
+		/**
+		 * @param wd the watch of the directory
+		 * @param mask of the event
+		 * @param name of the file in the directory, may be empty
+		 */
+		void event(int wd, int mask, String name);
+	}
+
+	/**
+	 * @return true if inotify can be used on this host.
+	 */
+	public static boolean isAvailable() {
+		return LIBC!=null;
+	}
+
+	private final    byte[]  buffer;
+	private volatile int     fd;
+
+	/**
+	 * @throws IOException if an instance cannot be made, e.g. the limit of instances has been reached.
+	 */
+	public Inotify() throws IOException {
+		if (LIBC==null) throw new IOException("inotify is not available on "+System.getProperty("os.name"));
+		this.fd = LIBC.inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+		if (fd<0) throw new IOException("Cannot create inotify instance, errno "+Native.getLastError());
+		this.buffer = new byte[64*1024];
+	}
+
+	/**
+	 * @param dir to watch
+	 * @param mask of events, e.g. IN_CLOSE_WRITE
+	 * @return the watch
+	 * @throws IOException if the directory cannot be watched, e.g. the limit of watches has been reached.
+	 */
+	public int addWatch(String dir, int mask) throws IOException {
+		final int wd = LIBC.inotify_add_watch(fd, dir, mask);
+		if (wd<0) throw new IOException("Cannot watch "+dir+", errno "+Native.getLastError());
+		return wd;
+	}
+
+	public void removeWatch(int wd) {
+		LIBC.inotify_rm_watch(fd, wd);
+	}
+
+	/**
+	 * Reads the events which have happened since the last read, without waiting.
+	 *
+	 * @param listener
+	 * @return the number of events read
+	 */
+	public synchronized int read(IEventListener listener) {
+
+		int count = 0;
+		final Charset utf8 = Charset.forName("UTF-8");
+		while(fd>-1) {
+			final long read = LIBC.read(fd, buffer, new NativeLong(buffer.length)).longValue();
+			if (read<=0) break; // EAGAIN when there are none
+
+			final ByteBuffer events = ByteBuffer.wrap(buffer, 0, (int)read).order(ByteOrder.nativeOrder());
+			while(events.remaining()>=EVENT_SIZE) {
+				final int wd   = events.getInt();
+				final int mask = events.getInt();
+				events.getInt(); // cookie
+				final int len  = events.getInt();
+
+				String name = "";
+				if (len>0) {
+					int end = events.position();
+					final int limit = end+len;
+					while(end<limit && buffer[end]!=0) ++end; // The name is padded with nulls
+					name = new String(buffer, events.position(), end-events.position(), utf8);
+					events.position(limit);
+				}
+				listener.event(wd, mask, name);
+				++count;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (fd<0) return;
+		LIBC.close(fd);
+		fd = -1;
+	}
+}